@@ -11,29 +11,36 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.text.TextUtils;
 
 import org.json.JSONException;
 
 import java.net.URL;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import oracle.idm.mobile.auth.AuthServiceInputCallback;
 import oracle.idm.mobile.auth.AuthenticationServiceManager;
 import oracle.idm.mobile.auth.OAuthConnectionsUtil;
+import oracle.idm.mobile.auth.OAuthRequestSecretsPool;
 import oracle.idm.mobile.auth.OMAuthenticationChallenge;
 import oracle.idm.mobile.auth.OMAuthenticationChallengeType;
 import oracle.idm.mobile.auth.OMAuthenticationCompletionHandler;
 import oracle.idm.mobile.auth.OMAuthenticationContext;
+import oracle.idm.mobile.auth.TimeoutManager;
 import oracle.idm.mobile.auth.local.OMAuthData;
+import oracle.idm.mobile.auth.local.OMAuthenticationManager;
 import oracle.idm.mobile.auth.local.OMAuthenticationManagerException;
 import oracle.idm.mobile.auth.local.OMAuthenticator;
 import oracle.idm.mobile.auth.local.OMDefaultAuthenticator;
 import oracle.idm.mobile.auth.openID.OpenIDTokenService;
 import oracle.idm.mobile.callback.OMAuthenticationContextCallback;
 import oracle.idm.mobile.callback.OMMobileSecurityServiceCallback;
+import oracle.idm.mobile.callback.OMTokenRefreshCallback;
 import oracle.idm.mobile.certificate.ClientCertificatePreference;
 import oracle.idm.mobile.certificate.OMCertificateService;
 import oracle.idm.mobile.configuration.OAuthAuthorizationGrantType;
@@ -51,6 +58,7 @@ import oracle.idm.mobile.crypto.OMKeyManagerException;
 import oracle.idm.mobile.crypto.OMKeyStore;
 import oracle.idm.mobile.logging.OMLog;
 import oracle.idm.mobile.util.DefaultAuthenticationUtils;
+import oracle.idm.mobile.util.OMExecutor;
 
 /**
  * OMMobileSecurityService class is the top-level class which provides Security
@@ -430,6 +438,27 @@ public class OMMobileSecurityService {
      */
     public static final String OM_PROP_OAUTH_ENABLE_PKCE = "OAuthEnablePKCE";
 
+    /**
+     * This represents the window, in seconds, before the expiry of an OAuth
+     * access token within which the SDK refreshes the token in the background
+     * using its refresh token. The value should be of type {@link Integer}.
+     * By default proactive refresh is disabled and an expired access token is
+     * refreshed only when the application checks the validity of the
+     * authentication context for the token's scopes.
+     */
+    public static final String OM_PROP_OAUTH_PROACTIVE_REFRESH_WINDOW = "OAuthProactiveRefreshWindow";
+
+    /**
+     * This represents the number of threads on which the SDK runs its
+     * background network and storage work, like proactive token refresh.
+     * Work the user is waiting on, like login, runs on a separate pool.
+     * The value should be of type {@link Integer}.
+     * The pool is shared by all the {@link OMMobileSecurityService} instances
+     * in the process, the value of the last instance set up wins. Default
+     * value is 4.
+     */
+    public static final String OM_PROP_SDK_EXECUTOR_POOL_SIZE = "SDKExecutorPoolSize";
+
     /**
      * This represents the custom HTTP headers which should be added to the HTTP
      * request being made to the server in case of HTTP Basic authentication.
@@ -534,6 +563,48 @@ public class OMMobileSecurityService {
 
     public static final String OM_PROP_OPENID_CONNECT_CONFIGURATION = "OpenIDConnectConfiguration";
 
+    /**
+     * This property indicates whether the document downloaded from
+     * {@link #OM_PROP_OPENID_CONNECT_CONFIGURATION_URL} can be cached on the
+     * device. When enabled, the setup completes from the cached document and
+     * a stale document is revalidated with the server in the background; an
+     * updated document takes effect from the next setup. The value should be
+     * of type {@link Boolean}. Default value is true.
+     */
+    public static final String OM_PROP_OPENID_CONNECT_CONFIGURATION_CACHE_ENABLED = "OpenIDConnectDiscoveryCacheEnabled";
+
+    /**
+     * This property indicates whether the SDK should fetch the profile of
+     * the user from the userinfo endpoint of the OpenID provider after login.
+     * The profile is cached encrypted on the device and revalidated on
+     * subsequent logins, and is available from
+     * {@link OMAuthenticationContext#getOpenIDUserInfo()}; until it is
+     * fetched, the user info is built from the claims of the ID token. The
+     * value should be of type {@link Boolean}. Default value is false.
+     */
+    public static final String OM_PROP_OPENID_CONNECT_FETCH_USER_INFO = "OpenIDConnectFetchUserInfo";
+
+    /**
+     * This property indicates whether the SDK should revoke the access
+     * tokens and refresh tokens at the revocation endpoint of the OpenID
+     * provider on logout. The tokens are removed from the device right away
+     * and revoked in the background, so the logout does not wait for the
+     * server. The value should be of type {@link Boolean}. Default value is
+     * false.
+     */
+    public static final String OM_PROP_OPENID_CONNECT_REVOKE_TOKENS_ON_LOGOUT = "OpenIDConnectRevokeTokensOnLogout";
+
+    /**
+     * This property indicates whether the SDK should ask the introspection
+     * endpoint of the OpenID provider whether an access token is still
+     * active, when checking the validity of the authentication context for
+     * a set of scopes, or online using {@link OMAuthenticationContext#isValid(boolean)}.
+     * The answers are cached for a short time. If the endpoint can not be
+     * reached, the validity is decided by the expiry time of the token. The
+     * value should be of type {@link Boolean}. Default value is false.
+     */
+    public static final String OM_PROP_OPENID_CONNECT_INTROSPECT_TOKENS = "OpenIDConnectIntrospectTokens";
+
     /**
      * If the application uses {@link AuthServerType#OpenIDConnect10} as its authentication server type then this property can be used to provide the login hint or the user name for which the authentication is required.
      * If the application is a single user application, then this property can be avoided.
@@ -643,6 +714,7 @@ public class OMMobileSecurityService {
     private OMCredentialStore credentialStoreService = null;
     private boolean logoutInProgress = false;
     private OMAuthenticationContextCallback mAuthContextCallback;
+    private volatile OMTokenRefreshCallback mTokenRefreshCallback;
     private OMConnectionHandler mConnectionHandler;
     private Object mASMLock = new Object();
     private OpenIDTokenService openIDTokenService;
@@ -751,12 +823,16 @@ public class OMMobileSecurityService {
 
     public void setup() {
         OMLog.debug(TAG, "setup");
+        if (mMobileSecurityConfig.getSdkExecutorPoolSize() > 0) {
+            OMExecutor.getInstance().setPoolSize(mMobileSecurityConfig.getSdkExecutorPoolSize());
+        }
         if (mMobileSecurityConfig.isInitialized()) {
             //do nothing
             invokeSetupCompleteCallback(null);
             isSetupDone = true;
         } else {
-            new SetupTask(this).execute();
+            new SetupTask(this).executeOnExecutor(
+                    OMExecutor.getInstance().getExecutor(OMExecutor.Priority.INTERACTIVE));
         }
     }
 
@@ -866,9 +942,15 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
     }
 
     private boolean isSetupDone;
+    private volatile Map<String, Long> mSetupStageTimes = Collections.emptyMap();
 
     private class SetupTask extends
             AsyncTask<Void, Void, OMMobileSecurityException> {
+        private static final String STAGE_CONFIGURATION = "configuration";
+        private static final String STAGE_TRUST_STORE = "trustStore";
+        private static final String STAGE_AUTHENTICATION_MANAGER = "authenticationManager";
+        private static final String STAGE_DEFAULT_AUTHENTICATOR = "defaultAuthenticator";
+        private static final long SETUP_STAGES_TIMEOUT_SECS = 30;
         private OMMobileSecurityService sMSS;
 
         SetupTask(OMMobileSecurityService mss) {
@@ -878,12 +960,50 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
 
         @Override
         protected OMMobileSecurityException doInBackground(Void... params) {
+            if (sMSS.getMobileSecurityConfig() instanceof OMOAuthMobileSecurityConfiguration) {
+                OAuthRequestSecretsPool.prefill();
+            }
+            final OMConnectionHandler connectionHandler = sMSS.getConnectionHandler();
+            SetupPipeline pipeline = new SetupPipeline();
+            pipeline.submit(new SetupPipeline.Stage(STAGE_TRUST_STORE) {
+                @Override
+                void run() throws Exception {
+                    connectionHandler.getCertificateService();
+                }
+            });
+            SetupPipeline.Stage authenticationManager = new SetupPipeline.Stage(STAGE_AUTHENTICATION_MANAGER) {
+                @Override
+                void run() throws Exception {
+                    OMAuthenticationManager.getInstance(sMSS.getApplicationContext());
+                }
+            };
+            /* The key store of the default authenticator can only be unlocked once the state of
+             * the authentication manager is loaded. Custom authenticators need the user to
+             * authenticate, so there is nothing to unlock ahead of the login for them. */
+            if (TextUtils.isEmpty(sMSS.getMobileSecurityConfig().getAuthenticatorName())) {
+                pipeline.submit(authenticationManager, new SetupPipeline.Stage(STAGE_DEFAULT_AUTHENTICATOR) {
+                    @Override
+                    void run() throws Exception {
+                        sMSS.getCredentialStoreService().unlock();
+                    }
+                });
+            } else {
+                pipeline.submit(authenticationManager);
+            }
+            OMMobileSecurityException exception = null;
             try {
-                sMSS.getMobileSecurityConfig().initialize(sMSS.getApplicationContext(), sMSS.getConnectionHandler());
+                pipeline.run(STAGE_CONFIGURATION, new SetupPipeline.Task<OMMobileSecurityException>() {
+                    @Override
+                    public void run() throws OMMobileSecurityException {
+                        sMSS.getMobileSecurityConfig().initialize(sMSS.getApplicationContext(), connectionHandler);
+                    }
+                });
             } catch (OMMobileSecurityException e) {
-                return e;
+                exception = e;
             }
-            return null;
+            pipeline.await(SETUP_STAGES_TIMEOUT_SECS, TimeUnit.SECONDS);
+            sMSS.mSetupStageTimes = pipeline.getStageTimes();
+            return exception;
         }
 
         @Override
@@ -915,6 +1035,17 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
     }
 
 
+    /**
+     * Returns the time in milliseconds taken by each stage of the last
+     * {@link #setup()}, in the order in which they completed, or an empty map
+     * if the setup did not have to initialize anything.
+     *
+     * @hide
+     */
+    public Map<String, Long> getSetupStageTimes() {
+        return mSetupStageTimes;
+    }
+
     private void invokeSetupCompleteCallback(OMMobileSecurityException e) {
         if (e != null) {
             getCallback().onSetupCompleted(this, null, e);
@@ -1117,7 +1248,7 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
      * @param connectionTimeout connection timeout in seconds.
      * @return an instance of {@link OMConnectionHandler}
      */
-    public OMConnectionHandler getConnectionHandler(int connectionTimeout) {
+    public synchronized OMConnectionHandler getConnectionHandler(int connectionTimeout) {
         if (mConnectionHandler == null) {
             boolean handleClientCert = mMobileSecurityConfig.isClientCertificateEnabled();
             mConnectionHandler = new OMConnectionHandler(
@@ -1140,7 +1271,7 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
         return cryptoService;
     }
 
-    public OMCredentialStore getCredentialStoreService() {
+    public synchronized OMCredentialStore getCredentialStoreService() {
         if (credentialStoreService == null) {
             credentialStoreService = new OMCredentialStore(getApplicationContext(),
                     getMobileSecurityConfig().getAuthenticatorName(),
@@ -1175,6 +1306,52 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
         return mAuthContextCallback;
     }
 
+    /**
+     * Sets the callback notified when an OAuth access token is refreshed.
+     *
+     * @hide
+     */
+    public void setTokenRefreshCallback(OMTokenRefreshCallback tokenRefreshCallback) {
+        mTokenRefreshCallback = tokenRefreshCallback;
+    }
+
+    /**
+     * @hide
+     */
+    public OMTokenRefreshCallback getTokenRefreshCallback() {
+        return mTokenRefreshCallback;
+    }
+
+    /**
+     * Returns the origin of the authorization endpoint the next
+     * {@link #authenticate()} opens in the external browser, so that the
+     * browser can connect to it ahead of time. Only the origin is returned:
+     * the front channel request itself carries a state, nonce and PKCE code
+     * challenge, and is built when the authentication starts, so that a
+     * prefetch can not complete or consume it.
+     *
+     * @return the origin URL, or null if the next authentication does not
+     * open a front channel request in the external browser.
+     * @hide
+     */
+    public String getExternalBrowserWarmupUrl() {
+        if (!(mMobileSecurityConfig instanceof OMOAuthMobileSecurityConfiguration)) {
+            return null;
+        }
+        OMOAuthMobileSecurityConfiguration oauthConfig = (OMOAuthMobileSecurityConfiguration) mMobileSecurityConfig;
+        if (oauthConfig.getOAuthBrowserMode() != OMMobileSecurityConfiguration.BrowserMode.EXTERNAL
+                || oauthConfig.isClientRegistrationRequired()
+                || (oauthConfig.getOAuthzGrantType() != OAuthAuthorizationGrantType.AUTHORIZATION_CODE
+                && oauthConfig.getOAuthzGrantType() != OAuthAuthorizationGrantType.IMPLICIT)) {
+            return null;
+        }
+        URL authorizationEndpoint = oauthConfig.getOAuthAuthorizationEndpoint();
+        if (authorizationEndpoint == null) {
+            return null;
+        }
+        return authorizationEndpoint.getProtocol() + "://" + authorizationEndpoint.getAuthority() + "/";
+    }
+
     private void resetAuthServiceManager() {
         final Object lock = mASMLock;
         synchronized (lock) {
@@ -1240,6 +1417,54 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
         }
     }
 
+    /**
+     * Stops the background work of the current authentication context: the
+     * proactive refresh of the OAuth access tokens, and the idle and session
+     * timers. To be called when this instance is no longer used. The tokens
+     * and cookies are left as they are.
+     *
+     * @return true if no background work of the authentication context is
+     * left running.
+     * @hide
+     */
+    public boolean dispose() {
+        AuthenticationServiceManager asm;
+        final Object lock = mASMLock;
+        synchronized (lock) {
+            asm = mASM;
+        }
+        OMAuthenticationContext authenticationContext =
+                asm == null ? null : asm.retrieveAuthenticationContext();
+        if (authenticationContext == null) {
+            return true;
+        }
+        authenticationContext.stopTokenRefresh();
+        TimeoutManager timeoutManager = authenticationContext.getTimeoutManager();
+        if (timeoutManager != null) {
+            timeoutManager.stopTimers();
+        }
+        return !authenticationContext.isTokenRefreshRunning()
+                && (timeoutManager == null || timeoutManager.isStopped());
+    }
+
+    /**
+     * Releases the authentication services cached by the SDK which can be
+     * created again on demand. Applications should call this from
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     *
+     * @param level the memory trim level
+     */
+    public void onTrimMemory(int level) {
+        AuthenticationServiceManager asm;
+        final Object lock = mASMLock;
+        synchronized (lock) {
+            asm = mASM;
+        }
+        if (asm != null) {
+            asm.trimAuthServices(level);
+        }
+    }
+
     /**
      * @hide
      */
@@ -1260,6 +1485,7 @@ public void authenticate(final OMAuthenticationRequest omAuthRequest)
         OMAuthenticationContext authenticationContext = mASM.retrieveAuthenticationContext();
         if (authenticationContext != null) {
             authenticationContext.getTimeoutManager().stopTimers();
+            authenticationContext.stopTokenRefresh();
             authenticationContext.deleteCookies();
         }
         resetAuthServiceManager();
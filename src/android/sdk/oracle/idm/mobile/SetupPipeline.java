@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
+
+/**
+ * Runs the independent parts of {@link OMMobileSecurityService#setup()}
+ * concurrently on the SDK executor, and waits for all of them before the
+ * setup is reported as completed.
+ * <p>
+ * Stages which depend on each other are submitted together as one chain and
+ * run in order. A chain which has not been picked up by the executor when
+ * the setup reaches the barrier is run by the setup thread itself, so the
+ * setup can not wait on a pool which is busy with the setup. The time taken
+ * by every stage is logged and available from {@link #getStageTimes()}.
+ *
+ * @hide
+ */
+class SetupPipeline {
+    private static final String TAG = SetupPipeline.class.getSimpleName();
+
+    /**
+     * A unit of work of the setup. Failures are logged and do not fail the
+     * setup; the work is done again lazily when it is first needed.
+     */
+    abstract static class Stage {
+        private final String mName;
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    private final List<Chain> mChains = new ArrayList<>();
+    private final Map<String, Long> mStageTimes = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    private final long mStartTime = System.currentTimeMillis();
+
+    /**
+     * Submits the stages to the executor, to be run one after the other.
+     */
+    void submit(Stage... stages) {
+        final Chain chain = new Chain(stages);
+        mChains.add(chain);
+        OMExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                chain.runIfNotStarted();
+            }
+        }, OMExecutor.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Runs the stage on the calling thread, timing it like the submitted
+     * ones. Unlike those, its failure is thrown to the caller.
+     */
+    <T extends Exception> void run(String name, Task<T> task) throws T {
+        long start = System.currentTimeMillis();
+        try {
+            task.run();
+        } finally {
+            recordTime(name, start);
+        }
+    }
+
+    /**
+     * Work run on the setup thread, which may fail the setup.
+     */
+    interface Task<T extends Exception> {
+        void run() throws T;
+    }
+
+    /**
+     * The completion barrier: returns once all the submitted stages are
+     * done, or the timeout has elapsed.
+     *
+     * @return false if some stages were still running after the timeout.
+     */
+    boolean await(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Chain chain : mChains) {
+            chain.runIfNotStarted();
+        }
+        boolean completed = true;
+        for (Chain chain : mChains) {
+            try {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !chain.mDone.await(remaining, TimeUnit.NANOSECONDS)) {
+                    OMLog.error(TAG, "Setup stage " + chain.mStages[0].getName() + " did not complete in time");
+                    completed = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        OMLog.debug(TAG, "Setup took " + (System.currentTimeMillis() - mStartTime) + " ms, stages : "
+                + getStageTimes());
+        return completed;
+    }
+
+    /**
+     * The time in milliseconds taken by each stage completed so far.
+     */
+    Map<String, Long> getStageTimes() {
+        synchronized (mStageTimes) {
+            return new LinkedHashMap<>(mStageTimes);
+        }
+    }
+
+    private void recordTime(String name, long start) {
+        long time = System.currentTimeMillis() - start;
+        mStageTimes.put(name, time);
+        OMLog.debug(TAG, "Setup stage " + name + " took " + time + " ms");
+    }
+
+    private class Chain {
+        private final Stage[] mStages;
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        Chain(Stage[] stages) {
+            mStages = stages;
+        }
+
+        void runIfNotStarted() {
+            if (!mStarted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                for (Stage stage : mStages) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        stage.run();
+                    } catch (Exception e) {
+                        OMLog.error(TAG, "Setup stage " + stage.getName() + " failed", e);
+                    } finally {
+                        recordTime(stage.getName(), start);
+                    }
+                }
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+}
@@ -281,6 +281,14 @@ public abstract class AuthenticationService {
 
     public abstract Type getType();
 
+    /**
+     * Clears the state kept by this service from the previous authentication
+     * flow. Service instances are created once per configuration by the
+     * {@link AuthenticationServiceManager} and reused across flows.
+     */
+    void resetState() {
+    }
+
 
     /**
      * Add the identity domain in the map passed based on SDK configuration.
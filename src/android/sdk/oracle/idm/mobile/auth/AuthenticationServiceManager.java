@@ -6,6 +6,7 @@
 
 package oracle.idm.mobile.auth;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.AsyncTask;
 
@@ -17,12 +18,15 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import oracle.idm.mobile.OMAuthenticationRequest;
 import oracle.idm.mobile.OMErrorCode;
@@ -49,6 +53,7 @@ import oracle.idm.mobile.connection.SSLExceptionEvent;
 import oracle.idm.mobile.credentialstore.OMCredential;
 import oracle.idm.mobile.credentialstore.OMCredentialStore;
 import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
 
 import static oracle.idm.mobile.OMSecurityConstants.Param.*;
 import static oracle.idm.mobile.OMSecurityConstants.*;
@@ -96,11 +101,13 @@ public class AuthenticationServiceManager {
     private OMMobileSecurityService mMSS;
     private AuthStateTransition mStateTransition;
     private OMMobileSecurityServiceCallback mAppCallback;
-    private Map<AuthenticationService.Type, AuthenticationService> mAuthServices;
+    //registry of the authentication service instances, at most one per service type
+    private final ConcurrentMap<AuthenticationService.Type, AuthenticationService> mAuthServices = new ConcurrentHashMap<>();
     //map holding each authentication service type and their respective completion handlers
     private Map<AuthenticationService.Type, OMAuthenticationCompletionHandler> mAuthServiceHandlers;
     private ASMInputController mASMInputController;
     private OAuthConnectionsUtil mOAuthConnectionsUtil;
+    private final OAuthTokenRefreshCoordinator mTokenRefreshCoordinator = new OAuthTokenRefreshCoordinator();
     private OMAuthenticationContext mAuthContext;
     private RCUtility mRCUtility;
 
@@ -127,6 +134,10 @@ public class AuthenticationServiceManager {
         return mOAuthConnectionsUtil;
     }
 
+    OAuthTokenRefreshCoordinator getTokenRefreshCoordinator() {
+        return mTokenRefreshCoordinator;
+    }
+
     boolean isOAuthOrOpenID() {
         return (isOpenID || isOAuth);
     }
@@ -199,10 +210,7 @@ public class AuthenticationServiceManager {
         return mASMInputController;
     }
 
-    Map<AuthenticationService.Type, AuthenticationService> getAuthServiceMap() {
-        if (mAuthServices == null) {
-            mAuthServices = new ConcurrentHashMap<>();
-        }
+    ConcurrentMap<AuthenticationService.Type, AuthenticationService> getAuthServiceMap() {
         return mAuthServices;
     }
 
@@ -216,16 +224,34 @@ public class AuthenticationServiceManager {
     }
 
 
-    //unloads the auth services from the map.
-    void unloadAuthServices() {
+    /**
+     * Clears the state kept by the cached authentication services from the
+     * previous authentication flow, so that they can be reused for a new one.
+     */
+    void resetAuthServices() {
+        for (AuthenticationService authService : getAuthServiceMap().values()) {
+            authService.resetState();
+        }
+    }
+
+    /**
+     * Releases the cached authentication services which are cheap to create
+     * again, when the system asks the app to trim its memory. These are
+     * created again on demand. The OAuth service is kept, as it holds the
+     * token introspection cache.
+     *
+     * @param level the level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     * @hide
+     */
+    public void trimAuthServices(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
         Map<AuthenticationService.Type, AuthenticationService> authServiceMap = getAuthServiceMap();
         if (!authServiceMap.isEmpty()) {
             authServiceMap.remove(AuthenticationService.Type.OFFLINE_SERVICE);
             authServiceMap.remove(AuthenticationService.Type.BASIC_SERVICE);
-
-            if (getOAuthConnectionsUtil() != null)
-                authServiceMap.remove(getOAuthServiceType());
-            OMLog.info(TAG, " unloaded all the auth services");
+            OMLog.info(TAG, "Released the cached auth services, trim memory level: " + level);
         }
     }
 
@@ -249,17 +275,20 @@ public class AuthenticationServiceManager {
         return AuthenticationService.Type.OAUTH20_RO_SERVICE;
     }
 
-    private void checkBeforeLoad(Map<AuthenticationService.Type, AuthenticationService> authServices, AuthenticationService.Type serviceName) {
-        if (!authServices.containsKey(serviceName)) {
-            authServices.put(serviceName,
-                    getAuthService(serviceName));
+    private void checkBeforeLoad(List<AuthenticationService> authServices, AuthenticationService.Type serviceName) {
+        AuthenticationService authService = getAuthService(serviceName);
+        if (authService != null) {
+            authServices.add(authService);
         }
     }
 
-    void loadAllAuthenticationServices() {
+    /**
+     * Returns the authentication services applicable for the current
+     * configuration, creating the ones which are not yet cached.
+     */
+    List<AuthenticationService> loadAllAuthenticationServices() {
 
-        Map<AuthenticationService.Type, AuthenticationService> authServices = getAuthServiceMap();
-        AuthenticationService.Type serviceName;
+        List<AuthenticationService> authServices = new ArrayList<>();
         if (isBasic) {
             checkBeforeLoad(authServices, AuthenticationService.Type.BASIC_SERVICE);
         }
@@ -281,6 +310,30 @@ public class AuthenticationServiceManager {
         if (isClientRegistration) {
             checkBeforeLoad(authServices, AuthenticationService.Type.CLIENT_REGISTRATION_SERVICE);
         }
+        return authServices;
+    }
+
+    /**
+     * Returns the authentication services which can invalidate the given
+     * authentication context. An OpenID Connect context is validated by the
+     * OpenID service alone, which checks the ID token locally, along with the
+     * offline and client registration services when they apply. Other
+     * contexts are validated by all the services of the configuration.
+     */
+    List<AuthenticationService> loadAuthenticationServicesFor(OMAuthenticationContext authContext) {
+        if (authContext.getAuthenticationProvider() != OMAuthenticationContext.AuthenticationProvider.OPENIDCONNECT10) {
+            return loadAllAuthenticationServices();
+        }
+        List<AuthenticationService> authServices = new ArrayList<>(3);
+        if (isOfflineAllowed
+                && authContext.getAuthenticatedMode() == OMAuthenticationContext.AuthenticationMode.OFFLINE) {
+            checkBeforeLoad(authServices, AuthenticationService.Type.OFFLINE_SERVICE);
+        }
+        checkBeforeLoad(authServices, AuthenticationService.Type.OPENIDCONNECT10);
+        if (isClientRegistration) {
+            checkBeforeLoad(authServices, AuthenticationService.Type.CLIENT_REGISTRATION_SERVICE);
+        }
+        return authServices;
     }
 
     public AuthenticationService getAuthService(AuthenticationService.Type type) {
@@ -340,8 +393,11 @@ public class AuthenticationServiceManager {
             }
         }
         if (authService != null) {
-            //add this to the map.
-            getAuthServiceMap().put(type, authService);
+            //add this to the map, unless another thread got there first.
+            AuthenticationService existing = getAuthServiceMap().putIfAbsent(type, authService);
+            if (existing != null) {
+                authService = existing;
+            }
         }
 
         return authService;
@@ -402,6 +458,7 @@ public class AuthenticationServiceManager {
                 }
             }
         }
+        resetAuthServices();
         String authKey = getMSS().getMobileSecurityConfig().getAuthenticationKey();
 
         //determine OAuth?
@@ -846,7 +903,7 @@ public class AuthenticationServiceManager {
                 cAuthContext.getInputParams().putAll(input);
             }
             cAuthTask = new AuthenticationAsyncTask(cCallback, cAuthRequest, cAuthService, cAuthContext);
-            cAuthTask.execute();
+            cAuthTask.executeOnExecutor(OMExecutor.getInstance().getExecutor(OMExecutor.Priority.INTERACTIVE));
         }
 
         @Override
@@ -862,6 +919,8 @@ public class AuthenticationServiceManager {
         public void onCancel() {
             OMLog.trace(TAG, "onCancel");
             if (shouldCancel()) {
+                /* A task still waiting in the SDK executor is dropped, a running one is
+                interrupted so that its connection is abandoned. */
                 OMLog.trace(TAG, "cancelling the already running task");
                 cAuthTask.cancel(true);
                 cAuthTask = null;
@@ -929,7 +988,8 @@ public class AuthenticationServiceManager {
                 }
                 IDCSClientRegistrationService clRegService = (IDCSClientRegistrationService) getAuthService(AuthenticationService.Type.CLIENT_REGISTRATION_SERVICE);
                 clRegService.storeIDCSClientRegistrationToken(mMSS.getMobileSecurityConfig().getAuthenticationURL().toString(), loginHint,
-                        (IDCSClientRegistrationToken) authContext.getTokens().get(OMSecurityConstants.CLIENT_REGISTRATION_TOKEN));
+                        (IDCSClientRegistrationToken) authContext.getTokens().get(OMSecurityConstants.CLIENT_REGISTRATION_TOKEN),
+                        (OAuthToken) authContext.getInputParams().get(OMSecurityConstants.Param.IDCS_CLIENT_REGISTRATION_ACCESS_TOKEN));
             }
         }
 
@@ -983,6 +1043,9 @@ public class AuthenticationServiceManager {
     }
 
     void setAuthenticationContext(OMAuthenticationContext authContext) {
+        if (mAuthContext != null && mAuthContext != authContext) {
+            mAuthContext.stopTokenRefresh();
+        }
         this.mAuthContext = authContext;
         if (authContext == null) {
             OMLog.debug(TAG + "_setAuthenticationContext",
@@ -1173,6 +1236,14 @@ public class AuthenticationServiceManager {
      * @hide
      */
     public void setOAuthConnUtil(OAuthConnectionsUtil oAuthConnUtil) {
+        if (mOAuthConnectionsUtil != null && mOAuthConnectionsUtil != oAuthConnUtil) {
+            // these services hold a logout handler bound to the OAuth state of
+            // the previous connection util.
+            Map<AuthenticationService.Type, AuthenticationService> authServiceMap = getAuthServiceMap();
+            authServiceMap.remove(AuthenticationService.Type.OAUTH20_AC_SERVICE);
+            authServiceMap.remove(AuthenticationService.Type.CLIENT_REGISTRATION_SERVICE);
+            authServiceMap.remove(AuthenticationService.Type.OPENIDCONNECT10);
+        }
         this.mOAuthConnectionsUtil = oAuthConnUtil;
     }
 
@@ -31,6 +31,7 @@ import oracle.idm.mobile.connection.OMHTTPRequest;
 import oracle.idm.mobile.connection.OMHTTPResponse;
 import oracle.idm.mobile.credentialstore.OMCredential;
 import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
 
 import static oracle.idm.mobile.OMSecurityConstants.Challenge.*;
 
@@ -212,6 +213,12 @@ class BasicAuthenticationService extends AuthenticationService implements Challe
         return sessionTimedOut;
     }
 
+    @Override
+    void resetState() {
+        idleTimeOut = false;
+        sessionTimedOut = false;
+    }
+
     public boolean isValid(OMAuthenticationContext authContext, boolean validateOnline) {
         OMLog.info(TAG, "isValid");
         if (authContext.getAuthenticationProvider() != AuthenticationProvider.BASIC) {
@@ -222,6 +229,9 @@ class BasicAuthenticationService extends AuthenticationService implements Challe
         Date currentTime = Calendar.getInstance().getTime();
 
         setIdleTimeOut(false);// reseting the value .
+        // the service is cached across checks, so do not carry over the
+        // outcome of the previous one.
+        sessionTimedOut = false;
 
         // Non-zero check for getSessionExpInSecs() added to ignore session
         // expiry if session timeout value is 0.
@@ -288,7 +298,8 @@ class BasicAuthenticationService extends AuthenticationService implements Challe
                     mASM.getMSS().setLogoutInProgress(true);
                 }
                 new AccessLogoutUrlTask(mASM.getMSS().getMobileSecurityConfig(),
-                        isLogoutCall, authContext).execute();
+                        isLogoutCall, authContext).executeOnExecutor(
+                        OMExecutor.getInstance().getExecutor(OMExecutor.Priority.INTERACTIVE));
             }
         }
     }
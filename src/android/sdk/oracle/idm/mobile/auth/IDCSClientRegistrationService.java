@@ -41,6 +41,7 @@ import oracle.idm.mobile.credentialstore.OMCredentialStore;
 import oracle.idm.mobile.crypto.CryptoScheme;
 import oracle.idm.mobile.crypto.OMSecureStorageService;
 import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
 
 import static oracle.idm.mobile.OMSecurityConstants.Challenge.MOBILE_SECURITY_EXCEPTION;
 import static oracle.idm.mobile.OMSecurityConstants.Challenge.REDIRECT_RESPONSE_KEY;
@@ -211,55 +212,17 @@ class IDCSClientRegistrationService extends OAuthAuthorizationCodeService {
                     }*/
                     }
 
-                    //get client assertion
-
-                    Map<String, String> headers = new HashMap<>();
-                    headers.put("Authorization", "Bearer " + atForReg.getValue());
-                    headers.put("Content-Type", OMSecurityConstants.ConnectionConstants.JSON_CONTENT_TYPE.getValue());
-                    JSONObject payload = new JSONObject();
-                    payload.put("client_id", oicConfig.getOAuthClientID());
-                    Context appContext = mASM.getApplicationContext();
-                    PackageManager pm = appContext.getPackageManager();
-                    String packageName = appContext.getApplicationInfo().packageName;
-                    payload.put(ANDROID_PACKAGE_NAME, packageName);
-
-                    PackageInfo pInfo = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
-                    Signature[] signatures = pInfo.signatures;
-                    byte[] cert = signatures[0].toByteArray();
-                    X509Certificate signingCert = (X509Certificate) CertificateFactory.getInstance("X509").generateCertificate(new ByteArrayInputStream(cert));
-                    String fingerPrint = OMCertificateService.getFingerPrint(signingCert, CryptoScheme.SHA512);
-                    payload.put(ANDROID_SIGNING_CERT_FINGERPRINT, fingerPrint);
-                    payload.put(ANDROID_DEVICE_ID, Settings.Secure.getString(appContext.getContentResolver(),
-                            Settings.Secure.ANDROID_ID));
-                    if (enableReqResVerbose) {
-                        OMLog.debug(TAG, "Payload for client registration : " + payload);
-                    }
-                    OMHTTPResponse regResponse = mASM.getMSS().getConnectionHandler().httpPost(new URL(registrationEP), headers, payload.toString(), OMSecurityConstants.ConnectionConstants.JSON_CONTENT_TYPE.getValue(),
-                            (OMHTTPRequest.REQUIRE_RESPONSE_CODE | OMHTTPRequest.REQUIRE_RESPONSE_STRING));
-                    if (regResponse != null && regResponse.getResponseCode() / 100 == 2) {
-                        OMLog.debug(TAG, "Response Code from Registration EP: " + regResponse.getResponseCode());
-                        String clientAssertion = regResponse.getResponseStringOnSuccess();
-                        if (enableReqResVerbose) {
-                            OMLog.debug(TAG, "Response: " + clientAssertion);
-                        }
-                        IDCSClientRegistrationToken newToken = new IDCSClientRegistrationToken(clientAssertion);
-                        if (!newToken.isTokenExpired()) {
-                            OMLog.info(TAG, "A valid client registration token is available now.");
-                            onRegistrationSuccess(authContext, newToken);
-                            return null;
-                        } else {
-                            OMLog.error(TAG, "Received invalid or null IDCS Client Registration Token");
-                            onRegistrationFailed(new OMMobileSecurityException(OMErrorCode.IDCS_CLIENT_REGISTRATION_FAILED), authContext);
-                            return null;
-                        }
-
+                    IDCSClientRegistrationToken newToken = register(registrationEP, atForReg);
+                    if (newToken == null) {
+                        onRegistrationFailed(new OMMobileSecurityException(OMErrorCode.IDCS_CLIENT_REGISTRATION_FAILED), authContext);
+                    } else if (!newToken.isTokenExpired()) {
+                        OMLog.info(TAG, "A valid client registration token is available now.");
+                        onRegistrationSuccess(authContext, newToken);
+                        return null;
                     } else {
-                        String reason = "Response from server is null or not OK";
-                        if (regResponse != null) {
-                            reason = regResponse.getResponseStringOnFailure();
-                        }
-                        OMLog.error(TAG, reason);
+                        OMLog.error(TAG, "Received invalid or null IDCS Client Registration Token");
                         onRegistrationFailed(new OMMobileSecurityException(OMErrorCode.IDCS_CLIENT_REGISTRATION_FAILED), authContext);
+                        return null;
                     }
                 } catch (JSONException | MalformedURLException | PackageManager.NameNotFoundException e) {
                     OMLog.error(TAG, e.getMessage(), e);
@@ -283,6 +246,55 @@ class IDCSClientRegistrationService extends OAuthAuthorizationCodeService {
     }
 
 
+    /**
+     * Registers the client at the registration endpoint, using an access
+     * token obtained for it.
+     *
+     * @return the client registration token, or null if the registration failed.
+     */
+    private IDCSClientRegistrationToken register(String registrationEP, OAuthToken atForReg)
+            throws OMMobileSecurityException, JSONException, MalformedURLException,
+            PackageManager.NameNotFoundException, CertificateException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer " + atForReg.getValue());
+        headers.put("Content-Type", OMSecurityConstants.ConnectionConstants.JSON_CONTENT_TYPE.getValue());
+        JSONObject payload = new JSONObject();
+        payload.put("client_id", mOAuthConfig.getOAuthClientID());
+        Context appContext = mASM.getApplicationContext();
+        PackageManager pm = appContext.getPackageManager();
+        String packageName = appContext.getApplicationInfo().packageName;
+        payload.put(ANDROID_PACKAGE_NAME, packageName);
+
+        PackageInfo pInfo = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+        Signature[] signatures = pInfo.signatures;
+        byte[] cert = signatures[0].toByteArray();
+        X509Certificate signingCert = (X509Certificate) CertificateFactory.getInstance("X509").generateCertificate(new ByteArrayInputStream(cert));
+        String fingerPrint = OMCertificateService.getFingerPrint(signingCert, CryptoScheme.SHA512);
+        payload.put(ANDROID_SIGNING_CERT_FINGERPRINT, fingerPrint);
+        payload.put(ANDROID_DEVICE_ID, Settings.Secure.getString(appContext.getContentResolver(),
+                Settings.Secure.ANDROID_ID));
+        if (enableReqResVerbose) {
+            OMLog.debug(TAG, "Payload for client registration : " + payload);
+        }
+        OMHTTPResponse regResponse = mASM.getMSS().getConnectionHandler().httpPost(new URL(registrationEP), headers, payload.toString(), OMSecurityConstants.ConnectionConstants.JSON_CONTENT_TYPE.getValue(),
+                (OMHTTPRequest.REQUIRE_RESPONSE_CODE | OMHTTPRequest.REQUIRE_RESPONSE_STRING));
+        if (regResponse != null && regResponse.getResponseCode() / 100 == 2) {
+            OMLog.debug(TAG, "Response Code from Registration EP: " + regResponse.getResponseCode());
+            String clientAssertion = regResponse.getResponseStringOnSuccess();
+            if (enableReqResVerbose) {
+                OMLog.debug(TAG, "Response: " + clientAssertion);
+            }
+            return new IDCSClientRegistrationToken(clientAssertion);
+        } else {
+            String reason = "Response from server is null or not OK";
+            if (regResponse != null) {
+                reason = regResponse.getResponseStringOnFailure();
+            }
+            OMLog.error(TAG, reason);
+            return null;
+        }
+    }
+
     @Override
     public void logout(OMAuthenticationContext authContext, boolean isDeleteUnPwd,
                        boolean isDeleteCookies, boolean isDeleteTokens, boolean isLogoutCall) {
@@ -308,16 +320,57 @@ class IDCSClientRegistrationService extends OAuthAuthorizationCodeService {
     void removeIDCSClientRegistrationToken(String configURL, String loginHint) {
         OMCredentialStore credService = mASM.getMSS().getCredentialStoreService();
         credService.remove(configURL + "_" + loginHint);
+        IDCSClientRegistrationTokenCache.remove(configURL + "_" + loginHint);
         OMLog.debug(TAG, "Removed IDCS ClientRegistration Token for user: " + loginHint + " from Store!");
     }
 
-    void storeIDCSClientRegistrationToken(String configURL, String loginHint, IDCSClientRegistrationToken token) {
+    /**
+     * @param registrationAccessToken the access token used to obtain the
+     *                                registration token, if it was obtained during this
+     *                                login. It is kept in memory to renew the
+     *                                registration token before it expires.
+     */
+    void storeIDCSClientRegistrationToken(String configURL, String loginHint, IDCSClientRegistrationToken token,
+                                          OAuthToken registrationAccessToken) {
 
         OMCredentialStore credService = mASM.getMSS().getCredentialStoreService();
         credService.putString(configURL + "_" + loginHint, token.toString());
+        IDCSClientRegistrationTokenCache.put(configURL + "_" + loginHint, token, registrationAccessToken);
         OMLog.debug(TAG, "Stored IDCS ClientRegistration Token for user: " + loginHint + " to the Store!");
     }
 
+    /**
+     * Registers the client again in the background if the registration
+     * token for the user is about to expire and this is possible without
+     * user interaction, so that the next login does not have to.
+     */
+    private void renewInBackgroundIfDue(final String configURL, final String loginHint) {
+        final OAuthToken atForReg = IDCSClientRegistrationTokenCache.claimRenewal(configURL + "_" + loginHint);
+        final String registrationEP = mOAuthConfig.getClientRegistrationEndpoint();
+        if (atForReg == null || TextUtils.isEmpty(registrationEP)) {
+            return;
+        }
+        OMExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                OMLog.debug(TAG, "Renewing the client registration token for the user: " + loginHint);
+                try {
+                    IDCSClientRegistrationToken newToken = register(registrationEP, atForReg);
+                    if (newToken != null && !newToken.isTokenExpired()) {
+                        storeIDCSClientRegistrationToken(configURL, loginHint, newToken, atForReg);
+                        return;
+                    }
+                    OMLog.error(TAG, "Could not renew the client registration token");
+                } catch (OMMobileSecurityException e) {
+                    OMLog.error(TAG, "Could not renew the client registration token: " + e.getErrorMessage());
+                } catch (JSONException | MalformedURLException | PackageManager.NameNotFoundException
+                        | CertificateException e) {
+                    OMLog.error(TAG, e.getMessage(), e);
+                }
+            }
+        }, OMExecutor.Priority.BACKGROUND);
+    }
+
     @Override
     public boolean isValid(OMAuthenticationContext authContext, boolean validateOnline) {
         if (mOAuthConfig.isClientRegistrationRequired()) {
@@ -341,17 +394,26 @@ class IDCSClientRegistrationService extends OAuthAuthorizationCodeService {
         return true;
     }
 
-    IDCSClientRegistrationToken getIDCSClientRegistrationToken(String configURL, String loginHint) throws OMMobileSecurityException {
-        OMCredentialStore credService = mASM.getMSS().getCredentialStoreService();
-        String tokenString = credService.getString(configURL + "_" + loginHint);
-        if (!TextUtils.isEmpty(tokenString)) {
-            IDCSClientRegistrationToken token = new IDCSClientRegistrationToken(tokenString);
-            OMLog.debug(TAG, "Retrieved IDCS client registration token for user: " + loginHint);
-            return token;
-        } else {
-            OMLog.debug(TAG, "IDCS client registration token for user : " + loginHint + " not found in store.");
+    IDCSClientRegistrationToken getIDCSClientRegistrationToken(final String configURL, final String loginHint) throws OMMobileSecurityException {
+        IDCSClientRegistrationToken token = IDCSClientRegistrationTokenCache.get(configURL + "_" + loginHint,
+                new IDCSClientRegistrationTokenCache.Loader() {
+                    @Override
+                    public IDCSClientRegistrationToken load() throws OMMobileSecurityException {
+                        OMCredentialStore credService = mASM.getMSS().getCredentialStoreService();
+                        String tokenString = credService.getString(configURL + "_" + loginHint);
+                        if (!TextUtils.isEmpty(tokenString)) {
+                            IDCSClientRegistrationToken token = new IDCSClientRegistrationToken(tokenString);
+                            OMLog.debug(TAG, "Retrieved IDCS client registration token for user: " + loginHint);
+                            return token;
+                        } else {
+                            OMLog.debug(TAG, "IDCS client registration token for user : " + loginHint + " not found in store.");
+                        }
+                        return null;
+                    }
+                });
+        if (token != null && !token.isTokenExpired()) {
+            renewInBackgroundIfDue(configURL, loginHint);
         }
-        return null;
+        return token;
     }
 }
-
@@ -30,6 +30,10 @@ import oracle.idm.mobile.logging.OMLog;
 public class IDCSClientRegistrationToken extends OAuthToken {
 
     private static final String TAG = IDCSClientRegistrationToken.class.getSimpleName();
+    /**
+     * Larger values of client_secret_expires_at can only be milliseconds.
+     */
+    private static final long MAX_EXPIRES_AT_SECS = 100000000000L;
 
     private String mClientID;
     private String mClientName;
@@ -78,6 +82,10 @@ public class IDCSClientRegistrationToken extends OAuthToken {
         mClientSecret = tokenJSON.optString(OMSecurityConstants.CLIENT_SECRET);
         value = mClientSecret;
         long expiresAt = tokenJSON.optLong(OMSecurityConstants.CLIENT_SECRET_EXPIRES_AT);// SENDS IN SECONDS
+        if (expiresAt > MAX_EXPIRES_AT_SECS) {
+            // stored by an earlier version, in milliseconds.
+            expiresAt /= 1000;
+        }
         expiryTime = new Date(expiresAt * 1000);
         JSONArray redirectUrisJSON = tokenJSON.optJSONArray(OMSecurityConstants.REDIRECT_URIS);
         if (redirectUrisJSON != null) {
@@ -151,7 +159,7 @@ public class IDCSClientRegistrationToken extends OAuthToken {
             tokenJSON.put(OMSecurityConstants.CLIENT_ID, mClientID);
             tokenJSON.put(OMSecurityConstants.CLIENT_NAME, mClientName);
             tokenJSON.put(OMSecurityConstants.CLIENT_SECRET, mClientSecret);
-            tokenJSON.put(OMSecurityConstants.CLIENT_SECRET_EXPIRES_AT, expiryTime.getTime());
+            tokenJSON.put(OMSecurityConstants.CLIENT_SECRET_EXPIRES_AT, expiryTime.getTime() / 1000);
             //redirect URIS
             tokenJSON.put(OMSecurityConstants.REDIRECT_URIS, getListJSON(mRedirectUris));
             //grant types
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import oracle.idm.mobile.OMMobileSecurityException;
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * In memory cache of the IDCS client registration tokens, in front of the
+ * credential store, so that checking for a registration token does not
+ * decrypt it from the secure storage every time. The absence of a token is
+ * cached as well, until a token is stored for the same key.
+ * <p>
+ * Along with a token registered during this process, the access token which
+ * was used for the registration is kept in memory only. While it is valid,
+ * the client can be registered again without user interaction, which is
+ * done once the registration token enters its renewal window: the last
+ * {@link #RENEWAL_FRACTION} of its lifetime, and at least
+ * {@link #MIN_RENEWAL_WINDOW_MILLIS}.
+ *
+ * @hide
+ */
+class IDCSClientRegistrationTokenCache {
+    private static final String TAG = IDCSClientRegistrationTokenCache.class.getSimpleName();
+    private static final int RENEWAL_FRACTION = 5;
+    private static final long MIN_RENEWAL_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Reads the token from the credential store.
+     */
+    interface Loader {
+        IDCSClientRegistrationToken load() throws OMMobileSecurityException;
+    }
+
+    private static final ConcurrentMap<String, Entry> sEntries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final IDCSClientRegistrationToken token;
+        final OAuthToken registrationAccessToken;
+        final long renewAt;
+        final AtomicBoolean renewing = new AtomicBoolean();
+
+        Entry(IDCSClientRegistrationToken token, OAuthToken registrationAccessToken) {
+            this.token = token;
+            this.registrationAccessToken = registrationAccessToken;
+            this.renewAt = renewalTime(token);
+        }
+
+        private static long renewalTime(IDCSClientRegistrationToken token) {
+            Date expiry = token != null ? token.getExpiryTime() : null;
+            if (expiry == null) {
+                return Long.MAX_VALUE;
+            }
+            long remaining = expiry.getTime() - System.currentTimeMillis();
+            return expiry.getTime() - Math.max(remaining / RENEWAL_FRACTION, MIN_RENEWAL_WINDOW_MILLIS);
+        }
+    }
+
+    private IDCSClientRegistrationTokenCache() {
+    }
+
+    /**
+     * Returns the token for the key, reading it using the loader only if it
+     * is not in memory yet.
+     */
+    static IDCSClientRegistrationToken get(String key, Loader loader) throws OMMobileSecurityException {
+        Entry entry = sEntries.get(key);
+        if (entry == null) {
+            IDCSClientRegistrationToken token = loader.load();
+            Entry loaded = new Entry(token, null);
+            entry = sEntries.putIfAbsent(key, loaded);
+            if (entry == null) {
+                entry = loaded;
+            }
+        }
+        return entry.token;
+    }
+
+    static void put(String key, IDCSClientRegistrationToken token, OAuthToken registrationAccessToken) {
+        Entry entry = sEntries.get(key);
+        if (entry != null && entry.token == token && registrationAccessToken == null) {
+            // stored again after a login which used the cached token.
+            return;
+        }
+        sEntries.put(key, new Entry(token, registrationAccessToken));
+    }
+
+    static void remove(String key) {
+        sEntries.remove(key);
+    }
+
+    /**
+     * Claims the renewal of the token for the key, if it is due and
+     * possible without user interaction, and no other renewal is running.
+     * <p>
+     * A token is renewed at most once in the background; if that fails,
+     * it is registered again during the next login after it expires.
+     *
+     * @return the access token to register with, or null if the token
+     * should not be renewed now.
+     */
+    static OAuthToken claimRenewal(String key) {
+        Entry entry = sEntries.get(key);
+        if (entry == null || entry.token == null || System.currentTimeMillis() < entry.renewAt) {
+            return null;
+        }
+        if (entry.registrationAccessToken == null || entry.registrationAccessToken.isTokenExpired()) {
+            OMLog.debug(TAG, "Client registration token is due for renewal, it will be renewed on the next login");
+            return null;
+        }
+        return entry.renewing.compareAndSet(false, true) ? entry.registrationAccessToken : null;
+    }
+}
@@ -14,6 +14,7 @@ import org.json.JSONObject;
 
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
@@ -26,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 
 import oracle.idm.mobile.OMErrorCode;
 import oracle.idm.mobile.OMMobileSecurityException;
@@ -34,6 +36,7 @@ import oracle.idm.mobile.OMSecurityConstants;
 import oracle.idm.mobile.auth.logout.OMLogoutCompletionHandler;
 import oracle.idm.mobile.configuration.OMMobileSecurityConfiguration;
 import oracle.idm.mobile.configuration.OMOAuthMobileSecurityConfiguration;
+import oracle.idm.mobile.configuration.OMOICMobileSecurityConfiguration;
 import oracle.idm.mobile.connection.OMHTTPRequest;
 import oracle.idm.mobile.connection.OMHTTPResponse;
 import oracle.idm.mobile.logging.OMLog;
@@ -52,6 +55,7 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
     protected OMOAuthMobileSecurityConfiguration mConfig;
     protected boolean enableReqResVerbose = false;// should be false in production code
     private String mIdentityClaims;
+    private OAuthTokenIntrospector mIntrospector;
 
     OAuthAuthenticationService(AuthenticationServiceManager asm, OMAuthenticationCompletionHandler handler) {
         super(asm, handler);
@@ -68,6 +72,11 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
         //should be common for all grant types
     }
 
+    @Override
+    void resetState() {
+        logoutException = null;
+    }
+
 
     boolean isValidInternalAccessToken(OMAuthenticationContext authContext, boolean validateOnline) {
         String TAG = OAuthAuthenticationService.TAG + "_isValidInternalAT";
@@ -91,7 +100,8 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
         // check if the AccessToken is expired ?
         for (OMToken token : authContext.getOAuthTokenList()) {
             // if we have any access token which is valid then return true
-            if (isAccessToken(token) && !token.isTokenExpired()) {
+            if (isAccessToken(token) && !token.isTokenExpired()
+                    && (!validateOnline || isActiveOnServer(authContext, token))) {
                 result = true;
                 break;
             }
@@ -104,27 +114,120 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
     void clearOAuthTokens(OMAuthenticationContext authContext, boolean isLogoutCall) {
         List<OAuthToken> tokensToDelete = new ArrayList<OAuthToken>();
 
-        if (mASM.getMSS().getMobileSecurityConfig()
-                .isOfflineAuthenticationAllowed()
-                && !isLogoutCall) {
-            for (OAuthToken token : authContext.getOAuthTokenList()) {
-                if (!token.hasRefreshToken()) {
-                    tokensToDelete.add(token);
+        // same monitor as OMAuthenticationContext#replaceOAuthToken, so that a
+        // refresh completing meanwhile can not write back the cleared tokens.
+        synchronized (authContext) {
+            List<OAuthToken> tokens = authContext.getOAuthTokenList();
+            if (mASM.getMSS().getMobileSecurityConfig()
+                    .isOfflineAuthenticationAllowed()
+                    && !isLogoutCall) {
+                for (OAuthToken token : tokens) {
+                    if (!token.hasRefreshToken()) {
+                        tokensToDelete.add(token);
+                    }
                 }
-            }
 
-            OMLog.debug(TAG,
-                    "Since Offline authentication is allowed retaining "
-                            + (authContext.getOAuthTokenList().size() - tokensToDelete
-                            .size())
-                            + " access token(s), having a refresh token.");
-        } else {
-            tokensToDelete.addAll(authContext.getOAuthTokenList());
+                OMLog.debug(TAG,
+                        "Since Offline authentication is allowed retaining "
+                                + (tokens.size() - tokensToDelete.size())
+                                + " access token(s), having a refresh token.");
+            } else {
+                tokensToDelete.addAll(tokens);
+            }
+            OMLog.debug(TAG, "Cleared " + tokensToDelete.size()
+                    + " OAuth access token(s)!");
+            List<OAuthToken> remainingTokens = new ArrayList<>(tokens);
+            remainingTokens.removeAll(tokensToDelete);
+            authContext.setOAuthTokenList(remainingTokens);
         }
-        OMLog.debug(TAG, "Cleared " + tokensToDelete.size()
-                + " OAuth access token(s)!");
-        authContext.getOAuthTokenList().removeAll(tokensToDelete);
         authContext.getTokens().clear();
+        if (mIntrospector != null) {
+            mIntrospector.clear();
+        }
+        if (isLogoutCall) {
+            revokeTokens(authContext, tokensToDelete);
+        }
+    }
+
+    /**
+     * Whether the server still considers the access token active, when the
+     * application asked for tokens to be introspected using
+     * {@link OMMobileSecurityService#OM_PROP_OPENID_CONNECT_INTROSPECT_TOKENS}.
+     * Otherwise, or if the server has no introspection endpoint, returns
+     * true.
+     */
+    private boolean isActiveOnServer(final OMAuthenticationContext authContext, final OMToken token) {
+        if (!(mConfig instanceof OMOICMobileSecurityConfiguration)
+                || !((OMOICMobileSecurityConfiguration) mConfig).isIntrospectTokens()) {
+            return true;
+        }
+        final URL introspectEndpoint = ((OMOICMobileSecurityConfiguration) mConfig).getIntrospectEndpoint();
+        if (introspectEndpoint == null || TextUtils.isEmpty(token.getValue())) {
+            return true;
+        }
+        synchronized (this) {
+            if (mIntrospector == null) {
+                mIntrospector = new OAuthTokenIntrospector();
+            }
+        }
+        return mIntrospector.isActive(token.getValue(), new OAuthTokenIntrospector.Request() {
+            @Override
+            public OMHTTPResponse send() throws OMMobileSecurityException {
+                String payload;
+                try {
+                    payload = mASM.getOAuthConnectionsUtil().getBackChannelRequestForIntrospectingToken(token.getValue());
+                } catch (UnsupportedEncodingException e) {
+                    OMLog.error(TAG, e.getMessage(), e);
+                    return null;
+                }
+                return mASM.getMSS().getConnectionHandler().httpPost(introspectEndpoint,
+                        getBackChannelHeaders(mConfig, authContext.getIdentityDomain()), payload,
+                        OMSecurityConstants.ConnectionConstants.OAUTH20_CONTENT_TYPE.getValue(),
+                        (OMHTTPRequest.REQUIRE_RESPONSE_CODE | OMHTTPRequest.REQUIRE_RESPONSE_STRING));
+            }
+        });
+    }
+
+    /**
+     * Revokes the access tokens and refresh tokens which have just been
+     * removed at logout, if the server has a revocation endpoint and the
+     * application asked for it using
+     * {@link OMMobileSecurityService#OM_PROP_OPENID_CONNECT_REVOKE_TOKENS_ON_LOGOUT}.
+     */
+    private void revokeTokens(OMAuthenticationContext authContext, List<OAuthToken> tokens) {
+        if (!(mConfig instanceof OMOICMobileSecurityConfiguration)
+                || !((OMOICMobileSecurityConfiguration) mConfig).isRevokeTokensOnLogout()) {
+            return;
+        }
+        URL revocationEndpoint = ((OMOICMobileSecurityConfiguration) mConfig).getRevocationEndpoint();
+        if (revocationEndpoint == null || tokens.isEmpty()) {
+            return;
+        }
+        OAuthConnectionsUtil connectionsUtil = mASM.getOAuthConnectionsUtil();
+        Set<String> revoked = new HashSet<>();
+        List<String> payloads = new ArrayList<>();
+        try {
+            for (OAuthToken token : tokens) {
+                // refresh tokens first, as the server may revoke their access tokens along with them.
+                String refreshToken = token.getRefreshTokenValue();
+                if (!TextUtils.isEmpty(refreshToken) && revoked.add(refreshToken)) {
+                    payloads.add(connectionsUtil.getBackChannelRequestForRevokingToken(refreshToken,
+                            OAuthConnectionsUtil.OAUTH_TOKEN_TYPE_HINT_REFRESH_TOKEN));
+                }
+            }
+            for (OAuthToken token : tokens) {
+                String accessToken = token.getValue();
+                if (!TextUtils.isEmpty(accessToken) && !token.isTokenExpired() && revoked.add(accessToken)) {
+                    payloads.add(connectionsUtil.getBackChannelRequestForRevokingToken(accessToken,
+                            OAuthConnectionsUtil.OAUTH_TOKEN_TYPE_HINT_ACCESS_TOKEN));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            OMLog.error(TAG, e.getMessage(), e);
+            return;
+        }
+        new OAuthTokenRevoker(mASM.getMSS().getConnectionHandler(), revocationEndpoint,
+                getBackChannelHeaders(mConfig, authContext.getIdentityDomain())).revokeInBackground(payloads);
     }
 
     private OMAuthenticationChallenge getLogoutChallenge() {
@@ -224,6 +327,34 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
                               OMOAuthMobileSecurityConfiguration oAuthConfig,
                               String identityDomain) throws OMMobileSecurityException {
 
+        HashMap<String, String> headers = getBackChannelHeaders(oAuthConfig, identityDomain);
+
+        OMHTTPResponse response = mASM.getMSS().getConnectionHandler().httpPost(
+                oAuthConfig.getOAuthTokenEndpoint(), headers, payload,
+                OMSecurityConstants.ConnectionConstants.OAUTH20_CONTENT_TYPE.getValue(), (OMHTTPRequest.REQUIRE_RESPONSE_CODE | OMHTTPRequest.REQUIRE_RESPONSE_STRING));
+        if (response != null && response.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            return response.getResponseStringOnSuccess();
+        } else {
+            try {
+                if (response != null) {
+                    OMLog.error(TAG, "Error getting the token response : " + response.getResponseStringOnFailure());
+                    parseJsonForOAuthError(new JSONObject(response.getResponseStringOnFailure()));
+                }
+            } catch (JSONException e) {
+                OMLog.error(TAG, "Error while parsing OAuth error string", e);
+                throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Headers of the back channel requests to the server: client
+     * authentication, identity domain and the custom headers of the
+     * application.
+     */
+    private HashMap<String, String> getBackChannelHeaders(OMOAuthMobileSecurityConfiguration oAuthConfig,
+                                                          String identityDomain) {
         HashMap<String, String> headers = new HashMap<String, String>();
 
         // this internally will send the client auth header if the client is
@@ -257,24 +388,7 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
             headers.putAll(oAuthConfig.getCustomAuthHeaders());
             OMLog.debug(TAG, "Custom Auth headers added!");
         }
-
-        OMHTTPResponse response = mASM.getMSS().getConnectionHandler().httpPost(
-                oAuthConfig.getOAuthTokenEndpoint(), headers, payload,
-                OMSecurityConstants.ConnectionConstants.OAUTH20_CONTENT_TYPE.getValue(), (OMHTTPRequest.REQUIRE_RESPONSE_CODE | OMHTTPRequest.REQUIRE_RESPONSE_STRING));
-        if (response != null && response.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            return response.getResponseStringOnSuccess();
-        } else {
-            try {
-                if (response != null) {
-                    OMLog.error(TAG, "Error getting the token response : " + response.getResponseStringOnFailure());
-                    parseJsonForOAuthError(new JSONObject(response.getResponseStringOnFailure()));
-                }
-            } catch (JSONException e) {
-                OMLog.error(TAG, "Error while parsing OAuth error string", e);
-                throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR);
-            }
-        }
-        return null;
+        return headers;
     }
 
     // if its an OAuth2.0 error then report the same.
@@ -460,7 +574,6 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
         if (provider == OMAuthenticationContext.AuthenticationProvider.OPENIDCONNECT10 || provider == OMAuthenticationContext.AuthenticationProvider.OAUTH20) {
             boolean result = false;
             boolean triedRefreshing = false, isExpired = false;
-            int initialSize = authContext.getOAuthTokenList().size();
         /*
          * all the access tokens matching the passed scopes
          */
@@ -488,15 +601,11 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
                         if (token.getScopes().size() > 0) {
                             if (token.getScopes().containsAll(requiredScopes)) {
                                 accessTokens.add(token);
-                                // removing these tokens from context for now
-                                itr.remove();
                             }
                         }
                     } else {
                         // just add all the tokens if no scopes are passed.
                         accessTokens.add(token);
-                        // remove this token from the context.
-                        itr.remove();
                     }
                 }
             }
@@ -512,56 +621,29 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
                 Collections.sort(accessTokens, new OAuthTokenComparator());
             Iterator<OAuthToken> tokenitr = accessTokens.iterator();
             OAuthToken refreshedToken = null;
+            OAuthToken expiredToken = null;
             while (tokenitr.hasNext()) {
                 OAuthToken oAuthToken = tokenitr.next();
                 if (!isAccessToken(oAuthToken))
                     continue;
-                if (oAuthToken.isTokenExpired()) {
+                boolean expired = oAuthToken.isTokenExpired();
+                if (!expired && !isActiveOnServer(authContext, oAuthToken)) {
+                    OMLog.debug(TAG, "Access Token is not active on the server!");
+                    expired = true;
+                }
+                if (expired) {
                     OMLog.debug(TAG, "Access Token is expired!");
                     if (!TextUtils.isEmpty(oAuthToken.getRefreshTokenValue())) {
                         if (refreshExpiredToken) {
-                            String refreshTokenResponse;
-                            String oldRefreshTokenValue = oAuthToken
-                                    .getRefreshTokenValue();
-                            WeakHashMap<String, Object> params = new WeakHashMap<String, Object>();
-                            params.put(
-                                    OMSecurityConstants.Param.OAUTH_REFRESH_TOKEN_VALUE,
-                                    oldRefreshTokenValue);
                             triedRefreshing = true;
-                            try {
-                                refreshTokenResponse = getToken(
-                                        mASM.getOAuthConnectionsUtil()
-                                                .getBackChannelRequestForRefreshingAccessToken(
-                                                        params),
-                                        (OMOAuthMobileSecurityConfiguration) mASM.getMSS()
-                                                .getMobileSecurityConfig(),
-                                        authContext.getIdentityDomain());
-                                if (refreshTokenResponse != null) {
-                                    refreshedToken = onAccessToken(refreshTokenResponse);
-                                    if (refreshedToken != null) {
-                                        refreshedToken.setScopes(oAuthToken
-                                                .getScopes());
-                                        // if new token has no refresh value , then use the old refresh token value.
-                                        if (refreshedToken.getRefreshTokenValue() == null) {
-                                            refreshedToken
-                                                    .setRefreshTokenValue(oldRefreshTokenValue);
-                                        }
-                                        // removing if we have refreshed this token
-                                        // .
-                                        tokenitr.remove();
-                                        result = true;
-                                        break;
-                                    }
-                                } else {
-                                    // try other token object
-                                    continue;
-                                }
-
-                            } catch (UnsupportedEncodingException e) {
-                                throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR); //TODO check error code
-                            } catch (JSONException e) {
-                                throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR); //TODO
+                            refreshedToken = refreshAccessToken(authContext, oAuthToken);
+                            if (refreshedToken != null) {
+                                expiredToken = oAuthToken;
+                                result = true;
+                                break;
                             }
+                            // try other token object
+                            continue;
                         } else {
                             result = false;
                             break;
@@ -582,27 +664,23 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
             }
             if (triedRefreshing && refreshedToken != null) {
                 OMLog.debug(TAG, "Refreshed the expired access token!");
-                accessTokens.add(refreshedToken);
                 if (authContext.getAuthenticatedMode() == AuthenticationMode.OFFLINE) {
                     OMLog.debug(TAG, "Changed the authenticate mode from LOCAL to REMOTE, since the expired access token was refreshed.");
                     // MCS offline OAuth Requirement.
                     authContext.setAuthenticatedMode(AuthenticationMode.ONLINE);
                 }
+                // swap the token in place, instead of writing back our copy of
+                // the list, so that refreshes done concurrently are not lost.
+                if (!authContext.replaceOAuthToken(expiredToken, refreshedToken)) {
+                    OMLog.debug(TAG, "Refreshed token dropped, the expired token is no longer held.");
+                }
+                authContext.rescheduleTokenRefresh();
             } else {
                 if (isExpired) {
                     OMLog.debug(TAG, "No access token refreshed!");
                     result = false;
                 }
             }
-            oauthTokens.addAll(accessTokens);
-            authContext.setOAuthTokenList(oauthTokens);
-            int finalSize = authContext.getOAuthTokenList().size();
-            if (initialSize != finalSize) {
-                // not likely
-                OMLog.error(TAG, "This is Odd - token difference in the iterators:"
-                        + (initialSize - finalSize)
-                        + ". This seems to be a code issue.");
-            }
 
             OMLog.debug(TAG, "" + result);
             return result;
@@ -612,6 +690,63 @@ abstract class OAuthAuthenticationService extends AuthenticationService {
         }
     }
 
+    /**
+     * Exchanges the refresh token of the given access token for a new access
+     * token. The new token carries the scopes of the given token, and its
+     * refresh token if the server did not issue a new one. If the same token
+     * is already being refreshed by another thread, that refresh is awaited
+     * instead.
+     *
+     * @param authContext
+     * @param oAuthToken token holding the refresh token to use
+     * @return the refreshed access token, or null if the server did not
+     * return one
+     * @throws OMMobileSecurityException
+     */
+    OAuthToken refreshAccessToken(final OMAuthenticationContext authContext, final OAuthToken oAuthToken)
+            throws OMMobileSecurityException {
+        // concurrent refreshes of the same token share one request.
+        return mASM.getTokenRefreshCoordinator().refresh(oAuthToken.getRefreshTokenValue(),
+                new Callable<OAuthToken>() {
+                    @Override
+                    public OAuthToken call() throws Exception {
+                        return sendRefreshTokenRequest(authContext, oAuthToken);
+                    }
+                });
+    }
+
+    private OAuthToken sendRefreshTokenRequest(OMAuthenticationContext authContext, OAuthToken oAuthToken)
+            throws OMMobileSecurityException {
+        String oldRefreshTokenValue = oAuthToken.getRefreshTokenValue();
+        WeakHashMap<String, Object> params = new WeakHashMap<String, Object>();
+        params.put(OMSecurityConstants.Param.OAUTH_REFRESH_TOKEN_VALUE,
+                oldRefreshTokenValue);
+        try {
+            String refreshTokenResponse = getToken(
+                    mASM.getOAuthConnectionsUtil()
+                            .getBackChannelRequestForRefreshingAccessToken(params),
+                    (OMOAuthMobileSecurityConfiguration) mASM.getMSS()
+                            .getMobileSecurityConfig(),
+                    authContext.getIdentityDomain());
+            if (refreshTokenResponse == null) {
+                return null;
+            }
+            OAuthToken refreshedToken = onAccessToken(refreshTokenResponse);
+            if (refreshedToken != null) {
+                refreshedToken.setScopes(oAuthToken.getScopes());
+                // if new token has no refresh value , then use the old refresh token value.
+                if (refreshedToken.getRefreshTokenValue() == null) {
+                    refreshedToken.setRefreshTokenValue(oldRefreshTokenValue);
+                }
+            }
+            return refreshedToken;
+        } catch (UnsupportedEncodingException e) {
+            throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR); //TODO check error code
+        } catch (JSONException e) {
+            throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR); //TODO
+        }
+    }
+
     /**
      * This will validate the redirect response from the user agent(external and
      * embedded), this is common for all the OAuthAuthenticationService
@@ -17,7 +17,6 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -44,9 +43,6 @@ import static oracle.idm.mobile.configuration.OAuthAuthorizationGrantType.RESOUR
 public class OAuthConnectionsUtil {
 
     private static String TAG = OAuthConnectionsUtil.class.getSimpleName();
-    private static SecureRandom secureRandom = new SecureRandom();
-    private static final int OAUTH_PKCE_DEFAULT_CODE_VERIFIER_ENTROPY = 64;
-    private static final int OAUTH_PKCE_DEFAULT_ENCODING = Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE;
 
     private static final String OAUTH_PKCE_DEFAULT_CHARSET = "US-ASCII";
     private static final String OAUTH_PKCE_DEFAULT_CODE_VERIFIER_CHALLENGE_METHOD = CryptoScheme.SHA256.getValue();
@@ -79,6 +75,10 @@ public class OAuthConnectionsUtil {
     static final String OAUTH_GRANT_TYPE_CLIENT_CREDENTIALS = "client_credentials";
     static final String OAUTH_GRANT_TYPE_AUTHORIZATION_CODE = "authorization_code";
     static final String OAUTH_REFRESH_TOKEN_REQ = "refresh_token=";
+    static final String OAUTH_TOKEN_REQ = "token=";
+    static final String OAUTH_TOKEN_TYPE_HINT_REQ = "token_type_hint=";
+    static final String OAUTH_TOKEN_TYPE_HINT_ACCESS_TOKEN = "access_token";
+    static final String OAUTH_TOKEN_TYPE_HINT_REFRESH_TOKEN = "refresh_token";
 
     // M&S OAuth constants
     static final String OAUTH_MS_PRE_AUTHZ_CODE_REQ = "oracle_pre_authz_code=";
@@ -114,6 +114,8 @@ public class OAuthConnectionsUtil {
 
     private String mCodeVerifier;
 
+    private OAuthRequestSecretsPool.Secrets mSecrets;
+
     private boolean mUsePKCE;
 
     private boolean mRegisterClient;
@@ -165,7 +167,8 @@ public class OAuthConnectionsUtil {
         if (oAuthConfig instanceof OMOICMobileSecurityConfiguration) {
             isOpenID = true;
             OMLog.debug(TAG, "This is openID Configuration Use case");
-            generateNonce();
+            openIDNonce = getSecrets().nonce;
+            OMLog.info(TAG, "Generated Nonce: " + openIDNonce);
         }
         this.oAuthConfig = oAuthConfig;
         this.mOAuthGrantType = oAuthConfig.getOAuthzGrantType();
@@ -477,18 +480,16 @@ public class OAuthConnectionsUtil {
     }
 
 
-    private void generateNonce() {
-        // generate a 10 digit number.
-        openIDNonce = String.valueOf((long) (secureRandom.nextDouble() * 9999999999L + 100000000L));
-        OMLog.info(TAG, "Generated Nonce: " + openIDNonce);
-    }
-
-
-    private String generateRandomCodeVerifier() {
-        byte[] verifierBytes = new byte[OAUTH_PKCE_DEFAULT_CODE_VERIFIER_ENTROPY];
-        secureRandom.nextBytes(verifierBytes);
-        String verifier = Base64.encodeToString(verifierBytes, OAUTH_PKCE_DEFAULT_ENCODING);
-        return verifier;
+    /**
+     * The code verifier, state and nonce of this object are taken from
+     * {@link OAuthRequestSecretsPool}, so that they are not generated on the
+     * main thread when the front channel request is built.
+     */
+    private OAuthRequestSecretsPool.Secrets getSecrets() {
+        if (mSecrets == null) {
+            mSecrets = OAuthRequestSecretsPool.take();
+        }
+        return mSecrets;
     }
 
     private String getCodeVerifier() {
@@ -497,15 +498,14 @@ public class OAuthConnectionsUtil {
 
     private String generateCodeVerifierChallenge() throws NoSuchAlgorithmException {
 
+        OAuthRequestSecretsPool.Secrets secrets = getSecrets();
         if (mCodeVerifier == null) {
-            mCodeVerifier = generateRandomCodeVerifier();
+            mCodeVerifier = secrets.codeVerifier;
         }
-
-        MessageDigest digest = MessageDigest.getInstance(OAUTH_PKCE_DEFAULT_CODE_VERIFIER_CHALLENGE_METHOD);
-        digest.update(mCodeVerifier.getBytes());
-        byte[] digestedBytes = digest.digest();
-        String challenge = Base64.encodeToString(digestedBytes, OAUTH_PKCE_DEFAULT_ENCODING);
-        return challenge;
+        if (secrets.codeChallenge != null) {
+            return secrets.codeChallenge;
+        }
+        return OAuthRequestSecretsPool.challengeOf(mCodeVerifier);
     }
 
     private boolean isDefaultCodeChallengeMethodSupported() {
@@ -579,9 +579,7 @@ public class OAuthConnectionsUtil {
      */
     public String getOAuthState() {
         if (oAuthState == null) {
-            // generate a 6 digit number.
-            oAuthState = (int) (secureRandom.nextDouble() * 999999 + 10000)
-                    + "";
+            oAuthState = getSecrets().state;
         }
         return oAuthState;
     }
@@ -671,6 +669,42 @@ public class OAuthConnectionsUtil {
         return payload.toString();
     }
 
+    /**
+     * Request body for the revocation endpoint (RFC 7009).
+     *
+     * @param token         the access token or refresh token to revoke.
+     * @param tokenTypeHint {@link #OAUTH_TOKEN_TYPE_HINT_ACCESS_TOKEN} or
+     *                      {@link #OAUTH_TOKEN_TYPE_HINT_REFRESH_TOKEN}
+     */
+    public String getBackChannelRequestForRevokingToken(String token, String tokenTypeHint)
+            throws UnsupportedEncodingException {
+        return getBackChannelRequestForToken(token, tokenTypeHint);
+    }
+
+    /**
+     * Request body for the introspection endpoint (RFC 7662).
+     *
+     * @param accessToken the access token to introspect.
+     */
+    public String getBackChannelRequestForIntrospectingToken(String accessToken)
+            throws UnsupportedEncodingException {
+        return getBackChannelRequestForToken(accessToken, OAUTH_TOKEN_TYPE_HINT_ACCESS_TOKEN);
+    }
+
+    private String getBackChannelRequestForToken(String token, String tokenTypeHint)
+            throws UnsupportedEncodingException {
+        StringBuilder payload = new StringBuilder();
+        if (!oAuthConfig.isConfidentialClient()) {
+            payload.append(OAUTH_CLIENT_ID_REQ
+                    + getURLEncodedString(oAuthConfig.getOAuthClientID()));
+            payload.append(AMPERSAND);
+        }
+        payload.append(OAUTH_TOKEN_REQ + getURLEncodedString(token));
+        payload.append(AMPERSAND);
+        payload.append(OAUTH_TOKEN_TYPE_HINT_REQ + getURLEncodedString(tokenTypeHint));
+        return payload.toString();
+    }
+
     /**
      * Helper to return the type of authentication flow.
      *
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import android.util.Base64;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import oracle.idm.mobile.crypto.CryptoScheme;
+import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
+
+/**
+ * Pool of the random values which go in the front channel request of an
+ * OAuth/OpenID login: the PKCE code verifier and its challenge, the OAuth
+ * state and the OpenID nonce. Drawing from {@link SecureRandom} and hashing
+ * the code verifier are done ahead of time on the background executor, so
+ * that building the authorization URL, which happens on the main thread,
+ * only takes a set of values from the pool.
+ * <p>
+ * Every set is handed out once, and only kept in memory. If the pool is
+ * empty, a set is generated by the caller.
+ *
+ * @hide
+ */
+public final class OAuthRequestSecretsPool {
+    private static final String TAG = OAuthRequestSecretsPool.class.getSimpleName();
+    private static final int POOL_SIZE = 4;
+    private static final int CODE_VERIFIER_ENTROPY = 64;
+    private static final int ENCODING = Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE;
+    private static final String CODE_CHALLENGE_METHOD = CryptoScheme.SHA256.getValue();
+
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+    private static final Queue<Secrets> sPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean sRefilling = new AtomicBoolean();
+
+    /**
+     * The random values for one front channel request.
+     */
+    static final class Secrets {
+        final String codeVerifier;
+        /**
+         * The S256 challenge of {@link #codeVerifier}, or null if SHA-256 is
+         * not available.
+         */
+        final String codeChallenge;
+        final String state;
+        final String nonce;
+
+        private Secrets(String codeVerifier, String codeChallenge, String state, String nonce) {
+            this.codeVerifier = codeVerifier;
+            this.codeChallenge = codeChallenge;
+            this.state = state;
+            this.nonce = nonce;
+        }
+    }
+
+    private OAuthRequestSecretsPool() {
+    }
+
+    /**
+     * Fills the pool in the background, e.g. during the setup of the SDK.
+     */
+    public static void prefill() {
+        refillInBackground();
+    }
+
+    /**
+     * Takes a set of values from the pool, and refills the pool in the
+     * background.
+     */
+    static Secrets take() {
+        Secrets secrets = sPool.poll();
+        refillInBackground();
+        if (secrets == null) {
+            OMLog.debug(TAG, "Pool is empty, generating the request secrets");
+            secrets = generate();
+        }
+        return secrets;
+    }
+
+    /**
+     * Computes the S256 challenge of a code verifier.
+     */
+    static String challengeOf(String codeVerifier) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(CODE_CHALLENGE_METHOD);
+        digest.update(codeVerifier.getBytes());
+        return Base64.encodeToString(digest.digest(), ENCODING);
+    }
+
+    private static void refillInBackground() {
+        if (sPool.size() >= POOL_SIZE || !sRefilling.compareAndSet(false, true)) {
+            return;
+        }
+        OMExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (sPool.size() < POOL_SIZE) {
+                        sPool.offer(generate());
+                    }
+                } finally {
+                    sRefilling.set(false);
+                }
+            }
+        }, OMExecutor.Priority.BACKGROUND);
+    }
+
+    private static Secrets generate() {
+        byte[] verifierBytes = new byte[CODE_VERIFIER_ENTROPY];
+        sSecureRandom.nextBytes(verifierBytes);
+        String codeVerifier = Base64.encodeToString(verifierBytes, ENCODING);
+        String codeChallenge = null;
+        try {
+            codeChallenge = challengeOf(codeVerifier);
+        } catch (NoSuchAlgorithmException e) {
+            OMLog.error(TAG, "PKCE-- " + CODE_CHALLENGE_METHOD + " not supported");
+        }
+        // a 6 digit number.
+        String state = String.valueOf((int) (sSecureRandom.nextDouble() * 999999 + 10000));
+        // a 10 digit number.
+        String nonce = String.valueOf((long) (sSecureRandom.nextDouble() * 9999999999L + 100000000L));
+        return new Secrets(codeVerifier, codeChallenge, state, nonce);
+    }
+}
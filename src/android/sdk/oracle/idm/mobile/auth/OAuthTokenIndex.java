@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable lookup structure over a snapshot of the OAuth token list held by
+ * {@link OMAuthenticationContext}. It maintains an inverted index from scope
+ * to the set of token positions carrying that scope, so that the tokens for a
+ * given scope set are found by intersecting the positions of the scopes, and
+ * only those tokens are looked at, instead of scanning the whole token list.
+ * Matches are returned in the order of the token list.
+ * <p>
+ * The index is rebuilt whenever the token list of the context changes (tokens
+ * added after login, refreshed or removed during logout).
+ *
+ * @hide
+ */
+class OAuthTokenIndex {
+    private final List<OAuthToken> mTokens;
+    private final Map<String, BitSet> mScopeIndex;
+    /**
+     * Auxiliary tokens without any scopes; these are always returned.
+     */
+    private final BitSet mUnscoped;
+
+    OAuthTokenIndex(List<OAuthToken> tokens) {
+        mTokens = new ArrayList<>(tokens);
+        mScopeIndex = new HashMap<>();
+        mUnscoped = new BitSet(mTokens.size());
+
+        for (int i = 0; i < mTokens.size(); i++) {
+            OAuthToken token = mTokens.get(i);
+            Set<String> scopes = token.getScopes();
+            if (scopes == null) {
+                mUnscoped.set(i);
+                continue;
+            }
+            for (String scope : scopes) {
+                BitSet positions = mScopeIndex.get(scope);
+                if (positions == null) {
+                    positions = new BitSet(mTokens.size());
+                    mScopeIndex.put(scope, positions);
+                }
+                positions.set(i);
+            }
+        }
+    }
+
+    /**
+     * Number of tokens in the snapshot this index was built from.
+     */
+    int size() {
+        return mTokens.size();
+    }
+
+    /**
+     * Returns all the tokens in the snapshot.
+     */
+    List<OMToken> all() {
+        return new ArrayList<OMToken>(mTokens);
+    }
+
+    /**
+     * Returns the unexpired tokens whose scopes contain all of the given
+     * scopes, along with the auxiliary tokens which do not carry any scope,
+     * in the order of the token list.
+     *
+     * @param scopes non empty set of scopes to match.
+     */
+    List<OMToken> match(Set<String> scopes) {
+        List<OMToken> matched = new ArrayList<>();
+        BitSet positions = candidatesFor(scopes);
+        if (positions == null) {
+            positions = new BitSet(mTokens.size());
+        }
+        positions.or(mUnscoped);
+
+        for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+            OAuthToken token = mTokens.get(i);
+            // return scoped tokens only if they are not expired.
+            if (mUnscoped.get(i) || !token.isTokenExpired()) {
+                matched.add(token);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Intersects the positions of the requested scopes, starting with the
+     * rarest scope. Returns null if any of the scopes is not held by a token.
+     * The returned set is a copy which the caller may modify.
+     */
+    private BitSet candidatesFor(Set<String> scopes) {
+        List<BitSet> postings = new ArrayList<>(scopes.size());
+        for (String scope : scopes) {
+            BitSet positions = mScopeIndex.get(scope);
+            if (positions == null) {
+                return null;
+            }
+            postings.add(positions);
+        }
+
+        BitSet result = null;
+        while (!postings.isEmpty()) {
+            int rarest = 0;
+            for (int i = 1; i < postings.size(); i++) {
+                if (postings.get(i).cardinality() < postings.get(rarest).cardinality()) {
+                    rarest = i;
+                }
+            }
+            BitSet positions = postings.remove(rarest);
+            if (result == null) {
+                result = (BitSet) positions.clone();
+            } else {
+                result.and(positions);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+}
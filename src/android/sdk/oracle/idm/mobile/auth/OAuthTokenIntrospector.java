@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import oracle.idm.mobile.OMMobileSecurityException;
+import oracle.idm.mobile.connection.OMHTTPResponse;
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Asks the introspection endpoint of the server (RFC 7662) whether access
+ * tokens are still active, for the applications which need the server to
+ * be authoritative about validity, e.g. to notice tokens revoked on the
+ * server before they expire.
+ * <p>
+ * The answers are cached for a short time: an active token for
+ * {@link #ACTIVE_TTL_MILLIS} (or less, if it expires before), an inactive
+ * one for {@link #INACTIVE_TTL_MILLIS}. Concurrent checks of the same token
+ * share one request. If the server can not be reached, the token is
+ * considered active, i.e. validity falls back to its expiry time, and the
+ * answer is not cached.
+ *
+ * @hide
+ */
+class OAuthTokenIntrospector {
+    private static final String TAG = OAuthTokenIntrospector.class.getSimpleName();
+    private static final long ACTIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final long INACTIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_ENTRIES = 32;
+    private static final String ACTIVE = "active";
+    private static final String EXPIRES_AT = "exp";
+
+    /**
+     * Sends the introspection request for a token.
+     */
+    interface Request {
+        OMHTTPResponse send() throws OMMobileSecurityException;
+    }
+
+    private static class Entry {
+        final boolean active;
+        final long validUntil;
+
+        Entry(boolean active, long validUntil) {
+            this.active = active;
+            this.validUntil = validUntil;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> mCache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<Boolean>> mInFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the server considers the token active. This may block on the
+     * network, so it must not be called from the main thread.
+     */
+    boolean isActive(final String token, final Request request) {
+        Entry entry = mCache.get(token);
+        if (entry != null && System.currentTimeMillis() < entry.validUntil) {
+            return entry.active;
+        }
+        FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return introspect(token, request);
+            }
+        });
+        FutureTask<Boolean> inFlight = mInFlight.putIfAbsent(token, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                mInFlight.remove(token, task);
+            }
+        } else {
+            OMLog.debug(TAG, "Waiting for the introspection of the token in progress");
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            OMLog.error(TAG, "Token introspection failed", e.getCause());
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the cached answers, e.g. after logout.
+     */
+    void clear() {
+        mCache.clear();
+    }
+
+    private boolean introspect(String token, Request request) {
+        try {
+            OMHTTPResponse response = request.send();
+            if (response == null || response.getResponseCode() / 100 != 2) {
+                OMLog.error(TAG, "Token introspection failed, response code: "
+                        + (response != null ? response.getResponseCode() : null));
+                return true;
+            }
+            JSONObject json = new JSONObject(response.getResponseStringOnSuccess());
+            boolean active = json.optBoolean(ACTIVE, false);
+            long now = System.currentTimeMillis();
+            long validUntil;
+            if (active) {
+                validUntil = now + ACTIVE_TTL_MILLIS;
+                long expiresAt = json.optLong(EXPIRES_AT, 0) * 1000;
+                if (expiresAt > 0 && expiresAt < validUntil) {
+                    validUntil = expiresAt;
+                }
+            } else {
+                validUntil = now + INACTIVE_TTL_MILLIS;
+            }
+            put(token, new Entry(active, validUntil));
+            OMLog.debug(TAG, "Token is active : " + active);
+            return active;
+        } catch (OMMobileSecurityException e) {
+            OMLog.error(TAG, "Token introspection failed: " + e.getErrorMessage());
+        } catch (JSONException e) {
+            OMLog.error(TAG, "Invalid introspection response", e);
+        }
+        return true;
+    }
+
+    private void put(String token, Entry entry) {
+        if (mCache.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Entry>> iterator = mCache.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (now >= iterator.next().getValue().validUntil) {
+                    iterator.remove();
+                }
+            }
+            if (mCache.size() >= MAX_ENTRIES) {
+                mCache.clear();
+            }
+        }
+        mCache.put(token, entry);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.idm.mobile.OMErrorCode;
+import oracle.idm.mobile.OMMobileSecurityException;
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Makes sure that only one refresh grant request is in flight for a given
+ * refresh token. A caller which wants to refresh a token while the same
+ * refresh token is already being used by another thread waits for that
+ * refresh and gets its result (or its failure), instead of sending a
+ * duplicate request to the token endpoint.
+ *
+ * @hide
+ */
+class OAuthTokenRefreshCoordinator {
+    private static final String TAG = OAuthTokenRefreshCoordinator.class.getSimpleName();
+    private final ConcurrentMap<String, FutureTask<OAuthToken>> mInFlightRefreshes = new ConcurrentHashMap<>();
+    private final AtomicLong mRefreshCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Runs the given refresh, unless a refresh for the same refresh token is
+     * already in flight, in which case that one is awaited.
+     *
+     * @param refreshTokenValue the refresh token being redeemed
+     * @param refresh           performs the refresh grant request
+     * @return the refreshed access token, or null if the server did not
+     * return one
+     * @throws OMMobileSecurityException error reported by the refresh
+     */
+    OAuthToken refresh(String refreshTokenValue, Callable<OAuthToken> refresh)
+            throws OMMobileSecurityException {
+        FutureTask<OAuthToken> task = new FutureTask<>(refresh);
+        FutureTask<OAuthToken> inFlight = mInFlightRefreshes.putIfAbsent(refreshTokenValue, task);
+        if (inFlight != null) {
+            long coalesced = mCoalescedCount.incrementAndGet();
+            OMLog.debug(TAG, "Joining the refresh in flight for this refresh token. Coalesced refreshes : "
+                    + coalesced);
+            return await(inFlight);
+        }
+
+        mRefreshCount.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            mInFlightRefreshes.remove(refreshTokenValue, task);
+        }
+        return await(task);
+    }
+
+    /**
+     * Number of refresh grant requests sent.
+     */
+    long getRefreshCount() {
+        return mRefreshCount.get();
+    }
+
+    /**
+     * Number of refreshes which were served by a refresh already in flight.
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    private OAuthToken await(FutureTask<OAuthToken> task) throws OMMobileSecurityException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            OMLog.error(TAG, "Interrupted while waiting for the token refresh");
+            throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OMMobileSecurityException) {
+                throw (OMMobileSecurityException) cause;
+            }
+            OMLog.error(TAG, "Token refresh failed", cause);
+            throw new OMMobileSecurityException(OMErrorCode.INTERNAL_ERROR);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import oracle.idm.mobile.OMMobileSecurityException;
+import oracle.idm.mobile.OMMobileSecurityService;
+import oracle.idm.mobile.OMSecurityConstants;
+import oracle.idm.mobile.configuration.OMOAuthMobileSecurityConfiguration;
+import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
+
+/**
+ * Refreshes the OAuth access tokens of an authentication context in the
+ * background, a configurable window before they expire, so that
+ * {@link OMAuthenticationContext#isValid(Set, boolean)} rarely has to block on
+ * the token endpoint. The window is configured using
+ * {@link OMMobileSecurityService#OM_PROP_OAUTH_PROACTIVE_REFRESH_WINDOW}.
+ * <p>
+ * A jitter of up to a tenth of the window, derived from the token so that it
+ * is the same every time the refresh time of the token is computed, is
+ * applied to every refresh so that several apps/flows do not hit the server
+ * at the same time. The timers are kept by {@link OMExecutor}, so no thread
+ * is held per authentication context. When the
+ * token endpoint is not reachable the refresh is deferred and retried, until
+ * the token expires; from then on the token is refreshed on demand as before.
+ * Refreshes go through {@link OAuthTokenRefreshCoordinator}, so a refresh
+ * token is never used by more than one refresh at a time.
+ *
+ * @hide
+ */
+class OAuthTokenRefreshScheduler {
+    private static final String TAG = OAuthTokenRefreshScheduler.class.getSimpleName();
+    private static final double JITTER_FRACTION = 0.1d;
+    private static final long RETRY_DELAY_SECS = 30;
+
+    private final OMAuthenticationContext mAuthContext;
+    private final long mWindowMillis;
+    private ScheduledFuture mRefreshTimer;
+    private boolean mStopped;
+
+    OAuthTokenRefreshScheduler(OMAuthenticationContext authContext, int windowInSecs) {
+        mAuthContext = authContext;
+        mWindowMillis = TimeUnit.SECONDS.toMillis(windowInSecs);
+    }
+
+    /**
+     * Schedules the refresh of the access token which is the first one to
+     * enter its refresh window. Any previously scheduled refresh is replaced.
+     */
+    synchronized void schedule() {
+        if (mStopped) {
+            return;
+        }
+        cancelRefreshTimer();
+        long now = System.currentTimeMillis();
+        long nextRefresh = Long.MAX_VALUE;
+        for (OAuthToken token : refreshableTokens(now)) {
+            nextRefresh = Math.min(nextRefresh, refreshTimeOf(token));
+        }
+        if (nextRefresh == Long.MAX_VALUE) {
+            OMLog.debug(TAG, "No access token to refresh proactively");
+            return;
+        }
+        long delay = Math.max(nextRefresh - now, 0);
+        OMLog.debug(TAG, "Next proactive token refresh in " + delay + " ms");
+        mRefreshTimer = OMExecutor.getInstance().schedule(refreshTask, delay, TimeUnit.MILLISECONDS,
+                OMExecutor.Priority.BACKGROUND);
+    }
+
+    /**
+     * Cancels any scheduled refresh. The scheduler can not be used after this.
+     */
+    synchronized void stop() {
+        OMLog.debug(TAG, "Stopping proactive token refresh");
+        mStopped = true;
+        cancelRefreshTimer();
+    }
+
+    private synchronized void scheduleRetry() {
+        if (mStopped) {
+            return;
+        }
+        cancelRefreshTimer();
+        mRefreshTimer = OMExecutor.getInstance().schedule(refreshTask, RETRY_DELAY_SECS, TimeUnit.SECONDS,
+                OMExecutor.Priority.BACKGROUND);
+    }
+
+    private void cancelRefreshTimer() {
+        if (mRefreshTimer != null && !mRefreshTimer.isDone()) {
+            mRefreshTimer.cancel(false);
+        }
+        mRefreshTimer = null;
+    }
+
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            List<OAuthToken> dueTokens = new ArrayList<>();
+            for (OAuthToken token : refreshableTokens(now)) {
+                if (refreshTimeOf(token) <= now) {
+                    dueTokens.add(token);
+                }
+            }
+            if (dueTokens.isEmpty()) {
+                schedule();
+                return;
+            }
+
+            OMMobileSecurityService mss = mAuthContext.getAuthenticationServiceManager().getMSS();
+            OMOAuthMobileSecurityConfiguration config = (OMOAuthMobileSecurityConfiguration) mss
+                    .getMobileSecurityConfig();
+            if (!mss.getConnectionHandler().isNetworkAvailable(
+                    config.getOAuthTokenEndpoint().toString())) {
+                OMLog.debug(TAG, "Token endpoint not reachable, deferring the token refresh");
+                scheduleRetry();
+                return;
+            }
+
+            boolean failed = false;
+            for (OAuthToken token : dueTokens) {
+                if (!refresh(token)) {
+                    failed = true;
+                }
+            }
+            if (failed) {
+                scheduleRetry();
+            } else {
+                schedule();
+            }
+        }
+    };
+
+    /**
+     * Refreshes the given token and swaps the new token into the token list
+     * of the authentication context.
+     *
+     * @return false if the refresh has to be retried.
+     */
+    private boolean refresh(OAuthToken token) {
+        OAuthAuthenticationService oAuthService = getOAuthService();
+        if (oAuthService == null) {
+            return true;
+        }
+        try {
+            // coalesced with any on demand refresh of the same token.
+            OAuthToken refreshedToken = oAuthService.refreshAccessToken(mAuthContext, token);
+            if (refreshedToken == null) {
+                return false;
+            }
+            if (mAuthContext.replaceOAuthToken(token, refreshedToken)) {
+                OMLog.debug(TAG, "Refreshed the access token ahead of its expiry");
+            } else {
+                // refreshed on demand or removed by logout meanwhile.
+                OMLog.debug(TAG, "Token no longer held by the authentication context");
+            }
+            return true;
+        } catch (OMMobileSecurityException e) {
+            OMLog.error(TAG, "Proactive token refresh failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private OAuthAuthenticationService getOAuthService() {
+        AuthenticationServiceManager asm = mAuthContext.getAuthenticationServiceManager();
+        AuthenticationService.Type serviceType;
+        if (mAuthContext.getAuthenticationProvider() == OMAuthenticationContext.AuthenticationProvider.OAUTH20) {
+            serviceType = asm.getOAuthServiceType();
+        } else {
+            serviceType = AuthenticationService.Type.OPENIDCONNECT10;
+        }
+        AuthenticationService authService = asm.getAuthService(serviceType);
+        if (authService instanceof OAuthAuthenticationService) {
+            return (OAuthAuthenticationService) authService;
+        }
+        return null;
+    }
+
+    /**
+     * Unexpired access tokens which can be refreshed. Expired tokens are left
+     * to be refreshed on demand.
+     */
+    private List<OAuthToken> refreshableTokens(long now) {
+        List<OAuthToken> refreshable = new ArrayList<>();
+        for (OAuthToken token : new ArrayList<>(mAuthContext.getOAuthTokenList())) {
+            if (OMSecurityConstants.OAUTH_ACCESS_TOKEN.equals(token.getName())
+                    && token.hasRefreshToken()
+                    && token.getExpiryTime() != null
+                    && token.getExpiryTime().getTime() > now) {
+                refreshable.add(token);
+            }
+        }
+        return refreshable;
+    }
+
+    /**
+     * The window is capped to half of the lifetime of the token, so that
+     * short lived tokens are not refreshed continuously. The jitter is
+     * derived from the token value, so that the scheduling and the due check
+     * agree on the refresh time of a token.
+     */
+    private long refreshTimeOf(OAuthToken token) {
+        long window = mWindowMillis;
+        if (token.getExpiryInSecs() > 0) {
+            window = Math.min(window, TimeUnit.SECONDS.toMillis(token.getExpiryInSecs()) / 2);
+        }
+        String value = token.getValue();
+        double fraction = (value == null ? 0 : value.hashCode() & Integer.MAX_VALUE) / (double) Integer.MAX_VALUE;
+        long jitter = (long) (fraction * window * JITTER_FRACTION);
+        return token.getExpiryTime().getTime() - window - jitter;
+    }
+}
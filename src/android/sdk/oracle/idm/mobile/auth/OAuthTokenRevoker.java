@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import oracle.idm.mobile.OMMobileSecurityException;
+import oracle.idm.mobile.OMSecurityConstants;
+import oracle.idm.mobile.connection.OMConnectionHandler;
+import oracle.idm.mobile.connection.OMHTTPRequest;
+import oracle.idm.mobile.connection.OMHTTPResponse;
+import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
+
+/**
+ * Revokes tokens at the revocation endpoint of the server (RFC 7009) after
+ * logout, in the background. The endpoint takes one token per request, so
+ * the requests are sent concurrently, by at most {@link #MAX_PARALLEL_REQUESTS}
+ * workers on the background executor. Requests which have not been sent
+ * {@link #DEADLINE_MILLIS} after the logout are dropped; the tokens then
+ * simply expire on the server.
+ * <p>
+ * The tokens are removed from the authentication context before they are
+ * revoked, so the logout does not wait for the server.
+ *
+ * @hide
+ */
+class OAuthTokenRevoker {
+    private static final String TAG = OAuthTokenRevoker.class.getSimpleName();
+    private static final int MAX_PARALLEL_REQUESTS = 3;
+    private static final long DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final OMConnectionHandler mConnectionHandler;
+    private final URL mRevocationEndpoint;
+    private final Map<String, String> mHeaders;
+
+    OAuthTokenRevoker(OMConnectionHandler connectionHandler, URL revocationEndpoint, Map<String, String> headers) {
+        mConnectionHandler = connectionHandler;
+        mRevocationEndpoint = revocationEndpoint;
+        mHeaders = headers;
+    }
+
+    /**
+     * Sends the revocation requests in the background.
+     *
+     * @param payloads the body of each request, as returned by
+     *                 {@link OAuthConnectionsUtil#getBackChannelRequestForRevokingToken(String, String)}
+     */
+    void revokeInBackground(List<String> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        final Queue<String> pending = new ConcurrentLinkedQueue<>(payloads);
+        final long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        int workers = Math.min(MAX_PARALLEL_REQUESTS, payloads.size());
+        OMLog.debug(TAG, "Revoking " + payloads.size() + " token(s) using " + workers + " worker(s)");
+        for (int i = 0; i < workers; i++) {
+            OMExecutor.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    String payload;
+                    while ((payload = pending.poll()) != null) {
+                        if (System.currentTimeMillis() >= deadline) {
+                            OMLog.debug(TAG, "Deadline passed, not revoking " + (pending.size() + 1) + " token(s)");
+                            pending.clear();
+                            return;
+                        }
+                        revoke(payload);
+                    }
+                }
+            }, OMExecutor.Priority.BACKGROUND);
+        }
+    }
+
+    private void revoke(String payload) {
+        try {
+            OMHTTPResponse response = mConnectionHandler.httpPost(mRevocationEndpoint, mHeaders, payload,
+                    OMSecurityConstants.ConnectionConstants.OAUTH20_CONTENT_TYPE.getValue(),
+                    OMHTTPRequest.REQUIRE_RESPONSE_CODE);
+            if (response != null && response.getResponseCode() / 100 == 2) {
+                return;
+            }
+            OMLog.error(TAG, "Token revocation failed, response code: "
+                    + (response != null ? response.getResponseCode() : null));
+        } catch (OMMobileSecurityException e) {
+            OMLog.error(TAG, "Token revocation failed: " + e.getErrorMessage());
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import oracle.idm.mobile.OMAuthenticationRequest;
 import oracle.idm.mobile.OMMobileSecurityException;
@@ -30,8 +31,10 @@ import oracle.idm.mobile.OMMobileSecurityService;
 import oracle.idm.mobile.OMSecurityConstants;
 import oracle.idm.mobile.auth.openID.OpenIDUserInfo;
 import oracle.idm.mobile.callback.OMMobileSecurityServiceCallback;
+import oracle.idm.mobile.callback.OMTokenRefreshCallback;
 import oracle.idm.mobile.configuration.OMFederatedMobileSecurityConfiguration;
 import oracle.idm.mobile.configuration.OMMobileSecurityConfiguration;
+import oracle.idm.mobile.configuration.OMOAuthMobileSecurityConfiguration;
 import oracle.idm.mobile.connection.OMCookieManager;
 import oracle.idm.mobile.credentialstore.OMCredential;
 import oracle.idm.mobile.credentialstore.OMCredentialStore;
@@ -188,6 +191,7 @@ public class OMAuthenticationContext {
     private int sessionExpInSecs;
     private int idleTimeExpInSecs;
     private TimeoutManager mTimeoutManager;
+    private volatile OAuthTokenRefreshScheduler mTokenRefreshScheduler;
     private static final String SESSION_EXPIRY = "sessionExpiry";
     private static final String IDLETIME_EXPIRY = "idleTimeExpiry";
     private static final String SESSION_EXPIRY_SECS = "sessionExpInSecs";
@@ -196,6 +200,8 @@ public class OMAuthenticationContext {
     private String LOGOUT_TIMEOUT_VALUE = "logoutTimeoutValue";
     boolean isIdleTimeout = false;
     private List<OAuthToken> oAuthTokenList;
+    private volatile OAuthTokenIndex oAuthTokenIndex;
+    private final AtomicInteger mCredentialsVersion = new AtomicInteger();
     private Map<String, OMToken> tokens;
     private Map<String, OMToken> owsmMACookies;
 
@@ -203,7 +209,7 @@ public class OMAuthenticationContext {
     private Handler mHandler;
     private Set<URI> mVisitedUrls;
     private List<OMCookie> mCookies;
-    private OpenIDUserInfo mOpenIDUserInfo;
+    private volatile OpenIDUserInfo mOpenIDUserInfo;
     private boolean isForceAuthentication;
 
     /**
@@ -330,6 +336,7 @@ public class OMAuthenticationContext {
                     mTimeoutManager.startSessionTimeoutTimer();
                 }
             }
+            startTokenRefresh();
         }
     }
 
@@ -453,6 +460,10 @@ public class OMAuthenticationContext {
                     return false;
                 }
             }
+            if (getAuthenticationProvider() == AuthenticationProvider.OPENIDCONNECT10
+                    && getAuthenticatedMode() == AuthenticationMode.ONLINE) {
+                return isValidOpenIDConnect(validateOnline);
+            }
             boolean isValid = true;
 
             if (mASM.getMSS().retrieveAuthenticationContext() == null) {
@@ -461,10 +472,10 @@ public class OMAuthenticationContext {
             if (mASM != null) {
                 // Since the list of authentication services are lazily loaded, we
                 // will no have all the authentication service instances to validate
-                // the token. Hence load all the services here and perform the
-                // validation. Once the work is done, unload all the services to
-                // release the memory
-                mASM.loadAllAuthenticationServices();
+                // the token. Hence load the services applicable to this context here
+                // and perform the validation. The services stay cached in the ASM for
+                // later use.
+                List<AuthenticationService> authServices = mASM.loadAuthenticationServicesFor(this);
                 OMLog.debug(TAG, "AuthContext validity check online ? "
                         + validateOnline);
 
@@ -483,8 +494,7 @@ public class OMAuthenticationContext {
                     credentialsAvailable = true;
                 }
 
-                for (AuthenticationService authService : mASM
-                        .getAuthServiceMap().values()) {
+                for (AuthenticationService authService : authServices) {
                     // As this is the old/existing api we are passsing true,
                     // since the default behavior was to check online whenever
                     // possible
@@ -540,14 +550,35 @@ public class OMAuthenticationContext {
                         break;
                     }
                 }
-
-                mASM.unloadAuthServices();
             }
 
             return isValid;
         }
     }
 
+    /**
+     * Validity check of an online OpenID Connect context. The tokens, and the
+     * pre-decoded claims of the ID token, are checked locally by the services
+     * which can invalidate the context; neither the authentication context
+     * nor the credentials are read from the credential store, as they are
+     * only needed for the idle timeout handling of the basic and offline
+     * services.
+     */
+    private boolean isValidOpenIDConnect(boolean validateOnline) throws OMMobileSecurityException {
+        for (AuthenticationService authService : mASM.loadAuthenticationServicesFor(this)) {
+            if (!authService.isValid(this, validateOnline)) {
+                boolean isDeleteUnPwd = !(mASM.getMSS()
+                        .getMobileSecurityConfig()
+                        .isOfflineAuthenticationAllowed());
+                deleteAuthContext(isDeleteUnPwd, true, true, false, false);
+                // Not deleted again by the subsequent isValid calls, see isValidInternal.
+                authContextDeleted = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Checks the validity of the OAuth tokens. If a token that matches the
      * request scopes is expired, it is refreshed if the refreshExpiredTokens
@@ -583,18 +614,15 @@ public class OMAuthenticationContext {
                     serviceType = AuthenticationService.Type.OPENIDCONNECT10;
                 }
                 if (serviceType != null) {
-                    mASM.getAuthServiceMap()
-                            .put(serviceType, // TODO handle for all grant types
-                                    mASM.getAuthService(serviceType));
+                    // TODO handle for all grant types
                     OAuthAuthenticationService oAuthService = (OAuthAuthenticationService) mASM
-                            .getAuthServiceMap().get(serviceType);
+                            .getAuthService(serviceType);
                     if (oAuthService != null) {
                         OMLog.info(TAG, "Checking validity for : " + oAuthService.getType().name());
                         isValid = oAuthService.isValid(this, scopes,
                                 refreshExpiredTokens);
                     } else
                         isValid = false;
-                    mASM.getAuthServiceMap().remove(serviceType);
                 }
             }
         }
@@ -723,12 +751,6 @@ public class OMAuthenticationContext {
                 }
             }
             while (authService != null);
-            if (isDeleteUnPwd && isDeleteCookies) {
-                //no op
-                //TODO To check with Jyotsna why this is required. Ideally auth services can be unloaded irrespctive of these flags.
-            } else {
-                mASM.unloadAuthServices();
-            }
         }
     }
 
@@ -825,6 +847,7 @@ public class OMAuthenticationContext {
     @SuppressWarnings("deprecated")
     public void logout(boolean forgetDevice) {
         mASM.getMSS().setLogoutInProgress(true);
+        credentialsChanged();
         boolean justRetainIdleTimeExpiryAsEpoch = false;
 
         if (forgetDevice) {
@@ -934,8 +957,126 @@ public class OMAuthenticationContext {
         return mTimeoutManager;
     }
 
-    void setOAuthTokenList(List<OAuthToken> newTokenList) {
+    /**
+     * Starts refreshing the OAuth access tokens ahead of their expiry, if
+     * {@link OMMobileSecurityService#OM_PROP_OAUTH_PROACTIVE_REFRESH_WINDOW}
+     * is configured.
+     */
+    private void startTokenRefresh() {
+        if (authenticationProvider != AuthenticationProvider.OAUTH20
+                && authenticationProvider != AuthenticationProvider.OPENIDCONNECT10) {
+            return;
+        }
+        OMMobileSecurityConfiguration config = mASM.getMSS().getMobileSecurityConfig();
+        if (config instanceof OMOAuthMobileSecurityConfiguration) {
+            int refreshWindow = ((OMOAuthMobileSecurityConfiguration) config).getProactiveRefreshWindow();
+            if (refreshWindow > 0) {
+                stopTokenRefresh();
+                OAuthTokenRefreshScheduler scheduler = new OAuthTokenRefreshScheduler(this, refreshWindow);
+                mTokenRefreshScheduler = scheduler;
+                scheduler.schedule();
+            }
+        }
+    }
+
+    /**
+     * Re-evaluates when the next background token refresh is due. To be called
+     * when an access token is refreshed on demand.
+     */
+    void rescheduleTokenRefresh() {
+        OAuthTokenRefreshScheduler scheduler = mTokenRefreshScheduler;
+        if (scheduler != null) {
+            scheduler.schedule();
+        }
+    }
+
+    /**
+     * Stops the background refresh of the OAuth access tokens, if running.
+     *
+     * @hide
+     */
+    public void stopTokenRefresh() {
+        OAuthTokenRefreshScheduler scheduler = mTokenRefreshScheduler;
+        mTokenRefreshScheduler = null;
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+    }
+
+    /**
+     * @return true if the OAuth access tokens are refreshed in the background.
+     * @hide
+     */
+    public boolean isTokenRefreshRunning() {
+        return mTokenRefreshScheduler != null;
+    }
+
+    synchronized void setOAuthTokenList(List<OAuthToken> newTokenList) {
         this.oAuthTokenList = newTokenList;
+        invalidateOAuthTokenIndex();
+    }
+
+    /**
+     * Swaps a refreshed access token in place of the token it was refreshed
+     * from. If the old token is no longer held, e.g. when it has been replaced
+     * by a concurrent refresh or removed by logout, the refreshed token is
+     * dropped. The list is only ever replaced, copy on write, while holding
+     * the monitor of this context, which is also held when tokens are
+     * cleared.
+     *
+     * @return true if the token was replaced.
+     */
+    boolean replaceOAuthToken(OAuthToken oldToken, OAuthToken newToken) {
+        synchronized (this) {
+            List<OAuthToken> tokens = new ArrayList<>(getOAuthTokenList());
+            int position = tokens.indexOf(oldToken);
+            if (position < 0) {
+                return false;
+            }
+            tokens.set(position, newToken);
+            setOAuthTokenList(tokens);
+        }
+        OMTokenRefreshCallback callback = mASM.getMSS().getTokenRefreshCallback();
+        if (callback != null) {
+            callback.onTokenRefreshed(this);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the scope index built over the OAuth token list. Must be called
+     * whenever the list returned by {@link #getOAuthTokenList()} is modified
+     * in place.
+     */
+    void invalidateOAuthTokenIndex() {
+        oAuthTokenIndex = null;
+        credentialsChanged();
+    }
+
+    /**
+     * A counter which changes whenever the tokens or credentials held by this
+     * context change, e.g. on token refresh or logout, so that callers can
+     * cache values derived from them, like request headers, and tell when
+     * to build them again.
+     *
+     * @hide
+     */
+    public int getCredentialsVersion() {
+        return mCredentialsVersion.get();
+    }
+
+    private void credentialsChanged() {
+        mCredentialsVersion.incrementAndGet();
+    }
+
+    private OAuthTokenIndex getOAuthTokenIndex() {
+        OAuthTokenIndex index = oAuthTokenIndex;
+        List<OAuthToken> tokenList = getOAuthTokenList();
+        if (index == null || index.size() != tokenList.size()) {
+            index = new OAuthTokenIndex(tokenList);
+            oAuthTokenIndex = index;
+        }
+        return index;
     }
 
     /**
@@ -991,28 +1132,15 @@ public class OMAuthenticationContext {
         if (!isOAuthRelated()) {
             return null;
         }
+        OAuthTokenIndex index = getOAuthTokenIndex();
         if (scopes == null || scopes.size() == 0) {
-            for (OMToken token : getOAuthTokenList()) {
-                matchedTokens.add(token);
-            }
+            matchedTokens.addAll(index.all());
         } else {
-            for (OMToken token : getOAuthTokenList()) {
-                OAuthToken oAuthToken = (OAuthToken) token;
-                if (oAuthToken.getScopes() != null) {
-                    if (oAuthToken.getScopes().containsAll(scopes)) {
-                        if (!token.isTokenExpired()) {
-                            // return only if token is not expired
-                            matchedTokens.add(token);
-                        }
-                    }
-                } else {
-                    // return auxillary tokens also as these are without scopes
-                    // and an oauth access token is always associated with a
-                    // scope if not set a default scopes is associated with the
-                    // token.
-                    matchedTokens.add(token);
-                }
-            }
+            // unexpired tokens holding all the scopes, and auxiliary tokens
+            // which are without scopes, as an oauth access token is always
+            // associated with a scope; if not set a default scope is
+            // associated with the token.
+            matchedTokens.addAll(index.match(scopes));
         }
         return matchedTokens;
     }
@@ -1083,6 +1211,7 @@ public class OMAuthenticationContext {
      *                 "cookieExpiryInMilliseconds" ... }, ...}
      */
     public void setCredentialInformation(Map<String, Object> credInfo) {
+        credentialsChanged();
         for (Map.Entry<String, Object> entry : credInfo.entrySet()) {
             Map<String, String> cookieValues = (Map<String, String>) entry
                     .getValue();
@@ -1328,6 +1457,7 @@ public class OMAuthenticationContext {
 
     void setTokens(Map<String, OMToken> tokens) {
         this.tokens = tokens;
+        credentialsChanged();
     }
 
     public Set<URI> getVisitedUrls() {
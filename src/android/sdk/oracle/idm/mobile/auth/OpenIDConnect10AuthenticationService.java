@@ -8,6 +8,8 @@ package oracle.idm.mobile.auth;
 
 import android.text.TextUtils;
 
+import com.nimbusds.jose.JWSVerifier;
+
 import org.json.JSONException;
 
 import java.net.URL;
@@ -22,8 +24,10 @@ import oracle.idm.mobile.OMErrorCode;
 import oracle.idm.mobile.OMMobileSecurityException;
 import oracle.idm.mobile.OMSecurityConstants;
 import oracle.idm.mobile.auth.logout.OMLogoutCompletionHandler;
+import oracle.idm.mobile.auth.openID.OpenIDSigningKeyCache;
 import oracle.idm.mobile.auth.openID.OpenIDToken;
 import oracle.idm.mobile.auth.openID.OpenIDTokenService;
+import oracle.idm.mobile.auth.openID.OpenIDTokenValidator;
 import oracle.idm.mobile.auth.openID.OpenIDUserInfo;
 import oracle.idm.mobile.configuration.OMMobileSecurityConfiguration;
 import oracle.idm.mobile.configuration.OMOICMobileSecurityConfiguration;
@@ -44,6 +48,8 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
     private static final String AUTHORIZATION = "Authorization";
     private OMOICMobileSecurityConfiguration idConfig;
     private OpenIDTokenService openIDTokenService;
+    private OpenIDTokenValidator idTokenValidator;
+    private OpenIDUserInfoLoader userInfoLoader;
 
     protected OpenIDConnect10AuthenticationService(AuthenticationServiceManager asm, OMAuthenticationCompletionHandler loginHandler, OMLogoutCompletionHandler logoutHandler) {
         super(asm, loginHandler, logoutHandler);
@@ -82,29 +88,11 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
                     if (!TextUtils.isEmpty(idTokenString)) {
                         OpenIDTokenService tokenService = new OpenIDTokenService();
                         OpenIDToken idToken = tokenService.generate(idTokenString, true);
-                        URL url = idConfig.getSigningCertEndpoint();
-                        OMLog.debug(TAG, "Getting Signing Cert details from URL: " + url);
-                        OMHTTPResponse response = getSigningCertForIDCS(url, accessToken);
-                        boolean verify = false;
-                        if (response != null) {
-                            int responseCode = response.getResponseCode();
-                            OMLog.debug(TAG, "Response Code: " + responseCode);
-                            String responseString;
-                            if (responseCode / 100 == 2) {
-                                responseString = response.getResponseStringOnSuccess();
-                                verify = true;
-                            } else {
-                                responseString = response.getResponseStringOnFailure();
-                                verify = false;//no verifying required
-                            }
-                            OMLog.debug(TAG, "Response String: " + responseString);
-                        } else {
-                            verify = false;//no verifying required
-                        }
                         //lets do local validation first
-                        if (isTokenValid(idToken, true)) {
-                            if (verify) {
-                                if (!isTokenVerified(idToken)) {
+                        if (isTokenValid(idToken)) {
+                            Boolean verified = verifySignature(idToken, accessToken);
+                            if (verified != null) {
+                                if (!verified) {
                                     OMLog.error(TAG, "ID Token Verification Failed!");
                                     error = true;
                                     mobileException = new OMMobileSecurityException(OMErrorCode.OPENID_TOKEN_SIGNATURE_INVALID);
@@ -161,13 +149,34 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
         OMLog.debug(TAG, "onOpenIDSuccess");
         authContext.getTokens().put(OpenIDToken.OPENID_CONNECT_TOKEN, idToken);//set token in the authContext
         authContext.setOpenIdUserInfo(createUserInfo(idToken));
+        if (getUserInfoLoader().isEnabled()) {
+            //runs while the rest of the login completes.
+            getUserInfoLoader().loadInBackground(authContext, idToken, accessToken);
+        }
         onAuthSuccess(authContext, accessToken, OMAuthenticationContext.AuthenticationProvider.OPENIDCONNECT10);
     }
 
+    /**
+     * The cached profile from the userinfo endpoint if there is one,
+     * otherwise the user info from the claims of the ID token.
+     */
     private OpenIDUserInfo createUserInfo(OpenIDToken idToken) {
+        if (getUserInfoLoader().isEnabled()) {
+            OpenIDUserInfo cachedUserInfo = getUserInfoLoader().getCachedUserInfo(idToken);
+            if (cachedUserInfo != null) {
+                return cachedUserInfo;
+            }
+        }
         return getOpenIDTokenService().generateUserInfo(idToken);
     }
 
+    private OpenIDUserInfoLoader getUserInfoLoader() {
+        if (userInfoLoader == null) {
+            userInfoLoader = new OpenIDUserInfoLoader(mASM, idConfig, getOpenIDTokenService());
+        }
+        return userInfoLoader;
+    }
+
     /**
      * Currently IDCS signing certs are OAuth protected
      *
@@ -189,9 +198,36 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
         return null;
     }
 
-    private boolean isTokenVerified(OpenIDToken token) {
+    /**
+     * Verifies the signature of the ID token with the signing keys of the
+     * OpenID provider, which are downloaded only when not already cached.
+     *
+     * @return whether the signature is valid, or null if the signing keys
+     * are not available, in which case the token is not verified.
+     */
+    private Boolean verifySignature(OpenIDToken token, final OAuthToken accessToken) {
         OMLog.debug(TAG, "Verifying the openID Token");
-        return true;
+        final URL url = idConfig.getSigningCertEndpoint();
+        if (url == null) {
+            return null;
+        }
+        OpenIDSigningKeyCache keyCache = OpenIDSigningKeyCache.getInstance(url.toString());
+        JWSVerifier verifier = keyCache.getVerifier(getOpenIDTokenService().getKeyID(token),
+                new OpenIDSigningKeyCache.KeySetLoader() {
+                    @Override
+                    public OMHTTPResponse load() {
+                        OMLog.debug(TAG, "Getting Signing Cert details from URL: " + url);
+                        return getSigningCertForIDCS(url, accessToken);
+                    }
+                });
+        if (verifier == null) {
+            if (!keyCache.hasKeys()) {
+                return null;
+            }
+            OMLog.error(TAG, "ID token is signed with an unknown key");
+            return false;
+        }
+        return getOpenIDTokenService().verify(token, verifier);
     }
 
     public OpenIDTokenService getOpenIDTokenService() {
@@ -202,61 +238,34 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
     }
 
     /**
-     * returns true only when <b>all</b> of the following claims match
-     * <p>validate issuer claim should match the one we from Open ID Discovery</p>
-     * <p>validate the aud claim contains the client_id of the open ID client given during initialization.</p>
-     * <p>validate if the azp claim is available, verify that it matches the client id</p>
-     * <p>Since SDK sends the nonce, it expects the same to be part of ID token claims, and it should match the original nonce sent while making authentication request</p>
-     *
-     * @param token
+     * Validator for the ID tokens of this configuration; the issuer and
+     * client ID can not change once the configuration is initialized.
      */
-    private boolean validateClaims(OpenIDToken token) {
-        OMLog.info(TAG, "ValidateClaims");
-        if (token != null && idConfig != null) {
-            boolean result = true;
-            //create reference claims
-            Map<String, String> referenceClaims = new HashMap<String, String>();
-            //issuer
-            referenceClaims.put(OpenIDToken.TokenClaims.ISSUER.getName(), idConfig.getIssuer());
-            //audience
-            referenceClaims.put(OpenIDToken.TokenClaims.AUDIENCE.getName(), idConfig.getOAuthClientID());
-
-            result = getOpenIDTokenService().validateClaims(token, referenceClaims);
-            if (result) {
-                //proceed further
-                //nonce
-                result = getOpenIDTokenService().ifExistsThenValidate(token, OpenIDToken.TokenClaims.NONCE, mASM.getOAuthConnectionsUtil().getOpenIDNonce());
-                if (result) {
-                    //azp
-                    result = getOpenIDTokenService().ifExistsThenValidate(token, OpenIDToken.TokenClaims.AUTHORIZATION_PARTY, idConfig.getOAuthClientID());
-                }
-            }
-            return result;
+    private OpenIDTokenValidator getIDTokenValidator() {
+        if (idTokenValidator == null) {
+            idTokenValidator = new OpenIDTokenValidator(idConfig.getIssuer(), idConfig.getOAuthClientID(),
+                    OpenIDTokenValidator.DEFAULT_CLOCK_SKEW_SECS);
         }
-        return false;
+        return idTokenValidator;
     }
 
-    private boolean isTokenValid(OpenIDToken token, boolean validateClaims) {
-        boolean result = true;
-        if (!token.isTokenExpired()) {
-            OMLog.debug(TAG, "OpenId token not expired!");
-            result = true;
-            if (validateClaims) {
-                result = validateClaims(token);
-                OMLog.debug(TAG, "Validate claims result: " + result);
-            }
-            OMLog.debug(TAG, "validateOpenIDToken( validateClaims: " + true + ")" + " Result: " + result);
-            return result;
-        } else {
-            OMLog.debug(TAG, "OpenID token is Expired");
+    /**
+     * Complete validation of a token received during login: time claims,
+     * issuer, audience, authorized party and nonce.
+     */
+    private boolean isTokenValid(OpenIDToken token) {
+        if (idConfig == null) {
             return false;
         }
+        boolean result = getIDTokenValidator().validate(token, mASM.getOAuthConnectionsUtil().getOpenIDNonce());
+        OMLog.debug(TAG, "validateOpenIDToken Result: " + result);
+        return result;
     }
 
-    private boolean isValidIdToken(OMAuthenticationContext authContext, boolean completeValidation) {
+    private boolean isValidIdToken(OMAuthenticationContext authContext) {
         OpenIDToken token = (OpenIDToken) authContext.getTokens().get(OpenIDToken.OPENID_CONNECT_TOKEN);
         if (token != null) {
-            boolean result = isTokenValid(token, completeValidation);
+            boolean result = idConfig != null && getIDTokenValidator().isValid(token);
             OMLog.debug(TAG, "isValid(IDToken) -> " + result);
             return result;
         }
@@ -270,7 +279,7 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
         if (authContext.getAuthenticationProvider() == OMAuthenticationContext.AuthenticationProvider.OPENIDCONNECT10) {
             boolean result = isValidInternalAccessToken(authContext, validateOnline);//standard access token validation used in all OAuth services
             OMLog.debug(TAG, "Access token(s) valid : " + result);
-            result = isValidIdToken(authContext, false);
+            result = isValidIdToken(authContext);
             return result;
         }
         OMLog.info(TAG, "isValid - Not an Open ID Use case!");
@@ -281,7 +290,7 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
     boolean isValid(OMAuthenticationContext authContext, Set<String> requiredScopes, boolean refreshExpiredToken) throws OMMobileSecurityException {
         if (super.isValid(authContext, requiredScopes, refreshExpiredToken)) {
             OMLog.debug(TAG, "Access token(s) valid : " + true);
-            return isValidIdToken(authContext, false);//already the claims and signature is verified, we may change this behavior later, when its required.
+            return isValidIdToken(authContext);//claims and signature are verified at login, only the time claims are checked again.
         } else {
             OMLog.debug(TAG, "Access token(s) valid : " + false);
         }
@@ -293,6 +302,12 @@ public class OpenIDConnect10AuthenticationService extends OAuthAuthorizationCode
         if (authContext.getAuthenticationProvider() == OMAuthenticationContext.AuthenticationProvider.OPENIDCONNECT10) {
             OMLog.debug(TAG, "~logout~");
             URL logoutURL = mConfig.getLogoutUrl();
+            if (isDeleteUnPwd && getUserInfoLoader().isEnabled()) {
+                OpenIDUserInfo userInfo = authContext.getOpenIDUserInfo();
+                if (userInfo != null) {
+                    getUserInfoLoader().removeCachedUserInfo(userInfo.getUserSubject());
+                }
+            }
             if (isLogoutCall && logoutURL != null) {
                 //invoke logout URL using logout handlers.
                 handle3LeggedLogout(authContext, true);
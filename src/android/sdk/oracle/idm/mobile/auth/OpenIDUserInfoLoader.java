@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth;
+
+import android.text.TextUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import oracle.idm.mobile.OMMobileSecurityException;
+import oracle.idm.mobile.OMMobileSecurityService;
+import oracle.idm.mobile.auth.openID.OpenIDToken;
+import oracle.idm.mobile.auth.openID.OpenIDTokenService;
+import oracle.idm.mobile.auth.openID.OpenIDUserInfo;
+import oracle.idm.mobile.configuration.OMOICMobileSecurityConfiguration;
+import oracle.idm.mobile.connection.OMHTTPResponse;
+import oracle.idm.mobile.credentialstore.OMCredentialStore;
+import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
+
+/**
+ * Fetches the profile of the user from the userinfo endpoint of the OpenID
+ * provider after login, when enabled using
+ * {@link OMMobileSecurityService#OM_PROP_OPENID_CONNECT_FETCH_USER_INFO}.
+ * <p>
+ * The last response for a user is kept encrypted in the credential store
+ * along with its ETag. On the next login of the same user, the cached
+ * profile is made available in the authentication context right away, and
+ * the endpoint is asked in the background only whether it changed.
+ *
+ * @hide
+ */
+class OpenIDUserInfoLoader {
+    private static final String TAG = OpenIDUserInfoLoader.class.getSimpleName();
+    private static final String USER_INFO_SUFFIX = "_OpenIDUserInfo";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_RESPONSE = "response";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String AUTHORIZATION = "Authorization";
+    private static final String BEARER = "Bearer";
+
+    private final AuthenticationServiceManager mASM;
+    private final OMOICMobileSecurityConfiguration mConfig;
+    private final OpenIDTokenService mTokenService;
+
+    OpenIDUserInfoLoader(AuthenticationServiceManager asm, OMOICMobileSecurityConfiguration config,
+                         OpenIDTokenService tokenService) {
+        mASM = asm;
+        mConfig = config;
+        mTokenService = tokenService;
+    }
+
+    boolean isEnabled() {
+        return mConfig.isUserInfoFetchEnabled() && mConfig.getUserInfoEndpoint() != null;
+    }
+
+    /**
+     * Returns the cached profile of the subject of the given ID token, or
+     * null if there is none.
+     */
+    OpenIDUserInfo getCachedUserInfo(OpenIDToken idToken) {
+        JSONObject cached = readCache(idToken.getSubject());
+        if (cached == null) {
+            return null;
+        }
+        try {
+            return mTokenService.generateUserInfo(idToken, cached.getString(KEY_RESPONSE));
+        } catch (JSONException e) {
+            OMLog.error(TAG, "Discarding unreadable cached user info", e);
+            removeCachedUserInfo(idToken.getSubject());
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the profile in the background and sets it in the
+     * authentication context, unless the context no longer holds the given ID
+     * token by then (e.g. after logout).
+     */
+    void loadInBackground(final OMAuthenticationContext authContext, final OpenIDToken idToken,
+                          final OAuthToken accessToken) {
+        OMExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                OpenIDUserInfo userInfo = fetch(idToken, accessToken);
+                if (userInfo != null
+                        && authContext.getTokens().get(OpenIDToken.OPENID_CONNECT_TOKEN) == idToken) {
+                    authContext.setOpenIdUserInfo(userInfo);
+                }
+            }
+        }, OMExecutor.Priority.BACKGROUND);
+    }
+
+    void removeCachedUserInfo(String subject) {
+        if (!TextUtils.isEmpty(subject)) {
+            getCredentialStore().deleteSecureString(cacheKey(subject));
+        }
+    }
+
+    private OpenIDUserInfo fetch(OpenIDToken idToken, OAuthToken accessToken) {
+        String subject = idToken.getSubject();
+        JSONObject cached = readCache(subject);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(AUTHORIZATION, BEARER + " " + accessToken.getValue());
+        String etag = cached != null ? cached.optString(KEY_ETAG, null) : null;
+        if (!TextUtils.isEmpty(etag)) {
+            headers.put(HEADER_IF_NONE_MATCH, etag);
+        }
+        try {
+            URL url = mConfig.getUserInfoEndpoint();
+            OMLog.debug(TAG, "Fetching user info from URL: " + url);
+            OMHTTPResponse response = mASM.getMSS().getConnectionHandler().httpGet(url, headers);
+            if (response == null) {
+                return null;
+            }
+            if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                OMLog.debug(TAG, "Cached user info is still current");
+                return mTokenService.generateUserInfo(idToken, cached.getString(KEY_RESPONSE));
+            }
+            if (response.getResponseCode() / 100 == 2) {
+                String userInfoResponse = response.getResponseStringOnSuccess();
+                OpenIDUserInfo userInfo = mTokenService.generateUserInfo(idToken, userInfoResponse);
+                if (userInfo != null) {
+                    writeCache(subject, userInfoResponse, header(response.getResponseHeaders(), HEADER_ETAG));
+                }
+                return userInfo;
+            }
+            OMLog.error(TAG, "Unable to fetch user info, response code: " + response.getResponseCode());
+        } catch (OMMobileSecurityException e) {
+            OMLog.error(TAG, "Unable to fetch user info: " + e.getErrorMessage());
+        } catch (JSONException e) {
+            OMLog.error(TAG, "Invalid user info response", e);
+        }
+        return null;
+    }
+
+    private JSONObject readCache(String subject) {
+        if (TextUtils.isEmpty(subject)) {
+            return null;
+        }
+        String cached = getCredentialStore().getSecureString(cacheKey(subject));
+        if (cached == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(cached);
+        } catch (JSONException e) {
+            OMLog.error(TAG, "Discarding unreadable cached user info", e);
+            removeCachedUserInfo(subject);
+            return null;
+        }
+    }
+
+    private void writeCache(String subject, String userInfoResponse, String etag) {
+        if (TextUtils.isEmpty(subject)) {
+            return;
+        }
+        try {
+            JSONObject cached = new JSONObject();
+            cached.put(KEY_RESPONSE, userInfoResponse);
+            if (etag != null) {
+                cached.put(KEY_ETAG, etag);
+            }
+            getCredentialStore().addSecureString(cacheKey(subject), cached.toString());
+        } catch (JSONException e) {
+            OMLog.error(TAG, e.getMessage(), e);
+        }
+    }
+
+    private String cacheKey(String subject) {
+        return mConfig.getUserInfoEndpoint() + "_" + subject + USER_INFO_SUFFIX;
+    }
+
+    private OMCredentialStore getCredentialStore() {
+        return mASM.getMSS().getCredentialStoreService();
+    }
+
+    private static String header(Map<String, List<String>> headers, String name) {
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null
+                        && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+        }
+        return null;
+    }
+}
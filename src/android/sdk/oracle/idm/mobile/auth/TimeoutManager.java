@@ -158,6 +158,14 @@ public class TimeoutManager {
         scheduler.shutdown();
     }
 
+    /**
+     * @return true once the timers are stopped, after which none of them fires.
+     * @hide
+     */
+    public boolean isStopped() {
+        return scheduler.isShutdown();
+    }
+
     private void stopSessionTimer() {
         OMLog.debug(TAG, "Stopping session timer");
 
@@ -70,7 +70,7 @@ public class OMAuthenticationManager {
      * @return singleton instance of OMAuthenticationManager
      * @throws OMAuthenticationManagerException
      */
-    public static OMAuthenticationManager getInstance(Context context)
+    public static synchronized OMAuthenticationManager getInstance(Context context)
             throws OMAuthenticationManagerException {
 
         if (context == null) {
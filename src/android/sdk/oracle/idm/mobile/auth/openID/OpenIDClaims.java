@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth.openID;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read only view over a JSON object of claims, i.e. the payload of an ID
+ * token or the response of the userinfo endpoint. Claims are read from the
+ * parsed JSON when asked for; nothing is copied or converted up front.
+ * {@link #toMap()} builds the full map of claims only for the callers
+ * which need it, once.
+ *
+ * @hide
+ */
+final class OpenIDClaims {
+
+    private static final String EXPIRY_TIME = OpenIDToken.TokenClaims.EXPIRY_TIME.getName();
+    private static final String NOT_BEFORE = OpenIDToken.TokenClaims.NOT_BEFORE.getName();
+    private static final String ISSUED_AT = OpenIDToken.TokenClaims.ISSUED_AT.getName();
+
+    private final JSONObject mJSON;
+    private volatile Map<String, Object> mMap;
+
+    OpenIDClaims(JSONObject json) {
+        mJSON = json;
+    }
+
+    boolean has(String name) {
+        return !mJSON.isNull(name);
+    }
+
+    /**
+     * Returns the claim as a string, or null if it is absent or not a string.
+     */
+    String getString(String name) {
+        Object value = mJSON.opt(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Returns a claim which may be a single string or an array of strings,
+     * like {@code aud}, as a list.
+     */
+    List<String> getStringList(String name) {
+        Object value = mJSON.opt(name);
+        if (value instanceof String) {
+            return Collections.singletonList((String) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<String> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                Object item = array.opt(i);
+                if (item instanceof String) {
+                    list.add((String) item);
+                }
+            }
+            return list;
+        }
+        return null;
+    }
+
+    /**
+     * Whether the claim is the given string (ignoring case), or an array
+     * which contains it. Nothing is allocated.
+     */
+    boolean containsString(String name, String value) {
+        Object claim = mJSON.opt(name);
+        if (claim instanceof String) {
+            return ((String) claim).equalsIgnoreCase(value);
+        }
+        if (claim instanceof JSONArray) {
+            JSONArray array = (JSONArray) claim;
+            for (int i = 0; i < array.length(); i++) {
+                if (value.equals(array.opt(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a NumericDate claim (seconds since the epoch) as a date.
+     */
+    Date getDate(String name) {
+        Object value = mJSON.opt(name);
+        if (value instanceof Number) {
+            return new Date(((Number) value).longValue() * 1000L);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a NumericDate claim in seconds since the epoch, or -1 if it is
+     * absent.
+     */
+    long getSeconds(String name) {
+        Object value = mJSON.opt(name);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the claim converted like in {@link #toMap()}, without
+     * converting the other claims.
+     */
+    Object get(String name) {
+        Object value = mJSON.opt(name);
+        if (value instanceof Number
+                && (EXPIRY_TIME.equals(name) || NOT_BEFORE.equals(name) || ISSUED_AT.equals(name))) {
+            return new Date(((Number) value).longValue() * 1000L);
+        }
+        return toJava(value);
+    }
+
+    /**
+     * All the claims, with JSON arrays as lists, JSON objects as maps and the
+     * standard time claims as dates.
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> map = mMap;
+        if (map == null) {
+            map = Collections.unmodifiableMap(toMap(mJSON, true));
+            mMap = map;
+        }
+        return map;
+    }
+
+    private static Map<String, Object> toMap(JSONObject json, boolean topLevel) {
+        Map<String, Object> map = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.opt(key);
+            if (topLevel && value instanceof Number
+                    && (EXPIRY_TIME.equals(key) || NOT_BEFORE.equals(key) || ISSUED_AT.equals(key))) {
+                value = new Date(((Number) value).longValue() * 1000L);
+            }
+            map.put(key, toJava(value));
+        }
+        return map;
+    }
+
+    private static Object toJava(Object value) {
+        if (value instanceof JSONObject) {
+            return toMap((JSONObject) value, false);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(toJava(array.opt(i)));
+            }
+            return list;
+        }
+        if (value == JSONObject.NULL) {
+            return null;
+        }
+        return value;
+    }
+
+    static OpenIDClaims parse(String json) throws JSONException {
+        return new OpenIDClaims(new JSONObject(json));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth.openID;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import oracle.idm.mobile.connection.OMHTTPResponse;
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Caches the ID token signing keys published at the JWKS URI of an OpenID
+ * provider, as ready to use {@link JWSVerifier}s keyed by {@code kid}, so
+ * that ID tokens can be verified without contacting the server on every
+ * login.
+ * <p>
+ * The key set is downloaded again when it is older than its max-age (or
+ * {@link #DEFAULT_TTL_MILLIS} if the server does not send one), or when a
+ * token is signed with a key which is not in the set, which is what happens
+ * after the provider rotates its keys. Downloads are never more frequent
+ * than {@link #MIN_REFRESH_INTERVAL_MILLIS}, so tokens with bogus key IDs can
+ * not make the SDK hammer the server. If a download fails, the keys already
+ * known are kept.
+ *
+ * @hide
+ */
+public class OpenIDSigningKeyCache {
+
+    /**
+     * Downloads the key set.
+     */
+    public interface KeySetLoader {
+        /**
+         * @return the response of the JWKS URI, or null if it could not be
+         * reached.
+         */
+        OMHTTPResponse load();
+    }
+
+    private static final String TAG = OpenIDSigningKeyCache.class.getSimpleName();
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long MIN_REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String MAX_AGE = "max-age=";
+
+    private static final ConcurrentMap<String, OpenIDSigningKeyCache> sCaches = new ConcurrentHashMap<>();
+
+    private Map<String, JWSVerifier> mVerifiers = new HashMap<>();
+    private boolean mKeysLoaded;
+    private long mLastLoadTime;
+    private long mExpiryTime;
+
+    private OpenIDSigningKeyCache() {
+    }
+
+    /**
+     * Returns the cache for the given JWKS URI. The cache is shared by all
+     * the instances of the SDK in the process.
+     */
+    public static OpenIDSigningKeyCache getInstance(String jwksURI) {
+        OpenIDSigningKeyCache cache = sCaches.get(jwksURI);
+        if (cache == null) {
+            OpenIDSigningKeyCache newCache = new OpenIDSigningKeyCache();
+            cache = sCaches.putIfAbsent(jwksURI, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the verifier for the signing key with the given ID, loading
+     * the key set if required. If {@code kid} is null, the only signing key
+     * of the set is returned.
+     *
+     * @return the verifier, or null if there is no such key. Use
+     * {@link #hasKeys()} to know whether that is because the key set could
+     * not be loaded at all.
+     */
+    public synchronized JWSVerifier getVerifier(String kid, KeySetLoader loader) {
+        long now = System.currentTimeMillis();
+        JWSVerifier verifier = find(kid);
+        if (verifier != null && now < mExpiryTime) {
+            return verifier;
+        }
+        if (now - mLastLoadTime >= MIN_REFRESH_INTERVAL_MILLIS) {
+            OMLog.debug(TAG, verifier == null ? "Signing key " + kid + " not known, loading the key set"
+                    : "Signing keys expired, loading the key set");
+            load(loader, now);
+            verifier = find(kid);
+        } else if (verifier == null) {
+            OMLog.debug(TAG, "Signing key " + kid + " not known, key set was loaded recently");
+        }
+        return verifier;
+    }
+
+    /**
+     * Whether a key set has been loaded from the server.
+     */
+    public synchronized boolean hasKeys() {
+        return mKeysLoaded;
+    }
+
+    private JWSVerifier find(String kid) {
+        if (kid != null) {
+            return mVerifiers.get(kid);
+        }
+        if (mVerifiers.size() == 1) {
+            return mVerifiers.values().iterator().next();
+        }
+        return null;
+    }
+
+    private void load(KeySetLoader loader, long now) {
+        mLastLoadTime = now;
+        OMHTTPResponse response = loader.load();
+        if (response == null || response.getResponseCode() / 100 != 2) {
+            OMLog.error(TAG, "Could not load the signing keys, keeping the known keys");
+            return;
+        }
+        try {
+            JWKSet keySet = JWKSet.parse(response.getResponseStringOnSuccess());
+            Map<String, JWSVerifier> verifiers = new HashMap<>();
+            int index = 0;
+            for (JWK key : keySet.getKeys()) {
+                if (key.getKeyUse() != null && key.getKeyUse() != KeyUse.SIGNATURE) {
+                    continue;
+                }
+                JWSVerifier verifier = toVerifier(key);
+                if (verifier != null) {
+                    // keys without an ID can only be used when they are the only key.
+                    verifiers.put(key.getKeyID() != null ? key.getKeyID() : "#" + index++, verifier);
+                }
+            }
+            mVerifiers = verifiers;
+            mKeysLoaded = true;
+            mExpiryTime = now + maxAgeOf(response.getResponseHeaders());
+            OMLog.debug(TAG, "Loaded " + verifiers.size() + " signing keys");
+        } catch (ParseException e) {
+            OMLog.error(TAG, "Could not parse the signing keys", e);
+        }
+    }
+
+    private static JWSVerifier toVerifier(JWK key) {
+        try {
+            if (key instanceof RSAKey) {
+                return new RSASSAVerifier(((RSAKey) key).toRSAPublicKey());
+            } else if (key instanceof ECKey) {
+                return new ECDSAVerifier(((ECKey) key).toECPublicKey());
+            }
+        } catch (JOSEException e) {
+            OMLog.error(TAG, "Skipping invalid signing key " + key.getKeyID(), e);
+        }
+        return null;
+    }
+
+    private static long maxAgeOf(Map<String, List<String>> headers) {
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (!CACHE_CONTROL.equalsIgnoreCase(header.getKey()) || header.getValue() == null) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    for (String directive : value.toLowerCase().split(",")) {
+                        directive = directive.trim();
+                        if (directive.startsWith(MAX_AGE)) {
+                            try {
+                                return TimeUnit.SECONDS.toMillis(
+                                        Long.parseLong(directive.substring(MAX_AGE.length()).trim()));
+                            } catch (NumberFormatException e) {
+                                OMLog.debug(TAG, "Invalid max-age : " + directive);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return DEFAULT_TTL_MILLIS;
+    }
+}
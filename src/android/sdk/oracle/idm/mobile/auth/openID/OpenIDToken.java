@@ -7,11 +7,16 @@
 package oracle.idm.mobile.auth.openID;
 
 import android.text.TextUtils;
+import android.util.Base64;
 
-import com.nimbusds.jose.JWSHeader;
-import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
 import com.nimbusds.jwt.SignedJWT;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.HashSet;
@@ -19,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 
 import oracle.idm.mobile.auth.OAuthToken;
+import oracle.idm.mobile.logging.OMLog;
 
 /**
  * Representation of an Open ID Token.
@@ -62,26 +68,52 @@ public class OpenIDToken extends OAuthToken {
     }
 
     private static final String TAG = OpenIDToken.class.getSimpleName();
+    private static final String KEY_ID = "kid";
+    private static final String UTF_8 = "UTF-8";
 
     public static final String OPENID_CONNECT_TOKEN = "openid_connect_token";
     public static final String OPENID_CONNECT_SCOPE = "openid";
 
-    private SignedJWT mSignedJWT;
-    private JWTClaimsSet mClaims;
-    private JWSHeader mJOSEHeaders;
-    private boolean isVerified = true;//TODO change this to when we have JWK in IDCS
+    private static final int SEGMENT_COUNT = 3;
+    private static final int BASE64URL_FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    private final String mHeaderSegment;
+    private final OpenIDClaims mClaims;
+    private volatile JSONObject mJOSEHeaders;
+    private boolean isVerified;
+    private volatile boolean mClaimsValidated;
 
 
-    OpenIDToken(SignedJWT jwt) throws ParseException {
-        super(OPENID_CONNECT_TOKEN, jwt.getParsedString());
-        mSignedJWT = jwt;
-        mJOSEHeaders = mSignedJWT.getHeader();
-        mClaims = mSignedJWT.getJWTClaimsSet();
-        expiryTime = mClaims.getExpirationTime();
+    /**
+     * Decodes the payload of the given compact serialized JWS once. The
+     * header is decoded only when needed, and the signature is parsed only
+     * when {@link #verify(JWSVerifier)} is called.
+     */
+    OpenIDToken(String raw) throws ParseException {
+        super(OPENID_CONNECT_TOKEN, raw);
+        String[] segments = raw.split("\\.", -1);
+        if (segments.length != SEGMENT_COUNT || segments[2].isEmpty()) {
+            throw new ParseException("ID token is not a signed JWT", 0);
+        }
+        mHeaderSegment = segments[0];
+        try {
+            mClaims = OpenIDClaims.parse(decode(segments[1]));
+        } catch (JSONException e) {
+            throw new ParseException("Invalid ID token payload: " + e.getMessage(), segments[0].length() + 1);
+        }
+        expiryTime = mClaims.getDate(TokenClaims.EXPIRY_TIME.getName());
         mScopes = new HashSet<>();
         mScopes.add(OpenIDToken.OPENID_CONNECT_SCOPE);
     }
 
+    private static String decode(String segment) throws ParseException {
+        try {
+            return new String(Base64.decode(segment, BASE64URL_FLAGS), UTF_8);
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            throw new ParseException("Invalid Base64URL segment in ID token", 0);
+        }
+    }
+
 
     /**
      * Get Issuer from the claims ({@code TokenClaims.ISSUER}
@@ -89,7 +121,7 @@ public class OpenIDToken extends OAuthToken {
      * @return
      */
     public String getIssuer() {
-        return mClaims.getIssuer();
+        return mClaims.getString(TokenClaims.ISSUER.getName());
     }
 
 
@@ -97,7 +129,7 @@ public class OpenIDToken extends OAuthToken {
      * Gets subject from claims({@code TokenClaims.SUBJECT})
      */
     public String getSubject() {
-        return mClaims.getSubject();
+        return mClaims.getString(TokenClaims.SUBJECT.getName());
     }
 
 
@@ -105,7 +137,7 @@ public class OpenIDToken extends OAuthToken {
      * Gets {@code List} of audience ({@code TokenClaims.AUDIENCE}) from claims
      */
     public List<String> getAudience() {
-        return mClaims.getAudience();
+        return mClaims.getStringList(TokenClaims.AUDIENCE.getName());
     }
 
 
@@ -121,7 +153,7 @@ public class OpenIDToken extends OAuthToken {
      * Gets the not-before time  ({@code TokenClaims.NOT_BEFORE}) from the claims.
      */
     public Date getNotBeforeTime() {
-        return mClaims.getNotBeforeTime();
+        return mClaims.getDate(TokenClaims.NOT_BEFORE.getName());
     }
 
 
@@ -129,7 +161,7 @@ public class OpenIDToken extends OAuthToken {
      * Gets the issued-at time ({@code TokenClaims.ISSUED_AT}) from the claims.
      */
     public Date getIssueTime() {
-        return mClaims.getIssueTime();
+        return mClaims.getDate(TokenClaims.ISSUED_AT.getName());
     }
 
 
@@ -137,7 +169,7 @@ public class OpenIDToken extends OAuthToken {
      * Gets the JWT ID from ({@code TokenClaims.JWT_ID}) claims.
      */
     public String getJWTID() {
-        return mClaims.getJWTID();
+        return mClaims.getString(TokenClaims.JWT_ID.getName());
     }
 
 
@@ -145,21 +177,75 @@ public class OpenIDToken extends OAuthToken {
      * Gets the type ({@code TokenClaims.TYPE}) from claims.
      */
     public String getTokenType() {
-        return (String) mClaims.getClaims().get(TokenClaims.TOKEN_TYPE.getName());
+        return mClaims.getString(TokenClaims.TOKEN_TYPE.getName());
     }
 
     Map<String, Object> getAllClaims() {
-        return mClaims.getClaims();
+        return mClaims.toMap();
+    }
+
+    OpenIDClaims getClaims() {
+        return mClaims;
     }
 
 
+    /**
+     * Whether the signature of the token has been verified with the signing
+     * key of the OpenID provider.
+     */
     public boolean isVerified() {
         return isVerified;
     }
 
+    /**
+     * Whether the claims other than the time claims have been validated by
+     * {@link OpenIDTokenValidator}.
+     */
+    boolean isClaimsValidated() {
+        return mClaimsValidated;
+    }
+
+    void setClaimsValidated() {
+        mClaimsValidated = true;
+    }
+
+    /**
+     * Gets the ID of the key the token is signed with, from the JOSE header.
+     */
+    String getKeyID() {
+        JSONObject headers = mJOSEHeaders;
+        if (headers == null) {
+            try {
+                headers = new JSONObject(decode(mHeaderSegment));
+            } catch (ParseException | JSONException e) {
+                OMLog.error(TAG, "Invalid ID token header", e);
+                return null;
+            }
+            mJOSEHeaders = headers;
+        }
+        return headers.optString(KEY_ID, null);
+    }
+
+    boolean verify(JWSVerifier verifier) {
+        try {
+            isVerified = SignedJWT.parse(getValue()).verify(verifier);
+        } catch (ParseException e) {
+            OMLog.error(TAG, "Unable to parse the ID token for verification", e);
+            isVerified = false;
+        } catch (JOSEException e) {
+            OMLog.error(TAG, "Unable to verify the signature of the ID token", e);
+            isVerified = false;
+        } catch (IllegalStateException e) {
+            // a token parsed from a string is always signed, so this is only a safety net.
+            OMLog.error(TAG, "ID token is not in a verifiable state", e);
+            isVerified = false;
+        }
+        return isVerified;
+    }
+
 
     public boolean matchStringClaim(TokenClaims claim, String expectedValue) {
-        Object actualValue = mClaims.getClaims().get(claim.name());
+        Object actualValue = mClaims.getString(claim.name());
         return actualValue instanceof String && !TextUtils.isEmpty(expectedValue) && expectedValue.equalsIgnoreCase((String) actualValue);
     }
 }
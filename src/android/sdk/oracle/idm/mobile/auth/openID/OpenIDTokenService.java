@@ -6,11 +6,16 @@
 
 package oracle.idm.mobile.auth.openID;
 
-import com.nimbusds.jose.JWSHeader;
-import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+
+import org.json.JSONException;
 
 import java.security.Key;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
 import java.util.List;
 import java.util.Map;
@@ -33,28 +38,86 @@ public class OpenIDTokenService {
     public OpenIDToken generate(String raw, boolean signed) throws ParseException {
         if (raw != null) {
             if (signed) {
-                SignedJWT signedJWT;
-                JWTClaimsSet claims;
-                JWSHeader headers;
-                return new OpenIDToken(SignedJWT.parse(raw));
+                return new OpenIDToken(raw);
             }
         }
         return null;
     }
 
-    public OpenIDToken validateAndGenerate(String raw, Key key) {
+    /**
+     * Parses the given signed token and verifies its signature with the given
+     * RSA or EC public key.
+     *
+     * @return the token, or null if the signature could not be verified.
+     */
+    public OpenIDToken validateAndGenerate(String raw, Key key) throws ParseException {
+        OpenIDToken token = generate(raw, true);
+        if (token == null) {
+            return null;
+        }
+        JWSVerifier verifier;
+        try {
+            if (key instanceof RSAPublicKey) {
+                verifier = new RSASSAVerifier((RSAPublicKey) key);
+            } else if (key instanceof ECPublicKey) {
+                verifier = new ECDSAVerifier((ECPublicKey) key);
+            } else {
+                OMLog.error(TAG, "Unsupported key for verifying the token");
+                return null;
+            }
+        } catch (JOSEException e) {
+            OMLog.error(TAG, e.getMessage(), e);
+            return null;
+        }
+        return verify(token, verifier) ? token : null;
+    }
 
-        return null;
+    /**
+     * Verifies the signature of the token with the given verifier, typically
+     * obtained from {@link OpenIDSigningKeyCache}.
+     */
+    public boolean verify(OpenIDToken token, JWSVerifier verifier) {
+        boolean result = token != null && verifier != null && token.verify(verifier);
+        OMLog.debug(TAG, "verify : " + result);
+        return result;
+    }
+
+    /**
+     * Returns the ID of the key the token is signed with, if it has one.
+     */
+    public String getKeyID(OpenIDToken token) {
+        return token != null ? token.getKeyID() : null;
     }
 
 
     public OpenIDUserInfo generateUserInfo(OpenIDToken token) {
         if (token != null) {
-            return new OpenIDUserInfo(token.getAllClaims());
+            return new OpenIDUserInfo(token.getClaims());
         }
         return null;
     }
 
+    /**
+     * Creates the user info from the response of the userinfo endpoint,
+     * falling back to the claims of the ID token for the values it does not
+     * contain.
+     *
+     * @return the user info, or null if the response is not about the
+     * subject of the ID token.
+     */
+    public OpenIDUserInfo generateUserInfo(OpenIDToken token, String userInfoResponse) throws JSONException {
+        if (token == null) {
+            return null;
+        }
+        OpenIDClaims userInfoClaims = OpenIDClaims.parse(userInfoResponse);
+        String subject = userInfoClaims.getString(OpenIDToken.TokenClaims.SUBJECT.getName());
+        if (subject == null || !subject.equals(token.getSubject())) {
+            OMLog.error(TAG, "userinfo response is not for the subject of the ID token");
+            return null;
+        }
+        return new OpenIDUserInfo(userInfoClaims, token.getClaims());
+    }
+
 
     /**
      * Validates the claim values passed are matching the claims of the token.
@@ -78,7 +141,7 @@ public class OpenIDTokenService {
             for (Map.Entry<String, String> entry : referenceClaims.entrySet()) {
                 String claimName = entry.getKey();
                 String claimValue = entry.getValue();
-                Object tokenClaimValue = token.getAllClaims().get(claimName);
+                Object tokenClaimValue = token.getClaims().get(claimName);
                 if (tokenClaimValue == null && claimValue != null) {//fail fast
                     result = false;
                     break;
@@ -119,8 +182,8 @@ public class OpenIDTokenService {
             return false;
         }
         if (expected != null) {
-            if (token.getAllClaims().containsKey(claim.getName())) {
-                boolean result = expected.equalsIgnoreCase((String) token.getAllClaims().get(claim.getName()));
+            if (token.getClaims().has(claim.getName())) {
+                boolean result = expected.equalsIgnoreCase(token.getClaims().getString(claim.getName()));
                 OMLog.debug(TAG, "Claim: " + claim.name() + " validate : " + result);
                 return result;
             } else {
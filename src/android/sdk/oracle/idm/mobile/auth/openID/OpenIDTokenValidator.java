@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.auth.openID;
+
+import java.util.Date;
+
+import oracle.idm.mobile.logging.OMLog;
+
+import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.AUDIENCE;
+import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.AUTHORIZATION_PARTY;
+import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.ISSUED_AT;
+import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.ISSUER;
+import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.NONCE;
+import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.NOT_BEFORE;
+
+/**
+ * Validates an ID token locally, in a single pass over its decoded claims:
+ * <ul>
+ * <li>{@code exp} is in the future</li>
+ * <li>{@code nbf} and {@code iat} are not in the future, allowing for the
+ * clock skew between the device and the server</li>
+ * <li>{@code iss} matches the issuer from the OpenID configuration</li>
+ * <li>{@code aud} contains the client ID, and {@code azp}, if present, is the
+ * client ID</li>
+ * <li>{@code nonce}, if present, is the nonce sent in the authentication
+ * request</li>
+ * </ul>
+ * The claims which can not change are checked once, when the token is
+ * received. Later validity checks only need the time claims, so they do not
+ * allocate and take constant time.
+ *
+ * @hide
+ */
+public class OpenIDTokenValidator {
+    private static final String TAG = OpenIDTokenValidator.class.getSimpleName();
+    /**
+     * Clock skew allowed for {@code nbf} and {@code iat}, in seconds.
+     */
+    public static final long DEFAULT_CLOCK_SKEW_SECS = 300;
+
+    private final String mIssuer;
+    private final String mClientID;
+    private final long mClockSkewSecs;
+
+    public OpenIDTokenValidator(String issuer, String clientID, long clockSkewSecs) {
+        mIssuer = issuer;
+        mClientID = clientID;
+        mClockSkewSecs = clockSkewSecs;
+    }
+
+    /**
+     * Complete validation of a token which has just been received.
+     *
+     * @param expectedNonce the nonce sent in the authentication request
+     */
+    public boolean validate(OpenIDToken token, String expectedNonce) {
+        if (token == null) {
+            return false;
+        }
+        boolean result = isCurrent(token) && validateStaticClaims(token.getClaims(), expectedNonce);
+        if (result) {
+            token.setClaimsValidated();
+        }
+        OMLog.debug(TAG, "validate : " + result);
+        return result;
+    }
+
+    /**
+     * Validity check of a token held by an authentication context. The
+     * claims other than the time claims are checked only if they have not
+     * been validated when the token was received; the nonce can not be
+     * checked at this point.
+     */
+    public boolean isValid(OpenIDToken token) {
+        if (token == null) {
+            return false;
+        }
+        if (!isCurrent(token)) {
+            return false;
+        }
+        if (!token.isClaimsValidated()) {
+            if (!validateStaticClaims(token.getClaims(), null)) {
+                return false;
+            }
+            token.setClaimsValidated();
+        }
+        return true;
+    }
+
+    private boolean isCurrent(OpenIDToken token) {
+        long now = System.currentTimeMillis();
+        Date expiry = token.getExpirationTime();
+        if (expiry != null && now >= expiry.getTime()) {
+            OMLog.debug(TAG, "ID token is expired");
+            return false;
+        }
+        OpenIDClaims claims = token.getClaims();
+        long latestAllowedSecs = now / 1000L + mClockSkewSecs;
+        if (claims.getSeconds(NOT_BEFORE.getName()) > latestAllowedSecs) {
+            OMLog.debug(TAG, "ID token is not yet valid");
+            return false;
+        }
+        if (claims.getSeconds(ISSUED_AT.getName()) > latestAllowedSecs) {
+            OMLog.debug(TAG, "ID token is issued in the future");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean validateStaticClaims(OpenIDClaims claims, String expectedNonce) {
+        String issuer = claims.getString(ISSUER.getName());
+        if (issuer == null ? mIssuer != null : !issuer.equalsIgnoreCase(mIssuer)) {
+            OMLog.debug(TAG, "Claim: iss is not valid");
+            return false;
+        }
+        if (mClientID != null && !claims.containsString(AUDIENCE.getName(), mClientID)) {
+            OMLog.debug(TAG, "Claim: aud does not contain the client ID");
+            return false;
+        }
+        String azp = claims.getString(AUTHORIZATION_PARTY.getName());
+        if (azp != null && mClientID != null && !azp.equalsIgnoreCase(mClientID)) {
+            OMLog.debug(TAG, "Claim: azp is not the client ID");
+            return false;
+        }
+        String nonce = claims.getString(NONCE.getName());
+        if (expectedNonce != null && nonce != null && !nonce.equalsIgnoreCase(expectedNonce)) {
+            OMLog.debug(TAG, "Claim: nonce does not match");
+            return false;
+        }
+        return true;
+    }
+}
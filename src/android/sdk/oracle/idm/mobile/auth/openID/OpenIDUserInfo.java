@@ -8,9 +8,6 @@ package oracle.idm.mobile.auth.openID;
 
 import android.text.TextUtils;
 
-import java.util.Map;
-
-import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.SESSION_EXPIRY;
 import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.SUBJECT;
 import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.USER_DISPLAY_NAME;
 import static oracle.idm.mobile.auth.openID.OpenIDToken.TokenClaims.USER_ID;
@@ -27,36 +24,38 @@ public class OpenIDUserInfo {
 
     private static final String TAG = OpenIDUserInfo.class.getSimpleName();
 
-    private Map<String, Object> mClaims;
-    private String mUserID;
+    private final OpenIDClaims mClaims;
+    private final OpenIDClaims mFallbackClaims;
     private String mUsername;
     private String mUserDOB;
-    private String mUserLang;
-    private String mUserTimeZone;
-    private String mUserLocale;
-    private String mDisplayName;
-    private String mUserTenantName;
-    private String mSubject;
     private String mSubjectMapAttribute;
     private long mSessionExpTime;
 
     /**
+     * Claims are read from the given view when asked for.
+     *
      * @param claims
      */
-    OpenIDUserInfo(Map<String, Object> claims) {
+    OpenIDUserInfo(OpenIDClaims claims) {
+        this(claims, null);
+    }
+
+    /**
+     * @param claims         claims returned by the userinfo endpoint
+     * @param fallbackClaims claims of the ID token, for the values the
+     *                       userinfo endpoint did not return
+     */
+    OpenIDUserInfo(OpenIDClaims claims, OpenIDClaims fallbackClaims) {
         mClaims = claims;
-        populate();
+        mFallbackClaims = fallbackClaims;
     }
 
-    private void populate() {
-        mUserTimeZone = (String) mClaims.get(USER_TIMEZONE.getName());
-        mSubject = (String) mClaims.get(SUBJECT.getName());
-        mUserLocale = (String) mClaims.get(USER_LOCAL.getName());
-        mDisplayName = (String) mClaims.get(USER_DISPLAY_NAME.getName());
-        mUserTenantName = (String) mClaims.get(USER_TENANT_NAME.getName());
-        mUserID = (String) mClaims.get(USER_ID.getName());
-        //mSessionExpTime = (long) mClaims.get(SESSION_EXPIRY.getName());
-        mUserLang = (String) mClaims.get(USER_LANG.getName());
+    private String getClaim(String name) {
+        String value = mClaims.getString(name);
+        if (value == null && mFallbackClaims != null) {
+            value = mFallbackClaims.getString(name);
+        }
+        return value;
     }
 
     public String getSubjectMapAttribute() {
@@ -64,17 +63,17 @@ public class OpenIDUserInfo {
     }
 
     public String getUserSubject() {
-        return mSubject;
+        return getClaim(SUBJECT.getName());
     }
 
 
     public String getUserID() {
-        return mUserID;
+        return getClaim(USER_ID.getName());
     }
 
     public String getUsername() {
         if (TextUtils.isEmpty(mUsername)) {
-            return mSubject;
+            return getUserSubject();
         }
         return mUsername;
     }
@@ -84,23 +83,23 @@ public class OpenIDUserInfo {
     }
 
     public String getUserLang() {
-        return mUserLang;
+        return getClaim(USER_LANG.getName());
     }
 
     public String getUserTimeZone() {
-        return mUserTimeZone;
+        return getClaim(USER_TIMEZONE.getName());
     }
 
     public String getUserLocale() {
-        return mUserLocale;
+        return getClaim(USER_LOCAL.getName());
     }
 
     public String getDisplayName() {
-        return mDisplayName;
+        return getClaim(USER_DISPLAY_NAME.getName());
     }
 
     public String getUserTenantName() {
-        return mUserTenantName;
+        return getClaim(USER_TENANT_NAME.getName());
     }
 
     public long getSessionExpTime() {
@@ -110,10 +109,10 @@ public class OpenIDUserInfo {
 
     public String toString() {
         StringBuilder sb = new StringBuilder("userInfo : {");
-        sb.append("user_id:" + mUserID);
-        sb.append(",user_tz:" + mUserTimeZone);
-        sb.append(",user_locale:" + mUserLocale);
-        sb.append(",sub:" + mSubject);
+        sb.append("user_id:" + getUserID());
+        sb.append(",user_tz:" + getUserTimeZone());
+        sb.append(",user_locale:" + getUserLocale());
+        sb.append(",sub:" + getUserSubject());
         sb.append(",subMapAttr:" + mSubjectMapAttribute);
         sb.append("}");
         return sb.toString();
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.callback;
+
+import oracle.idm.mobile.auth.OMAuthenticationContext;
+
+/**
+ * {@link OMTokenRefreshCallback} can be implemented by the calling client
+ * application to be notified when the SDK refreshes an OAuth access token,
+ * either on demand or in the background, e.g. to drop request headers it
+ * built from the previous token.
+ *
+ * @hide
+ */
+public interface OMTokenRefreshCallback
+{
+    /**
+     * This method will be called by the SDK after an access token of the
+     * authentication context has been replaced by a refreshed one. It may be
+     * called on any thread.
+     *
+     * @param authContext the authentication context holding the token.
+     */
+    public void onTokenRefreshed(OMAuthenticationContext authContext);
+}
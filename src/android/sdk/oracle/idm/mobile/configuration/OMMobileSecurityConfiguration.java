@@ -124,6 +124,7 @@ public abstract class OMMobileSecurityConfiguration {
     private String cryptoMode = "ECB";
     private String cryptoPadding = "PKCS5Padding";
     private int logoutTimeOutValue = DEFAULT_LOGOUT_TIMEOUT;
+    private int sdkExecutorPoolSize;
 
     private Map<String, String> mCustomHeadersMobileAgent;
     private boolean mSendIdDomainToMobileAgent;
@@ -464,7 +465,9 @@ public abstract class OMMobileSecurityConfiguration {
                                 || nameValue[0]
                                 .equalsIgnoreCase(OM_PROP_LOGIN_TIMEOUT_VALUE)
                                 || nameValue[0]
-                                .equalsIgnoreCase(OM_PROP_LOGOUT_TIMEOUT_VALUE))
+                                .equalsIgnoreCase(OM_PROP_LOGOUT_TIMEOUT_VALUE)
+                                || nameValue[0]
+                                .equalsIgnoreCase(OM_PROP_SDK_EXECUTOR_POOL_SIZE))
                         {
                             configPropertiesMap.put(nameValue[0],
                                     Integer.parseInt(nameValue[1]));
@@ -751,7 +754,8 @@ public abstract class OMMobileSecurityConfiguration {
                     || key.equals(OM_PROP_MAX_LOGIN_ATTEMPTS)
                     || key.equals(OM_PROP_SESSION_TIMEOUT_VALUE)
                     || key.equals(OM_PROP_LOGIN_TIMEOUT_VALUE)
-                    || key.equals(OM_PROP_LOGOUT_TIMEOUT_VALUE))
+                    || key.equals(OM_PROP_LOGOUT_TIMEOUT_VALUE)
+                    || key.equals(OM_PROP_SDK_EXECUTOR_POOL_SIZE))
             {
                 configPropertiesMap.put(key, configPropertiesJSON.optInt(key));
             }
@@ -885,6 +889,12 @@ public abstract class OMMobileSecurityConfiguration {
             this.logoutTimeOutValue = (Integer) logoutTimeoutObj;
         }
 
+        Object executorPoolSizeObj = configProperties
+                .get(OMMobileSecurityService.OM_PROP_SDK_EXECUTOR_POOL_SIZE);
+        if (executorPoolSizeObj instanceof Integer && (Integer) executorPoolSizeObj > 0) {
+            this.sdkExecutorPoolSize = (Integer) executorPoolSizeObj;
+        }
+
         Object clientCertEnabledObj = configProperties
                 .get(OM_PROP_PRESENT_CLIENT_IDENTITY_ON_DEMAND);
         if (clientCertEnabledObj instanceof Boolean) {
@@ -1322,6 +1332,15 @@ public abstract class OMMobileSecurityConfiguration {
         return logoutTimeOutValue;
     }
 
+    /**
+     * Gets the number of threads of the SDK executor
+     *
+     * @return pool size, or 0 if the default should be used
+     */
+    public int getSdkExecutorPoolSize() {
+        return sdkExecutorPoolSize;
+    }
+
     /**
      * Sets the logout timeout value
      *
@@ -49,6 +49,7 @@ public class OMOAuthMobileSecurityConfiguration extends
     private boolean isClientRegistrationRequired;
     private String mLoginHint = "defaultUser";
     protected String mClientRegistrationEndpoint;
+    private int mProactiveRefreshWindow;
 
 
     @SuppressWarnings("unchecked")
@@ -203,6 +204,11 @@ public class OMOAuthMobileSecurityConfiguration extends
             parseIdleTimeout(configProperties);
             parseForCustomAuthHeaders(configProperties);
             parseAuthzHeaderInLogout(configProperties);
+            Object refreshWindowObj = configProperties.get(OMMobileSecurityService.OM_PROP_OAUTH_PROACTIVE_REFRESH_WINDOW);
+            if (refreshWindowObj instanceof Integer && (Integer) refreshWindowObj > 0) {
+                mProactiveRefreshWindow = (Integer) refreshWindowObj;
+                OMLog.debug(TAG, "Proactive token refresh window : " + mProactiveRefreshWindow);
+            }
             if (mOAuthzGrantType == OAuthAuthorizationGrantType.RESOURCE_OWNER) {
                 parseOfflinePreferences(configProperties);
                 parseRememberCredentials(configProperties, FLAG_ENABLE_REMEMBER_USERNAME);
@@ -354,6 +360,14 @@ public class OMOAuthMobileSecurityConfiguration extends
         return isClientRegistrationRequired;
     }
 
+    /**
+     * Returns the window in seconds before access token expiry within which
+     * the token is refreshed in the background, or 0 if disabled.
+     */
+    public int getProactiveRefreshWindow() {
+        return mProactiveRefreshWindow;
+    }
+
     public String getLoginHint() {
         return mLoginHint;
     }
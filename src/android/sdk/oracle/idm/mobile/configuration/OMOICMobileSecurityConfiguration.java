@@ -13,10 +13,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -27,6 +29,7 @@ import oracle.idm.mobile.OMMobileSecurityService;
 import oracle.idm.mobile.connection.OMConnectionHandler;
 import oracle.idm.mobile.connection.OMHTTPResponse;
 import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
 
 /**
  * Mobile Security Configuration for OpenIDConnect1.0
@@ -64,8 +67,13 @@ public class OMOICMobileSecurityConfiguration extends OMOAuthMobileSecurityConfi
     private static final String REQUEST_PARAMETER_SUPPORTED = "request_parameter_supported";
     private static final String REQUEST_URI_PARAMETER_SUPPORTED = "request_uri_parameter_supported";
     private static final String REQUIRE_REQUEST_URI_REGISTRATION = "require_request_uri_registration";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
 
     private URL mConfigURL;
+    private boolean mConfigCacheEnabled = true;
+    private boolean mUserInfoFetchEnabled;
+    private boolean mRevokeTokensOnLogout;
+    private boolean mIntrospectTokens;
     private JSONObject mConfigJSON;
 
     //payload
@@ -112,6 +120,26 @@ public class OMOICMobileSecurityConfiguration extends OMOAuthMobileSecurityConfi
             authenticationUrl = mConfigURL;
         }
 
+        Object configCacheObj = configProperties.get(OMMobileSecurityService.OM_PROP_OPENID_CONNECT_CONFIGURATION_CACHE_ENABLED);
+        if (configCacheObj instanceof Boolean) {
+            mConfigCacheEnabled = (Boolean) configCacheObj;
+        }
+
+        Object fetchUserInfoObj = configProperties.get(OMMobileSecurityService.OM_PROP_OPENID_CONNECT_FETCH_USER_INFO);
+        if (fetchUserInfoObj instanceof Boolean) {
+            mUserInfoFetchEnabled = (Boolean) fetchUserInfoObj;
+        }
+
+        Object revokeTokensObj = configProperties.get(OMMobileSecurityService.OM_PROP_OPENID_CONNECT_REVOKE_TOKENS_ON_LOGOUT);
+        if (revokeTokensObj instanceof Boolean) {
+            mRevokeTokensOnLogout = (Boolean) revokeTokensObj;
+        }
+
+        Object introspectTokensObj = configProperties.get(OMMobileSecurityService.OM_PROP_OPENID_CONNECT_INTROSPECT_TOKENS);
+        if (introspectTokensObj instanceof Boolean) {
+            mIntrospectTokens = (Boolean) introspectTokensObj;
+        }
+
         Object configJSON = configProperties.get(OMMobileSecurityService.OM_PROP_OPENID_CONNECT_CONFIGURATION);
         if (configJSON instanceof String) {
             try {
@@ -211,13 +239,30 @@ public class OMOICMobileSecurityConfiguration extends OMOAuthMobileSecurityConfi
         OMLog.debug(TAG, "initialize");
         try {
             if (mConfigURL != null) {
+                long startTime = System.currentTimeMillis();
                 String discoveryURL = mConfigURL.toString();
-                OMLog.debug(TAG, "Downloading openID well known configuration from URL: " + discoveryURL);
-                OMHTTPResponse response = handler.httpGet(new URL(discoveryURL), null);
-                if (response != null && (response.getResponseCode() / 100 == 2)) {
-                    populateDetails(new JSONObject(response.getResponseStringOnSuccess()));
+                OpenIDConfigurationCache cache = mConfigCacheEnabled ? new OpenIDConfigurationCache(context) : null;
+                OpenIDConfigurationCache.Entry cached = cache != null ? cache.get(discoveryURL) : null;
+                if (cached != null && populateFromCache(cache, discoveryURL, cached)) {
+                    if (!cached.isFresh()) {
+                        revalidateInBackground(cache, discoveryURL, cached, handler);
+                    }
+                    OMLog.debug(TAG, "openID well known configuration loaded from cache in "
+                            + (System.currentTimeMillis() - startTime) + " ms");
                 } else {
-                    throw new OMMobileSecurityException(OMErrorCode.OPENID_FETCH_CONFIGURATION_FAILED);
+                    OMLog.debug(TAG, "Downloading openID well known configuration from URL: " + discoveryURL);
+                    OMHTTPResponse response = handler.httpGet(new URL(discoveryURL), null);
+                    if (response != null && (response.getResponseCode() / 100 == 2)) {
+                        populateDetails(new JSONObject(response.getResponseStringOnSuccess()));
+                        if (cache != null) {
+                            cache.put(discoveryURL, response.getResponseStringOnSuccess(),
+                                    response.getResponseHeaders());
+                        }
+                    } else {
+                        throw new OMMobileSecurityException(OMErrorCode.OPENID_FETCH_CONFIGURATION_FAILED);
+                    }
+                    OMLog.debug(TAG, "openID well known configuration downloaded in "
+                            + (System.currentTimeMillis() - startTime) + " ms");
                 }
                 try {
                     this.logoutSuccessUrl = new URL(getOAuthRedirectEndpoint());
@@ -236,6 +281,55 @@ public class OMOICMobileSecurityConfiguration extends OMOAuthMobileSecurityConfi
         }
     }
 
+    private boolean populateFromCache(OpenIDConfigurationCache cache, String discoveryURL,
+                                      OpenIDConfigurationCache.Entry cached) {
+        try {
+            populateDetails(new JSONObject(cached.document));
+            return true;
+        } catch (JSONException | MalformedURLException | OMMobileSecurityException e) {
+            OMLog.error(TAG, "Cached openID configuration is not usable, downloading it again", e);
+            cache.remove(discoveryURL);
+            return false;
+        }
+    }
+
+    /**
+     * Checks with the server whether the cached document is still current.
+     * An updated document is only stored, so that the endpoints of this
+     * configuration do not change while flows may be using them.
+     */
+    private void revalidateInBackground(final OpenIDConfigurationCache cache, final String discoveryURL,
+                                        final OpenIDConfigurationCache.Entry cached,
+                                        final OMConnectionHandler handler) {
+        OMExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, String> headers = null;
+                if (!TextUtils.isEmpty(cached.etag)) {
+                    headers = new HashMap<>();
+                    headers.put(HEADER_IF_NONE_MATCH, cached.etag);
+                }
+                try {
+                    OMHTTPResponse response = handler.httpGet(new URL(discoveryURL), headers);
+                    if (response == null) {
+                        return;
+                    }
+                    if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        OMLog.debug(TAG, "Cached openID configuration is still current");
+                        cache.revalidated(discoveryURL, cached, response.getResponseHeaders());
+                    } else if (response.getResponseCode() / 100 == 2) {
+                        new JSONObject(response.getResponseStringOnSuccess());
+                        OMLog.debug(TAG, "openID configuration changed, it will be used from the next setup");
+                        cache.put(discoveryURL, response.getResponseStringOnSuccess(),
+                                response.getResponseHeaders());
+                    }
+                } catch (OMMobileSecurityException | MalformedURLException | JSONException e) {
+                    OMLog.error(TAG, "Could not revalidate the openID configuration : " + e.getMessage());
+                }
+            }
+        }, OMExecutor.Priority.BACKGROUND);
+    }
+
     public URL getConfigURL() {
         return mConfigURL;
     }
@@ -252,6 +346,18 @@ public class OMOICMobileSecurityConfiguration extends OMOAuthMobileSecurityConfi
         return mUserInfoEndpoint;
     }
 
+    public boolean isUserInfoFetchEnabled() {
+        return mUserInfoFetchEnabled;
+    }
+
+    public boolean isRevokeTokensOnLogout() {
+        return mRevokeTokensOnLogout;
+    }
+
+    public boolean isIntrospectTokens() {
+        return mIntrospectTokens;
+    }
+
     public URL getIntrospectEndpoint() {
         return mIntrospectEndpoint;
     }
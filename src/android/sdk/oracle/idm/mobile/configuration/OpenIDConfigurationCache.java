@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.configuration;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Stores the OpenID discovery documents downloaded by
+ * {@link OMOICMobileSecurityConfiguration} in the shared preferences of the
+ * app, along with the validators returned by the server, so that the setup
+ * does not have to wait for the discovery URL on every app start.
+ * <p>
+ * Freshness follows the Cache-Control header of the response: a document
+ * served with {@code no-store} is not cached, and one without
+ * {@code max-age} is considered stale right away, i.e. it is used for the
+ * setup but revalidated in the background using its ETag.
+ *
+ * @hide
+ */
+class OpenIDConfigurationCache {
+    private static final String TAG = OpenIDConfigurationCache.class.getSimpleName();
+    private static final String PREFS_NAME = OpenIDConfigurationCache.class.getName();
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String NO_STORE = "no-store";
+    private static final String NO_CACHE = "no-cache";
+    private static final String MAX_AGE = "max-age=";
+
+    private static final String KEY_DOCUMENT = "document";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_FETCHED_AT = "fetchedAt";
+    private static final String KEY_MAX_AGE = "maxAge";
+
+    private final SharedPreferences mPrefs;
+
+    OpenIDConfigurationCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * A cached discovery document.
+     */
+    static class Entry {
+        final String document;
+        final String etag;
+        final long fetchedAt;
+        final long maxAgeMillis;
+
+        Entry(String document, String etag, long fetchedAt, long maxAgeMillis) {
+            this.document = document;
+            this.etag = etag;
+            this.fetchedAt = fetchedAt;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < fetchedAt + maxAgeMillis;
+        }
+    }
+
+    Entry get(String discoveryURL) {
+        String stored = mPrefs.getString(discoveryURL, null);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(stored);
+            return new Entry(json.getString(KEY_DOCUMENT), json.optString(KEY_ETAG, null),
+                    json.getLong(KEY_FETCHED_AT), json.getLong(KEY_MAX_AGE));
+        } catch (JSONException e) {
+            OMLog.error(TAG, "Discarding unreadable cached discovery document", e);
+            remove(discoveryURL);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the document of a 200 response, unless the server forbids it.
+     */
+    void put(String discoveryURL, String document, Map<String, List<String>> headers) {
+        String cacheControl = header(headers, HEADER_CACHE_CONTROL);
+        if (cacheControl != null && cacheControl.toLowerCase().contains(NO_STORE)) {
+            remove(discoveryURL);
+            return;
+        }
+        store(discoveryURL, new Entry(document, header(headers, HEADER_ETAG),
+                System.currentTimeMillis(), maxAgeOf(cacheControl)));
+    }
+
+    /**
+     * Marks the cached document as validated by a 304 response, renewing its
+     * freshness from the headers of that response.
+     */
+    void revalidated(String discoveryURL, Entry entry, Map<String, List<String>> headers) {
+        String etag = header(headers, HEADER_ETAG);
+        store(discoveryURL, new Entry(entry.document, etag != null ? etag : entry.etag,
+                System.currentTimeMillis(), maxAgeOf(header(headers, HEADER_CACHE_CONTROL))));
+    }
+
+    void remove(String discoveryURL) {
+        mPrefs.edit().remove(discoveryURL).apply();
+    }
+
+    private void store(String discoveryURL, Entry entry) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put(KEY_DOCUMENT, entry.document);
+            if (entry.etag != null) {
+                json.put(KEY_ETAG, entry.etag);
+            }
+            json.put(KEY_FETCHED_AT, entry.fetchedAt);
+            json.put(KEY_MAX_AGE, entry.maxAgeMillis);
+            mPrefs.edit().putString(discoveryURL, json.toString()).apply();
+        } catch (JSONException e) {
+            OMLog.error(TAG, e.getMessage(), e);
+        }
+    }
+
+    private static long maxAgeOf(String cacheControl) {
+        if (cacheControl == null || cacheControl.toLowerCase().contains(NO_CACHE)) {
+            return 0;
+        }
+        for (String directive : cacheControl.toLowerCase().split(",")) {
+            directive = directive.trim();
+            if (directive.startsWith(MAX_AGE)) {
+                try {
+                    return TimeUnit.SECONDS.toMillis(
+                            Long.parseLong(directive.substring(MAX_AGE.length()).trim()));
+                } catch (NumberFormatException e) {
+                    OMLog.debug(TAG, "Invalid max-age : " + directive);
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static String header(Map<String, List<String>> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null
+                    && !header.getValue().isEmpty()) {
+                String value = TextUtils.join(",", header.getValue());
+                return TextUtils.isEmpty(value) ? null : value;
+            }
+        }
+        return null;
+    }
+}
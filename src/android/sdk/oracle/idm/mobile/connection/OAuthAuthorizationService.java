@@ -24,6 +24,7 @@ import oracle.idm.mobile.auth.OMAuthenticationContext;
 import oracle.idm.mobile.auth.OMToken;
 import oracle.idm.mobile.callback.OMHTTPRequestCallback;
 import oracle.idm.mobile.logging.OMLog;
+import oracle.idm.mobile.util.OMExecutor;
 
 /**
  * This class handles Authorization request with OAuth servers.
@@ -53,7 +54,8 @@ class OAuthAuthorizationService {
 
     protected OMHTTPResponse handleAuthorization(OAuthHttpRequest httpRequest,
                                                  OMAuthenticationContext authContext, OMHTTPRequestCallback callback) {
-        new ExecuteRequestTask(httpRequest, authContext, callback, this).execute();
+        new ExecuteRequestTask(httpRequest, authContext, callback, this).executeOnExecutor(
+                OMExecutor.getInstance().getExecutor(OMExecutor.Priority.INTERACTIVE));
         return null;
     }
 
@@ -702,7 +702,7 @@ public class OMConnectionHandler {
      *
      * @return
      */
-    public OMCertificateService getCertificateService() throws CertificateException {
+    public synchronized OMCertificateService getCertificateService() throws CertificateException {
         if (mCertificateService == null) {
             mCertificateService = new OMCertificateService(mContext);
         }
@@ -720,6 +720,18 @@ public class OMConnectionHandler {
         return mSocketFactory;
     }
 
+    /**
+     * Applies the SSL setup of the SDK, i.e. the certificates trusted by the
+     * SDK and the client certificate handling, to a connection which is not
+     * opened by this handler. Hostname verification is left to the default
+     * verifier.
+     *
+     * @hide
+     */
+    public void applySSLSocketFactory(HttpsURLConnection connection) throws GeneralSecurityException {
+        connection.setSSLSocketFactory(getSSLSocketFactory());
+    }
+
     private HttpsURLConnection getSecureUrlConnection(URL url) throws IOException, GeneralSecurityException {
         HttpsURLConnection connection;
         connection = (HttpsURLConnection) url.openConnection();
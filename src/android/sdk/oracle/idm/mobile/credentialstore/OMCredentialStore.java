@@ -52,6 +52,11 @@ public class OMCredentialStore
      * This is appended with the key passed to store/retrieve/delete the retry count in offline authentication.
      */
     private static final String RETRY_COUNT_SUFFIX = "_retryCount";
+
+    /**
+     * This is appended with the key passed to store/retrieve/delete the encrypted data of the SDK.
+     */
+    private static final String SECURE_DATA_SUFFIX = "_SecureData";
     private Context context;
     private String mAuthenticatorName;
     private String mAuthenticatorInstanceId;
@@ -398,6 +403,64 @@ public class OMCredentialStore
         }
     }
 
+    /**
+     * Internal API to store a string encrypted in the same way as the
+     * credentials, for data of the SDK which should not be stored in clear
+     * text.
+     *
+     * @param key
+     * @param value
+     * @hide
+     */
+    public void addSecureString(String key, String value)
+    {
+        if (!TextUtils.isEmpty(key) && value != null)
+        {
+            store(key + SECURE_DATA_SUFFIX, value);
+        }
+    }
+
+    /**
+     * Internal API to retrieve a string stored using
+     * {@link #addSecureString(String, String)}.
+     *
+     * @param key
+     * @return the decrypted string, or null if it is not available.
+     * @hide
+     */
+    public String getSecureString(String key)
+    {
+        OMSecureStorageService sss = getSecureStorageService();
+        if (!TextUtils.isEmpty(key) && sss != null)
+        {
+            try {
+                Serializable data = sss.get(key + SECURE_DATA_SUFFIX);
+                if (data instanceof String) {
+                    return (String) data;
+                }
+            } catch (OMSecureStorageException e) {
+                OMLog.error(TAG, e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Internal API to delete a string stored using
+     * {@link #addSecureString(String, String)}.
+     *
+     * @param key
+     * @hide
+     */
+    public void deleteSecureString(String key)
+    {
+        OMSecureStorageService sss = getSecureStorageService();
+        if (!TextUtils.isEmpty(key) && sss != null)
+        {
+            sss.delete(key + SECURE_DATA_SUFFIX);
+        }
+    }
+
     /**
      * Internal API to store the authentication context to the persistent
      * storage. This will avoid name space collisions with the app/auth key used
@@ -555,7 +618,19 @@ public class OMCredentialStore
         return mAuthenticator;
     }
 
-    private OMSecureStorageService getSecureStorageService() {
+    /**
+     * Internal API to initialize the authenticator and unlock its key store
+     * ahead of the first read or write, e.g. while the SDK is being set up.
+     *
+     * @return true if the encrypted data can be read and written.
+     * @hide
+     */
+    public boolean unlock()
+    {
+        return getSecureStorageService() != null;
+    }
+
+    private synchronized OMSecureStorageService getSecureStorageService() {
         if (mSecureStorageService == null) {
             try {
                 if (mAuthenticator == null) {
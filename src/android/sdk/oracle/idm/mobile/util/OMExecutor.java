@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+
+
+package oracle.idm.mobile.util;
+
+import android.os.Build;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Thread pool on which the SDK runs its background work (setup,
+ * authentication steps, token refresh), instead of the serial executor of
+ * {@link android.os.AsyncTask} which is shared with the rest of the app.
+ * <p>
+ * Work the user is waiting on runs on its own small pool at the default
+ * thread priority, so that it is never queued behind background work, which
+ * runs on a separate pool at background thread priority. Tasks are run in
+ * submission order within a pool. The size of the background pool can be
+ * configured using
+ * {@link oracle.idm.mobile.OMMobileSecurityService#OM_PROP_SDK_EXECUTOR_POOL_SIZE}.
+ * Delayed tasks are kept by a single timer thread, which hands them over to
+ * the pool of their priority when due.
+ * Basic metrics on the queue depth and on the time tasks spend waiting in
+ * the queue and running are maintained and logged.
+ *
+ * @hide
+ */
+public final class OMExecutor {
+    private static final String TAG = OMExecutor.class.getSimpleName();
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final int INTERACTIVE_POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECS = 30;
+
+    /**
+     * Priority of a task, which decides the pool it runs on.
+     */
+    public enum Priority {
+        /**
+         * Work the user is waiting on, like login and logout.
+         */
+        INTERACTIVE,
+        /**
+         * Work done ahead of time, like proactive token refresh.
+         */
+        BACKGROUND
+    }
+
+    private static OMExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mInteractivePool;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final AtomicLong mCompletedTasks = new AtomicLong();
+    private final AtomicLong mTotalQueueTime = new AtomicLong();
+    private final AtomicLong mMaxQueueTime = new AtomicLong();
+    private final AtomicLong mTotalRunTime = new AtomicLong();
+    private final Executor mInteractiveExecutor = new PriorityExecutor(Priority.INTERACTIVE);
+    private final Executor mBackgroundExecutor = new PriorityExecutor(Priority.BACKGROUND);
+
+    private OMExecutor() {
+        mExecutor = newPool(DEFAULT_POOL_SIZE, Process.THREAD_PRIORITY_BACKGROUND,
+                "OMExecutor #");
+        mInteractivePool = newPool(INTERACTIVE_POOL_SIZE, Process.THREAD_PRIORITY_DEFAULT,
+                "OMExecutor interactive #");
+        mTimer = new ScheduledThreadPoolExecutor(1,
+                newThreadFactory(Process.THREAD_PRIORITY_BACKGROUND, "OMExecutor timer #"));
+        mTimer.setKeepAliveTime(KEEP_ALIVE_SECS, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // rescheduled timers would otherwise stay queued until their delay elapses.
+            mTimer.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    private static ThreadPoolExecutor newPool(int poolSize, int threadPriority, String namePrefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize,
+                KEEP_ALIVE_SECS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory(threadPriority, namePrefix));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadFactory newThreadFactory(final int threadPriority, final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        runnable.run();
+                    }
+                }, namePrefix + mCount.incrementAndGet());
+            }
+        };
+    }
+
+    public static synchronized OMExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new OMExecutor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns an {@link Executor} which runs the tasks passed to it with the
+     * given priority. This can be passed to
+     * {@link android.os.AsyncTask#executeOnExecutor(Executor, Object[])}.
+     */
+    public Executor getExecutor(Priority priority) {
+        return priority == Priority.INTERACTIVE ? mInteractiveExecutor : mBackgroundExecutor;
+    }
+
+    public void execute(Runnable task, Priority priority) {
+        ThreadPoolExecutor pool = priority == Priority.INTERACTIVE ? mInteractivePool : mExecutor;
+        pool.execute(new TimedTask(task, priority));
+    }
+
+    /**
+     * Runs the task with the given priority once the delay has elapsed.
+     *
+     * @return the timer, which can be cancelled until the task is handed
+     * over to its pool.
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, long delay, TimeUnit unit,
+                                       final Priority priority) {
+        return mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task, priority);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Sets the number of threads of the background pool. This applies to all
+     * the instances of the SDK in the process.
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        if (poolSize <= 0 || poolSize == mExecutor.getMaximumPoolSize()) {
+            return;
+        }
+        OMLog.debug(TAG, "Pool size: " + poolSize);
+        if (poolSize > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(poolSize);
+            mExecutor.setCorePoolSize(poolSize);
+        } else {
+            mExecutor.setCorePoolSize(poolSize);
+            mExecutor.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    /**
+     * Number of tasks waiting for a thread, in both pools.
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size() + mInteractivePool.getQueue().size();
+    }
+
+    public long getCompletedTaskCount() {
+        return mCompletedTasks.get();
+    }
+
+    /**
+     * Average time in milliseconds tasks waited in the queue before running.
+     */
+    public long getAverageQueueTime() {
+        long completed = mCompletedTasks.get();
+        return completed == 0 ? 0 : mTotalQueueTime.get() / completed;
+    }
+
+    /**
+     * Longest time in milliseconds a task waited in the queue before running.
+     */
+    public long getMaxQueueTime() {
+        return mMaxQueueTime.get();
+    }
+
+    /**
+     * Average time in milliseconds tasks took to run.
+     */
+    public long getAverageRunTime() {
+        long completed = mCompletedTasks.get();
+        return completed == 0 ? 0 : mTotalRunTime.get() / completed;
+    }
+
+    private void onTaskCompleted(Priority priority, long queueTime, long runTime) {
+        mCompletedTasks.incrementAndGet();
+        mTotalQueueTime.addAndGet(queueTime);
+        mTotalRunTime.addAndGet(runTime);
+        long max;
+        do {
+            max = mMaxQueueTime.get();
+        } while (queueTime > max && !mMaxQueueTime.compareAndSet(max, queueTime));
+        OMLog.debug(TAG, priority + " task waited " + queueTime + " ms, ran " + runTime
+                + " ms. Queue depth: " + getQueueDepth());
+    }
+
+    private class PriorityExecutor implements Executor {
+        private final Priority mPriority;
+
+        PriorityExecutor(Priority priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            OMExecutor.this.execute(task, mPriority);
+        }
+    }
+
+    private class TimedTask implements Runnable {
+        private final Runnable mTask;
+        private final Priority mPriority;
+        private final long mSubmitTime;
+
+        TimedTask(Runnable task, Priority priority) {
+            mTask = task;
+            mPriority = priority;
+            mSubmitTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            try {
+                mTask.run();
+            } finally {
+                onTaskCompleted(mPriority, startTime - mSubmitTime,
+                        System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+}
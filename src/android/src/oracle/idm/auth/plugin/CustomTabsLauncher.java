@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+package oracle.idm.auth.plugin;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.customtabs.CustomTabsClient;
+import android.support.customtabs.CustomTabsIntent;
+import android.support.customtabs.CustomTabsServiceConnection;
+import android.support.customtabs.CustomTabsSession;
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Opens the external browser challenges of an authentication flow in a Custom Tab.
+ * The browser service is bound when the flow is set up, so that the browser is started and can connect to the identity
+ * provider ahead of time. If no browser supports Custom Tabs, nothing is bound and the caller falls back to a plain intent.
+ */
+class CustomTabsLauncher
+{
+  CustomTabsLauncher(Context context)
+  {
+    _context = context.getApplicationContext();
+  }
+
+  /**
+   * Binds the browser service and warms the browser up.
+   * @return false if no browser supports Custom Tabs.
+   */
+  synchronized boolean bind()
+  {
+    if (_connection != null)
+    {
+      return true;
+    }
+
+    String packageName = CustomTabsClient.getPackageName(_context, null);
+    if (packageName == null)
+    {
+      OMLog.debug(TAG, "No browser supports Custom Tabs.");
+      return false;
+    }
+
+    _connection = new CustomTabsServiceConnection()
+    {
+      @Override
+      public void onCustomTabsServiceConnected(ComponentName name, CustomTabsClient client)
+      {
+        OMLog.debug(TAG, "Connected to Custom Tabs service of " + name.getPackageName());
+        client.warmup(0);
+        _onSessionCreated(client.newSession(null));
+      }
+
+      @Override
+      public void onServiceDisconnected(ComponentName name)
+      {
+        OMLog.debug(TAG, "Disconnected from Custom Tabs service.");
+        _onSessionCreated(null);
+      }
+    };
+    if (!CustomTabsClient.bindCustomTabsService(_context, packageName, _connection))
+    {
+      OMLog.debug(TAG, "Unable to bind Custom Tabs service of " + packageName);
+      _connection = null;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tells the browser that the url is likely to be opened next, once the service is connected. The browser may fetch
+   * it, so it must not carry per-request state such as an OAuth state or code challenge.
+   * @param url
+   */
+  synchronized void mayLaunchUrl(String url)
+  {
+    _expectedUrl = url;
+    if (_session != null && url != null)
+    {
+      _session.mayLaunchUrl(Uri.parse(url), null, null);
+    }
+  }
+
+  /**
+   * Opens the url in a Custom Tab.
+   * @param activity
+   * @param url
+   * @return false if no browser supports Custom Tabs, in which case the caller should open the url itself.
+   */
+  boolean launch(Activity activity, String url)
+  {
+    CustomTabsSession session;
+    synchronized (this)
+    {
+      if (_connection == null)
+      {
+        return false;
+      }
+      session = _session;
+      _expectedUrl = null;
+    }
+
+    CustomTabsIntent customTabsIntent = new CustomTabsIntent.Builder(session).build();
+    customTabsIntent.intent.addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
+    customTabsIntent.launchUrl(activity, Uri.parse(url));
+    return true;
+  }
+
+  /**
+   * Unbinds the browser service.
+   */
+  synchronized void unbind()
+  {
+    if (_connection != null)
+    {
+      _context.unbindService(_connection);
+      _connection = null;
+    }
+    _session = null;
+    _expectedUrl = null;
+  }
+
+  private synchronized void _onSessionCreated(CustomTabsSession session)
+  {
+    _session = session;
+    mayLaunchUrl(_expectedUrl);
+  }
+
+  private final Context _context;
+  private CustomTabsServiceConnection _connection;
+  private CustomTabsSession _session;
+  private String _expectedUrl;
+
+  private static final String TAG = CustomTabsLauncher.class.getSimpleName();
+}
@@ -5,13 +5,20 @@
 package oracle.idm.auth.plugin;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -32,12 +39,15 @@ import oracle.idm.mobile.auth.OMToken;
 import oracle.idm.mobile.auth.logout.OMLogoutCompletionHandler;
 import oracle.idm.mobile.callback.OMAuthenticationContextCallback;
 import oracle.idm.mobile.callback.OMMobileSecurityServiceCallback;
+import oracle.idm.mobile.callback.OMTokenRefreshCallback;
 import oracle.idm.mobile.configuration.OMMobileSecurityConfiguration;
+import oracle.idm.mobile.connection.OMConnectionHandler;
 
 import oracle.idm.mobile.logging.OMLog;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
@@ -48,16 +58,20 @@ import android.util.Base64;
 /**
  * This class interfaces with Android IDM SDK and performs authentication operations such as login, logout etc.
  */
-public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAuthenticationContextCallback
+public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAuthenticationContextCallback,
+                                          OMTokenRefreshCallback
 {
   /**
    * Constructor - for each authentication
+   * @param authFlowKey identifier of this authentication flow.
    * @param mainActivity
    * @param props
    */
-  IdmAuthentication(Activity mainActivity, JSONObject props)
+  IdmAuthentication(String authFlowKey, Activity mainActivity, JSONObject props)
   {
+    _authFlowKey = authFlowKey;
     _mainActivity = mainActivity;
+    _lastUsed = System.currentTimeMillis();
     _props = _convertToAuthConfigProperties(props);
     _authType = (OMMobileSecurityService.AuthServerType) _props.get(OMMobileSecurityService.OM_PROP_AUTHSERVER_TYPE);
     _handler = new Handler(Looper.getMainLooper());
@@ -66,7 +80,8 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     _broadcastReceiver = new BroadcastReceiver() {
       @Override
       public void onReceive(Context context, Intent intent) {
-        if (WebViewActivity.CANCEL_WEB_VIEW_INTENT.equals(intent.getAction())) {
+        if (WebViewActivity.CANCEL_WEB_VIEW_INTENT.equals(intent.getAction())
+            && _authFlowKey.equals(intent.getStringExtra(WebViewActivity.AUTH_FLOW_KEY_EXTRA))) {
           _cancelLoginFromWebView();
         }
       }
@@ -74,35 +89,182 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   }
 
   /**
-   * Set up the IDM OMMSS instance.
-   * @param callback for communicating success or error.
-   * @return
+   * Starts setting up the IDM OMMSS instance. This does not wait for the setup to complete, which is reported to the
+   * listener, e.g. after the OpenID discovery document has been downloaded.
+   * @param listener notified once the setup completed or failed.
    */
-  public boolean setup(final CallbackContext callback)
+  public void setup(SetupListener listener)
   {
     OMLog.debug(TAG, "Setting up OMMSS instance with: " + _props);
+    synchronized (_pendingActions)
+    {
+      _setupListeners.add(listener);
+    }
+    _setupStart = System.currentTimeMillis();
+    if (_prewarmWebView)
+    {
+      WebViewPool.prewarm(_mainActivity);
+    }
+    if (_useCustomTabs)
+    {
+      _customTabs = new CustomTabsLauncher(_mainActivity);
+      if (!_customTabs.bind())
+      {
+        _customTabs = null;
+      }
+    }
     try
     {
       _ommss = new OMMobileSecurityService(_mainActivity, _props, this);
+      _ommss.setTokenRefreshCallback(this);
       _ommss.setup();
-      _setupLatch.await();
+    }
+    catch (OMMobileSecurityException securityEx)
+    {
+      OMLog.error(TAG, "Error while setting up OMMSS instance.");
+      _setupCompleted(securityEx);
+    }
+  }
 
-      if (_setupException != null)
+  /**
+   * Runs the action once the setup has completed successfully, right away if it already has. If the setup failed,
+   * the setup error is reported on the callback instead, and if the flow has been destroyed, an error saying so.
+   * @param callbackContext of the action.
+   * @param action
+   */
+  public void whenSetUp(CallbackContext callbackContext, Runnable action)
+  {
+    synchronized (_pendingActions)
+    {
+      if (!_setupDone)
       {
-        throw _setupException;
+        OMLog.debug(TAG, "Setup in progress, queueing action.");
+        _pendingActions.put(action, callbackContext);
+        return;
       }
     }
-    catch (OMMobileSecurityException securityEx)
+
+    if (_destroyed)
     {
-      OMLog.error(TAG, "Error while setting up OMMSS instance.");
-      IdmAuthenticationPlugin.invokeCallbackError(callback, securityEx);
-      return false;
-    } catch (InterruptedException e) {
-      OMLog.error(TAG, "Error while setting up OMMSS instance.");
-      IdmAuthenticationPlugin.invokeCallbackError(callback, _SETUP_ERROR);
-      return false;
+      IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _FLOW_DESTROYED);
+      return;
     }
-    return true;
+    if (_setupException != null)
+    {
+      IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _setupException);
+      return;
+    }
+    action.run();
+  }
+
+  /**
+   * Notifies the listener once the setup has completed, right away if it already has. Used when the flow is handed out
+   * again for an identical configuration, so no setup is run for this listener, which receives a setup time of -1.
+   * @param listener
+   */
+  void whenSetUp(final SetupListener listener)
+  {
+    synchronized (_pendingActions)
+    {
+      if (!_setupDone)
+      {
+        _setupListeners.add(new SetupListener()
+        {
+          @Override
+          public void onSetupCompleted(IdmAuthentication auth, OMMobileSecurityException securityEx, long setupMillis)
+          {
+            listener.onSetupCompleted(auth, securityEx, _NO_SETUP);
+          }
+        });
+        return;
+      }
+    }
+    listener.onSetupCompleted(this, _setupException, _NO_SETUP);
+  }
+
+  /**
+   * Checks if the app allowed the flow to be shared by the setups with an identical configuration.
+   * @param props authentication properties passed to setup.
+   * @return
+   */
+  static boolean isReusable(JSONObject props)
+  {
+    return props.optBoolean(_REUSE_FLOW);
+  }
+
+  /**
+   * Adds a reference to the flow, for another setup with the same configuration.
+   * @return false if the flow has already been released, in which case it must not be used.
+   */
+  boolean acquire()
+  {
+    while (true)
+    {
+      int references = _references.get();
+      if (references <= 0)
+      {
+        return false;
+      }
+      if (_references.compareAndSet(references, references + 1))
+      {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Drops a reference to the flow.
+   * @return true if it was the last one, i.e. the flow should be destroyed.
+   */
+  boolean release()
+  {
+    return _references.decrementAndGet() <= 0;
+  }
+
+  /**
+   * Returns the key identifying this flow.
+   * @return
+   */
+  public String getAuthFlowKey()
+  {
+    return _authFlowKey;
+  }
+
+  /**
+   * Checks if the app asked for the flow to be usable before its setup completes. In that case actions are queued
+   * until then, and fail with the setup error if the setup fails.
+   * @return
+   */
+  public boolean isSetupInBackground()
+  {
+    return _setupInBackground;
+  }
+
+  /**
+   * Checks if the app asked for the WebView of embedded browser challenges to be created ahead of time.
+   * @return
+   */
+  boolean isPrewarmWebView()
+  {
+    return _prewarmWebView;
+  }
+
+  /**
+   * Returns the URL prefixes of the static resources of the login pages which the embedded browser may cache.
+   * @return empty if the app did not enable the cache.
+   */
+  List<String> getResourceCacheAllowlist()
+  {
+    return _resourceCacheAllowlist;
+  }
+
+  /**
+   * Returns the connection handler of the flow, whose SSL setup the embedded browser's resource cache uses.
+   * @return null if the flow is not set up.
+   */
+  OMConnectionHandler getConnectionHandler()
+  {
+    return _ommss == null ? null : _ommss.getConnectionHandler();
   }
 
   /**
@@ -162,6 +324,7 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   {
     OMLog.debug(TAG, "Logout invoked.");
     _logoutCallback = logoutCallback;
+    _headerCache.clear();
     _mainActivity.runOnUiThread(new Runnable() {
       @Override
       public void run() {
@@ -240,12 +403,53 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     _ommss.setAuthenticationContextCallback(this);
   }
 
+  /**
+   * Registers the event channel of the flow, which receives the timeout, token refresh, logout and session state
+   * events. The events are objects with an EventType key, and the keys relevant to the type. A Registered event is
+   * sent first, which confirms the registration to the JS layer.
+   * @param callbackContext kept and executed for every event.
+   */
+  public void addEventCallback(CallbackContext callbackContext)
+  {
+    OMLog.debug(TAG, "Adding event callback.");
+    _eventCallback = callbackContext;
+    _ommss.setAuthenticationContextCallback(this);
+    _sendEvent(_EVENT_REGISTERED, new JSONObject());
+  }
+
+  /**
+   * Resets the idle timeout on user interaction. The timer is reset at most once per idle timeout reset interval,
+   * calls in between succeed without going to the UI thread.
+   * @param callbackContext communicates error or success.
+   */
+  public void touch(CallbackContext callbackContext)
+  {
+    long now = System.currentTimeMillis();
+    long lastReset = _lastIdleTimeoutReset.get();
+    if (now - lastReset < _idleTimeoutResetIntervalMillis || !_lastIdleTimeoutReset.compareAndSet(lastReset, now))
+    {
+      callbackContext.success();
+      return;
+    }
+    _resetIdleTimeout(callbackContext, true);
+  }
+
   /**
    * Used to reset the idle timeout, provided there is time left to actually idle timeout.
    * This method is used in conjunction with the onTimeout callback.
    * @param callbackContext communicates error or success.
    */
   public void resetIdleTimeout(final CallbackContext callbackContext)
+  {
+    _resetIdleTimeout(callbackContext, false);
+  }
+
+  /**
+   * Resets the idle timeout on the UI thread.
+   * @param callbackContext communicates error or success.
+   * @param throttled true if called from touch, in which case a failed reset is not throttled.
+   */
+  private void _resetIdleTimeout(final CallbackContext callbackContext, final boolean throttled)
   {
     OMLog.debug(TAG, "Resetting idle timeout.");
     _mainActivity.runOnUiThread(new Runnable() {
@@ -265,12 +469,14 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
             // There is no error code for this scenario in the wiki.
             //
             OMLog.debug(TAG, "Resetting idle timeout failed.");
+            _allowNextTouch(throttled);
             IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _IDLE_TIMEOUT_RESET_FAILED);
           }
         }
         catch (OMMobileSecurityException securityEx)
         {
           OMLog.error(TAG, "Error while resetting idle timeout: " + securityEx.getMessage());
+          _allowNextTouch(throttled);
           IdmAuthenticationPlugin.invokeCallbackError(callbackContext, securityEx);
         }
       }
@@ -279,6 +485,8 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
 
   /**
    * Retrieves the headers, including custom headers, authorization headers required to make an XHR request at the JS layer.
+   * The result is cached per set of scopes, until the token it carries expires or the credentials of the
+   * authentication context change. Logout, login and timeout drop the cache as well.
    * @param callbackContext communicates the headers or error.
    * @param fedAuthSecuredUrl URL for which cookies and headers are requested. To be passed only for federated auth cases.
    */
@@ -288,7 +496,19 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     try
     {
       OMAuthenticationContext context = _ommss.retrieveAuthenticationContext();
+      String cacheKey = _headerCacheKey(fedAuthSecuredUrl, scopes);
+      _CachedHeaders cached = _headerCache.get(cacheKey);
+      if (cached != null && cached.isValidFor(context))
+      {
+        callbackContext.sendPluginResult(cached.result);
+        return;
+      }
+
+      // Read before building the headers, so that a concurrent change of the credentials invalidates them.
+      int credentialsVersion = context.getCredentialsVersion();
       Map<String, Object> headers = new HashMap<String, Object>();
+      OMToken token = null;
+      boolean cacheable = true;
 
       switch(_authType)
       {
@@ -297,22 +517,31 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
           break;
         case OAuth20:
         case OpenIDConnect10:
-          headers = _fetchOauthHeaders(context, scopes);
+          token = _fetchOauthToken(context, scopes);
+          headers = _fetchOauthHeaders(token);
           break;
         case FederatedAuth:
           if (isSamlFlow())
           {
-            headers = _fetchOauthHeaders(context, scopes);
+            token = _fetchOauthToken(context, scopes);
+            headers = _fetchOauthHeaders(token);
           }
           else
           {
+            // Cookies are managed by the cookie store, which does not notify changes.
             headers = context.getRequestParams(fedAuthSecuredUrl, false);
+            cacheable = false;
           }
           break;
       }
 
       headers.putAll(context.getCustomHeaders());
-      callbackContext.success(new JSONObject(headers));
+      PluginResult result = new PluginResult(PluginResult.Status.OK, new JSONObject(headers));
+      if (cacheable && headers.containsKey(_AUTHORIZATION))
+      {
+        _cacheHeaders(cacheKey, new _CachedHeaders(context, credentialsVersion, token, result));
+      }
+      callbackContext.sendPluginResult(result);
     }
     catch (OMMobileSecurityException securityEx)
     {
@@ -321,6 +550,21 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     }
   }
 
+  /**
+   * Checks if this flow is waiting for the redirect from the external browser.
+   * @param incomingUri the redirect received by the app.
+   * @return true if a response is expected and the URI matches the redirect end point of this flow, if there is one.
+   */
+  public boolean isExpectingExternalBrowserResponse(Uri incomingUri)
+  {
+    if (!_externalBrowserChallengeResponseExpected)
+    {
+      return false;
+    }
+    Object redirectEndPoint = _props.get(OMMobileSecurityService.OM_PROP_OAUTH_REDIRECT_ENDPOINT);
+    return !(redirectEndPoint instanceof String) || incomingUri.toString().startsWith((String) redirectEndPoint);
+  }
+
   /**
    * Handles external browser challenge input and passes it on to IDM SDK.
    * @param incomingUri
@@ -338,6 +582,101 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     }
   }
 
+  /**
+   * Lets IDM SDK release what it caches when the system is low on memory.
+   * @param level memory trim level
+   */
+  public void onTrimMemory(int level)
+  {
+    _headerCache.clear();
+    if (_ommss != null)
+    {
+      _ommss.onTrimMemory(level);
+    }
+  }
+
+  /**
+   * Records that the flow is in use, which keeps it from being evicted when idle.
+   */
+  void markUsed()
+  {
+    _lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Checks if the flow can be evicted, which is the case if the app configured an idle eviction timeout and has not
+   * used the flow for that long, there is no login or logout in progress, and no other setup shares the flow.
+   * @param now current time in milliseconds.
+   * @return
+   */
+  boolean isIdle(long now)
+  {
+    return _idleEvictionMillis > 0
+        && now - _lastUsed > _idleEvictionMillis
+        && _loginCallback == null
+        && _logoutCallback == null
+        && _references.get() <= 1;
+  }
+
+  /**
+   * Drops the only reference to an idle flow, so that it can not be handed out to another setup while it is evicted.
+   * @return false if another setup acquired the flow meanwhile, in which case it must not be evicted.
+   */
+  boolean retire()
+  {
+    return _references.compareAndSet(1, 0);
+  }
+
+  /**
+   * Releases what the flow holds, after which it is no longer usable.
+   */
+  void destroy()
+  {
+    OMLog.debug(TAG, "Destroying authentication flow " + _authFlowKey);
+    _references.set(0);
+    _headerCache.clear();
+    List<CallbackContext> pendingCallbacks;
+    synchronized (_pendingActions)
+    {
+      // Actions which reach whenSetUp from now on fail instead of being queued, as the setup may still complete.
+      _destroyed = true;
+      _setupDone = true;
+      pendingCallbacks = new ArrayList<CallbackContext>(_pendingActions.values());
+      _pendingActions.clear();
+    }
+    for (CallbackContext callbackContext : pendingCallbacks)
+    {
+      IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _FLOW_DESTROYED);
+    }
+    _completionHandler = null;
+    _loginCallback = null;
+    _logoutCallback = null;
+    _timeoutCallback = null;
+    _eventCallback = null;
+    if (_customTabs != null)
+    {
+      _customTabs.unbind();
+      _customTabs = null;
+    }
+    // Stop the token refresh and the timeout timers, which would otherwise keep their threads running and the flow
+    // reachable after it is evicted.
+    if (_ommss != null && !_ommss.dispose())
+    {
+      OMLog.error(TAG, "Background work of authentication flow " + _authFlowKey + " still running after destroy.");
+    }
+    _mainActivity.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        if (_isWebViewChallenge)
+        {
+          _mainActivity.sendBroadcast(_webViewIntent(WebViewActivity.FINISH_WEB_VIEW_INTENT));
+          _mainActivity.unregisterReceiver(_broadcastReceiver);
+          _isWebViewChallenge = false;
+        }
+      }
+    });
+  }
+
   @Override
   public void onAuthenticationChallenge(OMMobileSecurityService ommss, OMAuthenticationChallenge challenge,
                                         final OMAuthenticationCompletionHandler completionHandler)
@@ -413,10 +752,8 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
         break;
       case EXTERNAL_BROWSER_INVOCATION_REQUIRED:
         String externalBrowserURL = (String) fields.get(OMSecurityConstants.Challenge.EXTERNAL_BROWSER_LOAD_URL);
-        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(externalBrowserURL)).addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
-        if (intent.resolveActivity(_mainActivity.getPackageManager()) != null)
+        if (_launchExternalBrowser(externalBrowserURL))
         {
-          _mainActivity.startActivity(intent);
           _externalBrowserChallengeResponseExpected = true;
         }
         else
@@ -479,10 +816,8 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     else if (challenge.getChallengeType() == OMAuthenticationChallengeType.EXTERNAL_BROWSER_INVOCATION_REQUIRED)
     {
       String externalBrowserURL = (String) fields.get(OMSecurityConstants.Challenge.EXTERNAL_BROWSER_LOAD_URL);
-      Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(externalBrowserURL)).addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
-      if (intent.resolveActivity(_mainActivity.getPackageManager()) != null)
+      if (_launchExternalBrowser(externalBrowserURL))
       {
-        _mainActivity.startActivity(intent);
         _externalBrowserChallengeResponseExpected = true;
       }
       else
@@ -499,8 +834,7 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
                                OMMobileSecurityException securityEx)
   {
     OMLog.debug(TAG, "Setup completed.");
-    _setupException = securityEx;
-    _setupLatch.countDown();
+    _setupCompleted(securityEx);
     OMLog.debug(TAG, "Exit Setup completed..");
   }
 
@@ -509,6 +843,7 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
                                         OMMobileSecurityException securityEx)
   {
     OMLog.debug(TAG, "onAuthenticationCompleted invoked.");
+    _headerCache.clear();
     try
     {
       //
@@ -521,9 +856,12 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
       {
         OMLog.error(TAG, "Error in authentication completed: " + securityEx.getMessage());
         IdmAuthenticationPlugin.invokeCallbackError(_loginCallback, securityEx);
+        // The login may be retried.
+        _prepareExternalBrowser();
         return;
       }
 
+      _sendSessionStateEvent(_SESSION_STATE_AUTHENTICATED);
       _loginCallback.success();
     }
     finally
@@ -536,6 +874,7 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   public void onLogoutCompleted(OMMobileSecurityService ommss, OMMobileSecurityException securityEx)
   {
     OMLog.debug(TAG, "onLogoutCompleted invoked");
+    _headerCache.clear();
     try
     {
       _finishWebView();
@@ -547,6 +886,8 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
         return;
       }
 
+      _sendEvent(_EVENT_LOGOUT, new JSONObject());
+      _prepareExternalBrowser();
       _logoutCallback.success();
     }
     finally
@@ -565,12 +906,46 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   public void onTimeout(TimeoutType timeoutType, long timeLeftToTimeout)
   {
     OMLog.debug(TAG, "onTimeout invoked");
+    _headerCache.clear();
     Map<String, String> resp = new HashMap<String, String>();
     resp.put("TimeoutType", timeoutType.toString());
     resp.put("TimeLeftToTimeout", String.valueOf(timeLeftToTimeout));
-    PluginResult result = new PluginResult(PluginResult.Status.OK, new JSONObject(resp));
-    result.setKeepCallback(true);
-    _timeoutCallback.sendPluginResult(result);
+    JSONObject timeout = new JSONObject(resp);
+
+    CallbackContext timeoutCallback = _timeoutCallback;
+    if (timeoutCallback != null)
+    {
+      PluginResult result = new PluginResult(PluginResult.Status.OK, timeout);
+      result.setKeepCallback(true);
+      timeoutCallback.sendPluginResult(result);
+    }
+
+    _sendEvent(_EVENT_TIMEOUT, timeout);
+    if (timeoutType == TimeoutType.SESSION_TIMEOUT || timeLeftToTimeout == 0)
+    {
+      _sendSessionStateEvent(_SESSION_STATE_EXPIRED);
+    }
+  }
+
+  @Override
+  public void onTokenRefreshed(OMAuthenticationContext authContext)
+  {
+    OMLog.debug(TAG, "onTokenRefreshed invoked");
+    _headerCache.clear();
+    _sendEvent(_EVENT_TOKEN_REFRESH, new JSONObject());
+  }
+
+  /**
+   * Notified when the setup of the flow completes.
+   */
+  interface SetupListener
+  {
+    /**
+     * @param auth the flow.
+     * @param securityEx setup error, null if the setup was successful.
+     * @param setupMillis time taken by the setup, -1 if the flow is reused and no setup was run for this listener.
+     */
+    void onSetupCompleted(IdmAuthentication auth, OMMobileSecurityException securityEx, long setupMillis);
   }
 
   /**
@@ -585,10 +960,10 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   }
 
   /**
-   * The completion handler which can be either for login or logout.
+   * The completion handler of the challenge in progress for this flow, which can be either for login or logout.
    * @return
    */
-  static CompletionHandler getCompletionHandler()
+  CompletionHandler getCompletionHandler()
   {
     return _completionHandler;
   }
@@ -611,6 +986,7 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
           oauthRedirectEndPoint = (String) oauthRedirectEndPointObj;
 
         intent.putExtra(OMMobileSecurityService.OM_PROP_OAUTH_REDIRECT_ENDPOINT, oauthRedirectEndPoint);
+        intent.putExtra(WebViewActivity.AUTH_FLOW_KEY_EXTRA, _authFlowKey);
         _mainActivity.startActivity(intent);
         _isWebViewChallenge = true;
       }
@@ -629,13 +1005,140 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     _mainActivity.runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        _mainActivity.sendBroadcast(new Intent(WebViewActivity.FINISH_WEB_VIEW_INTENT));
+        _mainActivity.sendBroadcast(_webViewIntent(WebViewActivity.FINISH_WEB_VIEW_INTENT));
         _mainActivity.unregisterReceiver(_broadcastReceiver);
         _isWebViewChallenge = false;
       }
     });
   }
 
+  /**
+   * Opens the url in a Custom Tab if the app asked for it and a browser supports it, otherwise in the default browser.
+   * @param url
+   * @return false if there is no browser.
+   */
+  private boolean _launchExternalBrowser(String url)
+  {
+    CustomTabsLauncher customTabs = _customTabs;
+    if (customTabs != null && customTabs.launch(_mainActivity, url))
+    {
+      return true;
+    }
+
+    Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(url)).addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
+    if (intent.resolveActivity(_mainActivity.getPackageManager()) == null)
+    {
+      return false;
+    }
+    _mainActivity.startActivity(intent);
+    return true;
+  }
+
+  /**
+   * Lets the Custom Tabs browser connect to the identity provider of the next login ahead of time.
+   */
+  private void _prepareExternalBrowser()
+  {
+    CustomTabsLauncher customTabs = _customTabs;
+    if (customTabs != null && _ommss != null)
+    {
+      customTabs.mayLaunchUrl(_ommss.getExternalBrowserWarmupUrl());
+    }
+  }
+
+  /**
+   * Records the outcome of the setup, notifies the listener and runs the actions which were waiting for it.
+   * @param securityEx setup error, null if the setup was successful.
+   */
+  private void _setupCompleted(OMMobileSecurityException securityEx)
+  {
+    long setupMillis = System.currentTimeMillis() - _setupStart;
+    OMLog.debug(TAG, "Setup of flow " + _authFlowKey + " took " + setupMillis + " ms"
+        + (_ommss == null ? "" : ", stages: " + _ommss.getSetupStageTimes()));
+
+    if (securityEx == null)
+    {
+      _prepareExternalBrowser();
+    }
+
+    Map<Runnable, CallbackContext> pendingActions;
+    List<SetupListener> setupListeners;
+    synchronized (_pendingActions)
+    {
+      _setupException = securityEx;
+      _setupDone = true;
+      pendingActions = new LinkedHashMap<Runnable, CallbackContext>(_pendingActions);
+      _pendingActions.clear();
+      setupListeners = new ArrayList<SetupListener>(_setupListeners);
+      _setupListeners.clear();
+    }
+
+    for (SetupListener setupListener : setupListeners)
+    {
+      setupListener.onSetupCompleted(this, securityEx, setupMillis);
+    }
+    for (Map.Entry<Runnable, CallbackContext> pendingAction : pendingActions.entrySet())
+    {
+      whenSetUp(pendingAction.getValue(), pendingAction.getKey());
+    }
+  }
+
+  /**
+   * Sends an event on the event channel, if the app registered one.
+   * @param eventType
+   * @param event the keys of the event, to which the event type is added.
+   */
+  private void _sendEvent(String eventType, JSONObject event)
+  {
+    CallbackContext eventCallback = _eventCallback;
+    if (eventCallback == null)
+    {
+      return;
+    }
+
+    try
+    {
+      event.put(_EVENT_TYPE, eventType);
+    }
+    catch (JSONException jEx)
+    {
+      OMLog.error(TAG, "Exception while creating event.", jEx);
+      return;
+    }
+    PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+    result.setKeepCallback(true);
+    eventCallback.sendPluginResult(result);
+  }
+
+  private void _sendSessionStateEvent(String sessionState)
+  {
+    Map<String, String> event = new HashMap<String, String>();
+    event.put(_SESSION_STATE, sessionState);
+    _sendEvent(_EVENT_SESSION_STATE, new JSONObject(event));
+  }
+
+  /**
+   * Lets the next touch reset the idle timeout, after a failed reset.
+   * @param throttled
+   */
+  private void _allowNextTouch(boolean throttled)
+  {
+    if (throttled)
+    {
+      _lastIdleTimeoutReset.set(0);
+    }
+  }
+
+  /**
+   * Creates a broadcast for the webview activity of this flow.
+   * @param action
+   * @return
+   */
+  private Intent _webViewIntent(String action)
+  {
+    return new Intent(action).putExtra(WebViewActivity.AUTH_FLOW_KEY_EXTRA, _authFlowKey);
+  }
+
   /**
    * Handle user cancelled login from webView.
    */
@@ -644,7 +1147,8 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
     _mainActivity.runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        if (_completionHandler.getChallengeType() == CompletionHandler.CHALLENGE_TYPE.LOGIN)
+        CompletionHandler completionHandler = _completionHandler;
+        if (completionHandler != null && completionHandler.getChallengeType() == CompletionHandler.CHALLENGE_TYPE.LOGIN)
         {
           _ommss.cancel();
         }
@@ -692,6 +1196,50 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
         continue;
       }
 
+      //
+      // Plugin only property, not passed on to IDM SDK.
+      //
+      if (_FLOW_IDLE_EVICTION_TIMEOUT.equals(key))
+      {
+        _idleEvictionMillis = TimeUnit.SECONDS.toMillis(authPropsJson.optLong(key));
+        continue;
+      }
+
+      if (_IDLE_TIMEOUT_RESET_INTERVAL.equals(key))
+      {
+        _idleTimeoutResetIntervalMillis = TimeUnit.SECONDS.toMillis(authPropsJson.optLong(key));
+        continue;
+      }
+
+      if (_SETUP_IN_BACKGROUND.equals(key))
+      {
+        _setupInBackground = authPropsJson.optBoolean(key);
+        continue;
+      }
+
+      if (_REUSE_FLOW.equals(key))
+      {
+        continue;
+      }
+
+      if (_PREWARM_WEB_VIEW.equals(key))
+      {
+        _prewarmWebView = authPropsJson.optBoolean(key);
+        continue;
+      }
+
+      if (_USE_CUSTOM_TABS.equals(key))
+      {
+        _useCustomTabs = authPropsJson.optBoolean(key);
+        continue;
+      }
+
+      if (_RESOURCE_CACHE_ALLOWLIST.equals(key))
+      {
+        _resourceCacheAllowlist = new ArrayList<String>(_extractSet(authPropsJson, key));
+        continue;
+      }
+
       if (OMMobileSecurityService.OM_PROP_CUSTOM_AUTH_HEADERS.equals(key))
       {
         JSONObject customAuthPropsJson = authPropsJson.optJSONObject(key);
@@ -746,23 +1294,37 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   }
 
   /**
-   * Collects tokens for the scopes passed, and retunrs the first one in the form of a Bearer token
+   * Collects tokens for the scopes passed, and returns the first one.
    * @param context
    * @param scopes
-   * @return Map containing "Authorization" header with value set to Bearer token.
+   * @return the token, or null if there is no token for the scopes.
    */
-  private Map<String, Object> _fetchOauthHeaders(OMAuthenticationContext context, Set<String> scopes)
+  private OMToken _fetchOauthToken(OMAuthenticationContext context, Set<String> scopes)
   {
-    Map<String, Object> headers = new HashMap<String, Object>();
     OMLog.debug(TAG, "Collect headers for OAUTH from auth context or scope set " + scopes);
 
     //
     // All tokens returned are valid for the provided scopes, return first one.
     //
     List<OMToken> tokens = context.getTokens(scopes);
-    if (tokens.size() > 0)
+    if (tokens != null && tokens.size() > 0)
+    {
+      return tokens.get(0);
+    }
+    return null;
+  }
+
+  /**
+   * Creates the headers for an OAUTH token in the form of a Bearer token.
+   * @param token
+   * @return Map containing "Authorization" header with value set to Bearer token, if there is a token.
+   */
+  private Map<String, Object> _fetchOauthHeaders(OMToken token)
+  {
+    Map<String, Object> headers = new HashMap<String, Object>();
+    if (token != null)
     {
-      addAuthorizationHeader(headers, _BEARER, tokens.get(0).getValue());
+      addAuthorizationHeader(headers, _BEARER, token.getValue());
     }
     return headers;
   }
@@ -812,6 +1374,59 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   }
 
 
+  /**
+   * Key of the header cache. Scopes are sorted so that the same set of scopes maps to the same key.
+   * @param fedAuthSecuredUrl
+   * @param scopes
+   * @return
+   */
+  private String _headerCacheKey(String fedAuthSecuredUrl, Set<String> scopes)
+  {
+    String scopesKey = scopes == null ? "" : new TreeSet<String>(scopes).toString();
+    return fedAuthSecuredUrl == null ? scopesKey : scopesKey + ' ' + fedAuthSecuredUrl;
+  }
+
+  private void _cacheHeaders(String cacheKey, _CachedHeaders cachedHeaders)
+  {
+    if (_headerCache.size() >= _HEADER_CACHE_MAX_ENTRIES)
+    {
+      _headerCache.clear();
+    }
+    _headerCache.put(cacheKey, cachedHeaders);
+  }
+
+  /**
+   * Headers returned by getHeaders, kept along with what they were built from.
+   */
+  private static class _CachedHeaders
+  {
+    _CachedHeaders(OMAuthenticationContext context, int credentialsVersion, OMToken token, PluginResult result)
+    {
+      _context = context;
+      _credentialsVersion = credentialsVersion;
+      Date expiry = token == null ? null : token.getExpiryTime();
+      _validUntil = expiry == null ? Long.MAX_VALUE : expiry.getTime();
+      this.result = result;
+    }
+
+    /**
+     * The headers are valid as long as the context and its credentials are the same, and the token has not expired.
+     * @param context the current authentication context.
+     * @return
+     */
+    boolean isValidFor(OMAuthenticationContext context)
+    {
+      return context == _context
+          && context.getCredentialsVersion() == _credentialsVersion
+          && System.currentTimeMillis() < _validUntil;
+    }
+
+    final PluginResult result;
+    private final OMAuthenticationContext _context;
+    private final int _credentialsVersion;
+    private final long _validUntil;
+  }
+
   /**
    * @return true When OM_PROP_PARSE_TOKEN_RELAY_RESPONSE set to true, false otherwise.
    */
@@ -826,34 +1441,76 @@ public class IdmAuthentication implements OMMobileSecurityServiceCallback, OMAut
   private static final String _UNTRUSTED_CHALLENGE_ERROR = "P1002";
   private static final String _UNSUPPORTED_CHALLENGE_ERROR = "P1003";
   private static final String _IDLE_TIMEOUT_RESET_FAILED = "P1004";
+  private static final long _NO_SETUP = -1;
   private static final String _EXTERNAL_BROWSER_LAUNCH_ERROR = "P1012";
-  private static final String _SETUP_ERROR = "P1013";
+  private static final String _FLOW_DESTROYED = "P1018";
   private static final String _AUTHORIZATION = "Authorization";
   private static final String _TOKEN_FORMAT = "%s %s";
   private static final String _BEARER = "Bearer";
   private static final String _BASIC = "Basic";
   private static final String _CHALLENGE_ERROR = "error";
-
-
-  /**
-   * Static because this is shared with the WebViewActivity. This cannot be sent to the activity via putExtra
-   * because IDM's challenge handler is not serializable. If we find a better way to share object to
-   * WebViewActivity, we should do that and get rid of static.
-   */
-  private static CompletionHandler _completionHandler;
-
+  private static final int _HEADER_CACHE_MAX_ENTRIES = 16;
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.FlowIdleEvictionTimeout in the Javascript API.
+  private static final String _FLOW_IDLE_EVICTION_TIMEOUT = "FlowIdleEvictionTimeout";
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.SetupInBackground in the Javascript API.
+  private static final String _SETUP_IN_BACKGROUND = "SetupInBackground";
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.IdleTimeoutResetInterval in the Javascript API.
+  private static final String _IDLE_TIMEOUT_RESET_INTERVAL = "IdleTimeoutResetInterval";
+  private static final long _DEFAULT_IDLE_TIMEOUT_RESET_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.ReuseFlow in the Javascript API.
+  private static final String _REUSE_FLOW = "ReuseFlow";
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.PrewarmWebView in the Javascript API.
+  private static final String _PREWARM_WEB_VIEW = "PrewarmWebView";
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.UseCustomTabs in the Javascript API.
+  private static final String _USE_CUSTOM_TABS = "UseCustomTabs";
+  // This should sync with IdmAuthFlows.AuthPropertyKeys.ResourceCacheAllowlist in the Javascript API.
+  private static final String _RESOURCE_CACHE_ALLOWLIST = "ResourceCacheAllowlist";
+  // These should sync with IdmAuthFlows.EventType and IdmAuthFlows.SessionState in the Javascript API.
+  private static final String _EVENT_TYPE = "EventType";
+  private static final String _EVENT_REGISTERED = "Registered";
+  private static final String _EVENT_TIMEOUT = "Timeout";
+  private static final String _EVENT_TOKEN_REFRESH = "TokenRefresh";
+  private static final String _EVENT_LOGOUT = "Logout";
+  private static final String _EVENT_SESSION_STATE = "SessionState";
+  private static final String _SESSION_STATE = "SessionState";
+  private static final String _SESSION_STATE_AUTHENTICATED = "Authenticated";
+  private static final String _SESSION_STATE_EXPIRED = "Expired";
+
+
+  private final String _authFlowKey;
   private final OMMobileSecurityService.AuthServerType _authType;
   private final Activity _mainActivity;
   private final Map<String, Object> _props;
   private final BroadcastReceiver _broadcastReceiver;
-  private CallbackContext _loginCallback;
-  private CallbackContext _logoutCallback;
-  private CallbackContext _timeoutCallback;
+  private final Map<String, _CachedHeaders> _headerCache = new ConcurrentHashMap<String, _CachedHeaders>();
+  /**
+   * Shared with the WebViewActivity, which looks up this flow using the key passed via putExtra. The handler itself
+   * cannot be sent to the activity because IDM's challenge handler is not serializable.
+   */
+  private volatile CompletionHandler _completionHandler;
+  private volatile CallbackContext _loginCallback;
+  private volatile CallbackContext _logoutCallback;
+  private volatile CallbackContext _timeoutCallback;
+  private volatile CallbackContext _eventCallback;
   private Handler _handler;
   private OMAuthenticationChallengeType _challengeType;
   private OMMobileSecurityService _ommss;
   private boolean _isWebViewChallenge;
   private boolean _externalBrowserChallengeResponseExpected;
-  private CountDownLatch _setupLatch = new CountDownLatch(1);
-  private OMMobileSecurityException _setupException;
+  private final Map<Runnable, CallbackContext> _pendingActions = new LinkedHashMap<Runnable, CallbackContext>();
+  private final List<SetupListener> _setupListeners = new ArrayList<SetupListener>();
+  private long _setupStart;
+  private boolean _setupInBackground;
+  private boolean _prewarmWebView;
+  private boolean _useCustomTabs;
+  private volatile CustomTabsLauncher _customTabs;
+  private List<String> _resourceCacheAllowlist = new ArrayList<String>();
+  private volatile boolean _setupDone;
+  private volatile boolean _destroyed;
+  private volatile OMMobileSecurityException _setupException;
+  private volatile long _lastUsed;
+  private long _idleEvictionMillis;
+  private long _idleTimeoutResetIntervalMillis = _DEFAULT_IDLE_TIMEOUT_RESET_INTERVAL_MILLIS;
+  private final AtomicLong _lastIdleTimeoutReset = new AtomicLong();
+  private final AtomicInteger _references = new AtomicInteger(1);
 }
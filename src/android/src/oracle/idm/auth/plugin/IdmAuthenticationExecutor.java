@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+package oracle.idm.auth.plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import oracle.idm.mobile.logging.OMLog;
+import org.apache.cordova.CallbackContext;
+
+/**
+ * Runs plugin actions which may block, e.g. on a token refresh, off the Cordova bridge thread.
+ * Actions for the same authentication flow are run one at a time, in the order they were submitted, so the
+ * JS layer sees the results of a flow in order. Actions for different flows run in parallel.
+ * The latency of every action, from submission to completion, is recorded in a histogram per action which is
+ * logged periodically.
+ * An action which throws, and an action which is dropped because the executor is shut down, fails its callback so
+ * the JS promise does not wait forever.
+ */
+class IdmAuthenticationExecutor
+{
+  IdmAuthenticationExecutor()
+  {
+    _executor = new ThreadPoolExecutor(_POOL_SIZE, _POOL_SIZE, _KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(),
+                                       new ThreadFactory()
+                                       {
+                                         private final AtomicInteger _count = new AtomicInteger();
+
+                                         @Override
+                                         public Thread newThread(Runnable runnable)
+                                         {
+                                           return new Thread(runnable, "IdmAuthentication #" + _count.incrementAndGet());
+                                         }
+                                       });
+    _executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues the action for the authentication flow.
+   * @param authFlowKey identifier of the flow, actions with the same key are run in order.
+   * @param action name of the action, used for the latency histogram.
+   * @param callbackContext of the action, failed if the action throws or is not run.
+   * @param task the action.
+   */
+  void execute(String authFlowKey, String action, CallbackContext callbackContext, Runnable task)
+  {
+    _Task timedTask = new _Task(action, callbackContext, task);
+    synchronized (_queues)
+    {
+      if (!_shutdown)
+      {
+        Queue<_Task> queue = _queues.get(authFlowKey);
+        if (queue == null)
+        {
+          queue = new ArrayDeque<_Task>();
+          _queues.put(authFlowKey, queue);
+          _runQueue(authFlowKey);
+        }
+        // If an action of this flow is running, the flow's runner picks this one up when done.
+        queue.add(timedTask);
+        return;
+      }
+    }
+    OMLog.debug(TAG, "Executor is shut down, not running " + action);
+    timedTask.fail(_SHUT_DOWN);
+  }
+
+  /**
+   * Records the latency of an action which is not run on this executor, e.g. setup.
+   * @param action name of the action.
+   * @param millis
+   */
+  void record(String action, long millis)
+  {
+    _histogram(action).record(action, millis);
+  }
+
+  /**
+   * Stops the threads. Queued actions are not run, their callbacks are failed, as are those of the actions submitted
+   * afterwards.
+   */
+  void shutdown()
+  {
+    List<_Task> dropped = new ArrayList<_Task>();
+    synchronized (_queues)
+    {
+      _shutdown = true;
+      for (Queue<_Task> queue : _queues.values())
+      {
+        dropped.addAll(queue);
+      }
+      _queues.clear();
+    }
+    _executor.shutdownNow();
+
+    for (_Task task : dropped)
+    {
+      OMLog.debug(TAG, "Executor is shut down, dropping " + task._action);
+      task.fail(_SHUT_DOWN);
+    }
+  }
+
+  /**
+   * Starts a runner for the flow's queue, which runs its actions until it is empty.
+   * Must be called holding the _queues lock, which also keeps shutdown from racing with this.
+   */
+  private void _runQueue(final String authFlowKey)
+  {
+    _executor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        while (true)
+        {
+          _Task task;
+          synchronized (_queues)
+          {
+            Queue<_Task> queue = _queues.get(authFlowKey);
+            task = queue == null ? null : queue.poll();
+            if (task == null)
+            {
+              if (queue != null)
+              {
+                _queues.remove(authFlowKey);
+              }
+              return;
+            }
+          }
+          task.run();
+        }
+      }
+    });
+  }
+
+  private _Histogram _histogram(String action)
+  {
+    synchronized (_histograms)
+    {
+      _Histogram histogram = _histograms.get(action);
+      if (histogram == null)
+      {
+        histogram = new _Histogram();
+        _histograms.put(action, histogram);
+      }
+      return histogram;
+    }
+  }
+
+  /**
+   * An action along with its callback and the time it was submitted.
+   */
+  private class _Task
+  {
+    _Task(String action, CallbackContext callbackContext, Runnable task)
+    {
+      _action = action;
+      _callbackContext = callbackContext;
+      _task = task;
+      _submitted = System.currentTimeMillis();
+    }
+
+    void run()
+    {
+      try
+      {
+        _task.run();
+      }
+      catch (RuntimeException e)
+      {
+        OMLog.error(TAG, "Action " + _action + " failed.", e);
+        fail(_ACTION_FAILED);
+      }
+      finally
+      {
+        _histogram(_action).record(_action, System.currentTimeMillis() - _submitted);
+      }
+    }
+
+    void fail(String errorCode)
+    {
+      if (!_callbackContext.isFinished())
+      {
+        IdmAuthenticationPlugin.invokeCallbackError(_callbackContext, errorCode);
+      }
+    }
+
+    private final String _action;
+    private final CallbackContext _callbackContext;
+    private final Runnable _task;
+    private final long _submitted;
+  }
+
+  /**
+   * Counts of latencies in the buckets bounded by _BUCKET_BOUNDS_MILLIS, the last bucket counts the rest.
+   */
+  private static class _Histogram
+  {
+    void record(String action, long millis)
+    {
+      int bucket = 0;
+      while (bucket < _BUCKET_BOUNDS_MILLIS.length && millis >= _BUCKET_BOUNDS_MILLIS[bucket])
+      {
+        bucket++;
+      }
+      _counts.incrementAndGet(bucket);
+      if (_samples.incrementAndGet() % _LOG_EVERY_SAMPLES == 0)
+      {
+        OMLog.debug(TAG, "Latency of " + action + ": " + this);
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < _counts.length(); i++)
+      {
+        if (i > 0)
+        {
+          sb.append(", ");
+        }
+        sb.append(i < _BUCKET_BOUNDS_MILLIS.length ? "<" + _BUCKET_BOUNDS_MILLIS[i] : ">=" + _BUCKET_BOUNDS_MILLIS[i - 1])
+          .append("ms: ")
+          .append(_counts.get(i));
+      }
+      return sb.toString();
+    }
+
+    private final AtomicLongArray _counts = new AtomicLongArray(_BUCKET_BOUNDS_MILLIS.length + 1);
+    private final AtomicInteger _samples = new AtomicInteger();
+  }
+
+  private final ThreadPoolExecutor _executor;
+  private final Map<String, Queue<_Task>> _queues = new HashMap<String, Queue<_Task>>();
+  private final Map<String, _Histogram> _histograms = new HashMap<String, _Histogram>();
+  private boolean _shutdown;
+
+  private static final int _POOL_SIZE = 2;
+  private static final long _KEEP_ALIVE_SECS = 30;
+  private static final long[] _BUCKET_BOUNDS_MILLIS = {10, 50, 100, 250, 500, 1000, 5000};
+  private static final int _LOG_EVERY_SAMPLES = 50;
+  private static final String _ACTION_FAILED = "P1015";
+  private static final String _SHUT_DOWN = "P1016";
+  private static final String TAG = IdmAuthenticationExecutor.class.getSimpleName();
+}
@@ -4,20 +4,33 @@
  */
 package oracle.idm.auth.plugin;
 
-import java.util.HashMap;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import oracle.idm.mobile.OMMobileSecurityException;
 import oracle.idm.mobile.logging.OMLog;
-import org.apache.cordova.CallbackContext;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import android.app.Activity;
+import android.net.Uri;
 
 /**
  * This class is a factory which manages different authentication flows.
  * The plugin supports multiple authentication flows in parallel. This factory inits the authentication flow and looks up
- * the flow based on UUID when requested.
+ * the flow based on UUID when requested. Flows are removed when destroyed by the app, or when they have been idle for
+ * longer than the idle eviction timeout the app configured for them.
+ * If the app allows it, a setup with the same configuration as a live flow returns that flow instead of creating a new
+ * one. Such a flow is reference counted, and destroyed once every setup which returned it has destroyed it.
  */
 public class IdmAuthenticationFactory
 {
@@ -28,29 +41,101 @@ public class IdmAuthenticationFactory
    */
   public static IdmAuthentication get(String uuid)
   {
-    return _AUTH_CACHE.get(uuid);
+    _evictIdleFlows();
+    IdmAuthentication idmAuthentication = _AUTH_CACHE.get(uuid);
+    if (idmAuthentication != null)
+    {
+      idmAuthentication.markUsed();
+    }
+    return idmAuthentication;
   }
 
   /**
-   * Create a new auth for the parameters passed.
+   * Create a new auth for the parameters passed. The auth is set up asynchronously; it is registered once the setup
+   * completes successfully, or right away if the app asked for the setup to be done in the background.
+   * If the app allowed flows to be reused and a flow with the same configuration exists, that flow is returned instead.
    * @param context
-   * @param callback
    * @param props authentication properties to be used to create IDM OMMSS instance.
-   * @return auth object
+   * @param listener notified once the setup completed or failed.
+   * @return auth object, which is not usable until the listener is notified, unless it is set up in the background.
    */
-  public static String create(Activity context, CallbackContext callback, JSONObject props)
+  public static IdmAuthentication create(Activity context, JSONObject props, final IdmAuthentication.SetupListener listener)
   {
+    _evictIdleFlows();
+    final String fingerprint = IdmAuthentication.isReusable(props) ? _fingerprint(props) : null;
+    if (fingerprint != null)
+    {
+      IdmAuthentication reused = _FLOWS_BY_FINGERPRINT.get(fingerprint);
+      if (reused != null && reused.acquire())
+      {
+        OMLog.debug(TAG, "Reusing authentication flow " + reused.getAuthFlowKey());
+        reused.markUsed();
+        reused.whenSetUp(listener);
+        return reused;
+      }
+    }
+
     OMLog.debug(TAG, "Creating new Authentication flow.");
-    IdmAuthentication idmAuthentication = new IdmAuthentication(context, props);
-    if (idmAuthentication.setup(callback))
+    String key = UUID.randomUUID().toString();
+    final IdmAuthentication idmAuthentication = new IdmAuthentication(key, context, props);
+    if (idmAuthentication.isSetupInBackground())
     {
-      String key = UUID.randomUUID().toString();
+      // Actions wait for the setup, and fail with the setup error if it fails.
       _AUTH_CACHE.put(key, idmAuthentication);
-      return key;
+    }
+    if (fingerprint != null)
+    {
+      // Registered before the setup completes, so that setups started meanwhile share it.
+      _FLOWS_BY_FINGERPRINT.put(fingerprint, idmAuthentication);
     }
 
-    OMLog.debug(TAG, "Failed to creating new Authentication flow.");
-    return null;
+    idmAuthentication.setup(new IdmAuthentication.SetupListener()
+    {
+      @Override
+      public void onSetupCompleted(IdmAuthentication auth, OMMobileSecurityException securityEx, long setupMillis)
+      {
+        if (securityEx == null && !auth.isSetupInBackground())
+        {
+          _AUTH_CACHE.put(auth.getAuthFlowKey(), auth);
+        }
+        else if (securityEx != null)
+        {
+          OMLog.debug(TAG, "Failed to creating new Authentication flow.");
+          if (fingerprint != null)
+          {
+            // A later setup with the same configuration tries again.
+            _FLOWS_BY_FINGERPRINT.remove(fingerprint, auth);
+          }
+        }
+        listener.onSetupCompleted(auth, securityEx, setupMillis);
+      }
+    });
+    return idmAuthentication;
+  }
+
+  /**
+   * Releases the auth object for the uuid, which is removed and destroyed once no other setup shares it.
+   * @param uuid identifier for the auth.
+   * @return true if the auth object existed.
+   */
+  public static boolean destroy(String uuid)
+  {
+    IdmAuthentication idmAuthentication = _AUTH_CACHE.get(uuid);
+    if (idmAuthentication == null)
+    {
+      return false;
+    }
+
+    if (!idmAuthentication.release())
+    {
+      OMLog.debug(TAG, "Authentication flow " + uuid + " is still in use by another setup.");
+      return true;
+    }
+    if (_AUTH_CACHE.remove(uuid, idmAuthentication))
+    {
+      _dispose(idmAuthentication);
+    }
+    return true;
   }
 
   /**
@@ -63,6 +148,153 @@ public class IdmAuthenticationFactory
     return _AUTH_CACHE.containsKey(uuid);
   }
 
-  private static final Map<String, IdmAuthentication> _AUTH_CACHE = new HashMap<String, IdmAuthentication>();
+  /**
+   * Passes on the redirect from the external browser to the authentication flow waiting for it.
+   * @param incomingUri
+   * @return true if a flow was waiting for it.
+   */
+  public static boolean submitExternalBrowserChallengeResponse(Uri incomingUri)
+  {
+    for (IdmAuthentication idmAuthentication : _AUTH_CACHE.values())
+    {
+      if (idmAuthentication.isExpectingExternalBrowserResponse(incomingUri))
+      {
+        idmAuthentication.submitExternalBrowserChallengeResponse(incomingUri);
+        return true;
+      }
+    }
+
+    OMLog.info(TAG, "No authentication flow is expecting an external browser challenge response, ignoring.");
+    return false;
+  }
+
+  /**
+   * Passes on the memory trim request to all the authentication flows and the pre-warmed WebView.
+   * @param level memory trim level
+   */
+  public static void onTrimMemory(int level)
+  {
+    WebViewPool.onTrimMemory(level);
+    for (IdmAuthentication idmAuthentication : _AUTH_CACHE.values())
+    {
+      idmAuthentication.onTrimMemory(level);
+    }
+  }
+
+  /**
+   * Destroys the flows which have been idle for too long. Runs at most once every _EVICTION_INTERVAL_MILLIS, so
+   * lookups do not scan the flows every time.
+   */
+  private static void _evictIdleFlows()
+  {
+    long now = System.currentTimeMillis();
+    long lastEviction = _LAST_EVICTION.get();
+    if (now - lastEviction < _EVICTION_INTERVAL_MILLIS || !_LAST_EVICTION.compareAndSet(lastEviction, now))
+    {
+      return;
+    }
+
+    Iterator<Map.Entry<String, IdmAuthentication>> it = _AUTH_CACHE.entrySet().iterator();
+    while (it.hasNext())
+    {
+      Map.Entry<String, IdmAuthentication> entry = it.next();
+      // Flows shared by other setups are kept until each of them destroyed the flow.
+      if (entry.getValue().isIdle(now) && entry.getValue().retire()
+          && _AUTH_CACHE.remove(entry.getKey(), entry.getValue()))
+      {
+        OMLog.debug(TAG, "Evicting idle authentication flow " + entry.getKey());
+        _dispose(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Destroys a flow which has been removed from the registry.
+   * @param idmAuthentication
+   */
+  private static void _dispose(IdmAuthentication idmAuthentication)
+  {
+    _FLOWS_BY_FINGERPRINT.values().remove(idmAuthentication);
+    idmAuthentication.destroy();
+  }
+
+  /**
+   * Computes a digest of the configuration, which does not depend on the order of the keys.
+   * @param props authentication properties passed to setup.
+   * @return the digest, or null if it could not be computed, in which case the flow is not shared.
+   */
+  private static String _fingerprint(JSONObject props)
+  {
+    try
+    {
+      StringBuilder canonical = new StringBuilder();
+      _appendCanonical(props, canonical);
+      MessageDigest digest = MessageDigest.getInstance(_FINGERPRINT_ALGORITHM);
+      byte[] hash = digest.digest(canonical.toString().getBytes(_UTF_8));
+      StringBuilder fingerprint = new StringBuilder(hash.length * 2);
+      for (byte b : hash)
+      {
+        fingerprint.append(String.format("%02x", b));
+      }
+      return fingerprint.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      OMLog.error(TAG, "Unable to compute the configuration fingerprint.", e);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      OMLog.error(TAG, "Unable to compute the configuration fingerprint.", e);
+    }
+    return null;
+  }
+
+  private static void _appendCanonical(Object value, StringBuilder canonical)
+  {
+    if (value instanceof JSONObject)
+    {
+      JSONObject json = (JSONObject) value;
+      TreeSet<String> keys = new TreeSet<String>();
+      Iterator<String> it = json.keys();
+      while (it.hasNext())
+      {
+        keys.add(it.next());
+      }
+      canonical.append('{');
+      for (String key : keys)
+      {
+        canonical.append(JSONObject.quote(key)).append(':');
+        _appendCanonical(json.opt(key), canonical);
+        canonical.append(',');
+      }
+      canonical.append('}');
+    }
+    else if (value instanceof JSONArray)
+    {
+      JSONArray json = (JSONArray) value;
+      canonical.append('[');
+      for (int i = 0; i < json.length(); i++)
+      {
+        _appendCanonical(json.opt(i), canonical);
+        canonical.append(',');
+      }
+      canonical.append(']');
+    }
+    else if (value instanceof String)
+    {
+      canonical.append(JSONObject.quote((String) value));
+    }
+    else
+    {
+      canonical.append(value);
+    }
+  }
+
+  private static final ConcurrentMap<String, IdmAuthentication> _AUTH_CACHE = new ConcurrentHashMap<String, IdmAuthentication>();
+  private static final ConcurrentMap<String, IdmAuthentication> _FLOWS_BY_FINGERPRINT = new ConcurrentHashMap<String, IdmAuthentication>();
+  private static final AtomicLong _LAST_EVICTION = new AtomicLong();
+  private static final long _EVICTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final String _FINGERPRINT_ALGORITHM = "SHA-256";
+  private static final String _UTF_8 = "UTF-8";
   private static final String TAG = IdmAuthenticationFactory.class.getSimpleName();
 }
@@ -8,16 +8,24 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import oracle.idm.mobile.OMMobileSecurityException;
 import oracle.idm.mobile.logging.OMLog;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * This class is the Cordova plugin implementation that acts as the entry point.
@@ -25,6 +33,52 @@ import org.json.JSONObject;
  */
 public class IdmAuthenticationPlugin extends CordovaPlugin
 {
+  /**
+   * Registers for memory trim notifications, which are passed on to the authentication flows.
+   */
+  @Override
+  protected void pluginInitialize()
+  {
+    _memoryCallbacks = new ComponentCallbacks2()
+    {
+      @Override
+      public void onTrimMemory(int level)
+      {
+        IdmAuthenticationFactory.onTrimMemory(level);
+      }
+
+      @Override
+      public void onConfigurationChanged(Configuration newConfig)
+      {
+      }
+
+      @Override
+      public void onLowMemory()
+      {
+        IdmAuthenticationFactory.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+      }
+    };
+    cordova.getActivity().getApplicationContext().registerComponentCallbacks(_memoryCallbacks);
+    _executor = new IdmAuthenticationExecutor();
+  }
+
+  @Override
+  public void onDestroy()
+  {
+    if (_memoryCallbacks != null)
+    {
+      cordova.getActivity().getApplicationContext().unregisterComponentCallbacks(_memoryCallbacks);
+      _memoryCallbacks = null;
+    }
+    if (_executor != null)
+    {
+      // The executor is kept, so that actions submitted late, e.g. once a setup completes, are failed by it.
+      _executor.shutdown();
+    }
+    WebViewPool.clear();
+    super.onDestroy();
+  }
+
   /**
    * Handles actions from JS layer.
    * @param action
@@ -76,6 +130,26 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
       _handleResetIdleTimeout(args, callbackContext);
       return true;
     }
+    else if ("addEventCallback".equals(action))
+    {
+      _handleAddEventCallback(args, callbackContext);
+      return true;
+    }
+    else if ("touch".equals(action))
+    {
+      _handleTouch(args, callbackContext);
+      return true;
+    }
+    else if ("destroy".equals(action))
+    {
+      _handleDestroy(args, callbackContext);
+      return true;
+    }
+    else if ("batch".equals(action))
+    {
+      _handleBatch(args, callbackContext);
+      return true;
+    }
 
     invokeCallbackError(callbackContext, "Invalid action: " + action);
     return false;
@@ -94,9 +168,9 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
       OMLog.debug(TAG, "onNewIntent is action view.");
       final Uri receivedUri = intent.getData();
       OMLog.debug(TAG, "onNewIntent URI is: " + receivedUri);
-      if (receivedUri != null && _currentAuthFlow != null)
+      if (receivedUri != null)
       {
-        _currentAuthFlow.submitExternalBrowserChallengeResponse(receivedUri);
+        IdmAuthenticationFactory.submitExternalBrowserChallengeResponse(receivedUri);
       }
     }
 
@@ -139,7 +213,7 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
    * @param args
    * @param callbackContext
    */
-  private void _handleSetup(JSONArray args, CallbackContext callbackContext)
+  private void _handleSetup(JSONArray args, final CallbackContext callbackContext)
   {
     // Index check is done by the opt method automatically.
     JSONObject jsonObject = args.optJSONObject(0);
@@ -149,15 +223,49 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
       return;
     }
 
-    Map<String, Object> map =  new HashMap<String, Object>();
-    String token = IdmAuthenticationFactory.create(cordova.getActivity(), callbackContext, jsonObject);
+    // The setup does not block the bridge thread, the flow key is sent once the setup completes.
+    final IdmAuthenticationExecutor executor = _executor;
+    IdmAuthentication auth = IdmAuthenticationFactory.create(cordova.getActivity(), jsonObject,
+                                                             new IdmAuthentication.SetupListener()
+    {
+      @Override
+      public void onSetupCompleted(IdmAuthentication auth, OMMobileSecurityException securityEx, long setupMillis)
+      {
+        // Reused flows run no setup, so there is nothing to record.
+        if (executor != null && setupMillis >= 0)
+        {
+          executor.record("setup", setupMillis);
+        }
+        if (auth.isSetupInBackground())
+        {
+          return;
+        }
+
+        if (securityEx != null)
+        {
+          OMLog.error(TAG, "Error while setting up authentication flow.");
+          IdmAuthenticationPlugin.invokeCallbackError(callbackContext, securityEx);
+          return;
+        }
+        _sendAuthFlowKey(callbackContext, auth);
+      }
+    });
 
-    if (token == null)
+    if (auth.isSetupInBackground())
     {
-      return;
+      _sendAuthFlowKey(callbackContext, auth);
     }
+  }
 
-    map.put(AUTH_FLOW_KEY, token);
+  /**
+   * Sends the key of the auth flow created by setup.
+   * @param callbackContext
+   * @param auth
+   */
+  private void _sendAuthFlowKey(CallbackContext callbackContext, IdmAuthentication auth)
+  {
+    Map<String, Object> map =  new HashMap<String, Object>();
+    map.put(AUTH_FLOW_KEY, auth.getAuthFlowKey());
     callbackContext.success(new JSONObject(map));
   }
 
@@ -166,15 +274,22 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
    * @param args
    * @param callbackContext
    */
-  private void _handleStartLogin(JSONArray args, CallbackContext callbackContext)
+  private void _handleStartLogin(JSONArray args, final CallbackContext callbackContext)
   {
-    IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
 
-    auth.startLogin(callbackContext);
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.startLogin(callbackContext);
+      }
+    });
   }
 
   /**
@@ -182,15 +297,15 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
    * @param args
    * @param callbackContext
    */
-  private void _handleFinishLogin(JSONArray args, CallbackContext callbackContext)
+  private void _handleFinishLogin(JSONArray args, final CallbackContext callbackContext)
   {
-    IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
 
-    JSONObject challengeFields = args.optJSONObject(1);
+    final JSONObject challengeFields = args.optJSONObject(1);
 
     if (challengeFields == null)
     {
@@ -199,42 +314,65 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
       return;
     }
 
-    auth.finishLogin(challengeFields, callbackContext);
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.finishLogin(challengeFields, callbackContext);
+      }
+    });
   }
 
   /**
    * Handles isAuthenticated call.
+   * This may refresh tokens over the network, so it is run on the plugin executor.
    * @param args
    * @param callbackContext
    */
-  private void _handleIsAuthenticated(JSONArray args, CallbackContext callbackContext)
+  private void _handleIsAuthenticated(JSONArray args, final CallbackContext callbackContext)
   {
-    IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
 
-    JSONObject props = args.optJSONObject(1);
-    auth.isAuthenticated(props, callbackContext);
+    final JSONObject props = args.optJSONObject(1);
+    _executeWhenSetUp(auth, callbackContext, "isAuthenticated", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.isAuthenticated(props, callbackContext);
+      }
+    });
   }
 
   /**
    * Handles getHeaders call.
+   * This is run on the plugin executor, in order with isAuthenticated calls for the same flow.
    * @param args
    * @param callbackContext
    */
-  private void _handleGetHeaders(JSONArray args, CallbackContext callbackContext)
+  private void _handleGetHeaders(JSONArray args, final CallbackContext callbackContext)
   {
-    IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
 
-    auth.getHeaders(callbackContext,
-                    getStringFromJsonArray(args, 1),
-                    getSetFromJsonArray(args, 2));
+    final String fedAuthSecuredUrl = getStringFromJsonArray(args, 1);
+    final Set<String> scopes = getSetFromJsonArray(args, 2);
+    _executeWhenSetUp(auth, callbackContext, "getHeaders", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.getHeaders(callbackContext, fedAuthSecuredUrl, scopes);
+      }
+    });
   }
 
   /**
@@ -242,14 +380,21 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
    * @param args
    * @param callbackContext
    */
-  private void _handleLogout(JSONArray args, CallbackContext callbackContext)
+  private void _handleLogout(JSONArray args, final CallbackContext callbackContext)
   {
-    IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
-    auth.logout(callbackContext);
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.logout(callbackContext);
+      }
+    });
   }
 
   /**
@@ -257,14 +402,65 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
    * @param args
    * @param callbackContext
    */
-  private void _handleAddTimeoutCallback(JSONArray args, CallbackContext callbackContext)
+  private void _handleAddTimeoutCallback(JSONArray args, final CallbackContext callbackContext)
   {
-    IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
-    auth.addTimeoutCallback(callbackContext);
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.addTimeoutCallback(callbackContext);
+      }
+    });
+  }
+
+  /**
+   * Handles addEventCallback call.
+   * @param args
+   * @param callbackContext
+   */
+  private void _handleAddEventCallback(JSONArray args, final CallbackContext callbackContext)
+  {
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    if (auth == null)
+    {
+      return;
+    }
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.addEventCallback(callbackContext);
+      }
+    });
+  }
+
+  /**
+   * Handles touch call.
+   * @param args
+   * @param callbackContext
+   */
+  private void _handleTouch(JSONArray args, final CallbackContext callbackContext)
+  {
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    if (auth == null)
+    {
+      return;
+    }
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.touch(callbackContext);
+      }
+    });
   }
 
   /**
@@ -272,14 +468,203 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
    * @param args
    * @param callbackContext
    */
-  private void _handleResetIdleTimeout(JSONArray args, CallbackContext callbackContext)
+  private void _handleResetIdleTimeout(JSONArray args, final CallbackContext callbackContext)
+  {
+    final IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
+    if (auth == null)
+    {
+      return;
+    }
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        auth.resetIdleTimeout(callbackContext);
+      }
+    });
+  }
+
+  /**
+   * Runs the action on the plugin executor once the setup of the auth flow has completed.
+   * @param auth
+   * @param callbackContext
+   * @param action name of the action, for the latency histogram.
+   * @param task
+   */
+  private void _executeWhenSetUp(final IdmAuthentication auth,
+                                 final CallbackContext callbackContext,
+                                 final String action,
+                                 final Runnable task)
+  {
+    auth.whenSetUp(callbackContext, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _executor.execute(auth.getAuthFlowKey(), action, callbackContext, task);
+      }
+    });
+  }
+
+  /**
+   * Handles destroy call, after which the auth flow key is no longer valid.
+   * @param args
+   * @param callbackContext
+   */
+  private void _handleDestroy(JSONArray args, CallbackContext callbackContext)
   {
     IdmAuthentication auth = _validateArgsAndGetAuth(args, callbackContext);
     if (auth == null)
     {
       return;
     }
-    auth.resetIdleTimeout(callbackContext);
+
+    IdmAuthenticationFactory.destroy(getStringFromJsonArray(args, 0));
+    callbackContext.success();
+  }
+
+  /**
+   * Handles batch call, which carries several isAuthenticated, getHeaders, resetIdleTimeout and touch calls,
+   * possibly for different flows, so that they cross the bridge once. Each request is an object with the action name
+   * and its arguments, e.g. {"action": "getHeaders", "args": [authFlowKey, fedAuthSecuredUrl, oauthScopes]}, and is
+   * handled like the individual call. The callback receives an array with the outcome of each request, in order, once
+   * all are done: {"ok": true, "result": ...} or {"ok": false, "error": ...}.
+   * Only the first final result of a request counts, intermediate and repeated results are ignored. A request which
+   * throws fails, and one which has not answered within _BATCH_TIMEOUT_MILLIS times out, so that one request cannot
+   * hold up the whole batch.
+   * @param args
+   * @param callbackContext
+   */
+  private void _handleBatch(JSONArray args, final CallbackContext callbackContext)
+  {
+    JSONArray requests = args == null ? null : args.optJSONArray(0);
+    if (requests == null)
+    {
+      IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _INVALID_BATCH_REQUEST);
+      return;
+    }
+
+    final int count = requests.length();
+    if (count == 0)
+    {
+      callbackContext.success(new JSONArray());
+      return;
+    }
+
+    // A request is counted once, when its result is set from null.
+    final AtomicReferenceArray<PluginResult> results = new AtomicReferenceArray<PluginResult>(count);
+    final AtomicInteger remaining = new AtomicInteger(count);
+    final Runnable timeout = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        PluginResult timedOut = new PluginResult(PluginResult.Status.ERROR,
+                                                 new JSONObject(errorToMap(_BATCH_REQUEST_TIMED_OUT)));
+        for (int i = 0; i < count; i++)
+        {
+          if (results.compareAndSet(i, null, timedOut))
+          {
+            OMLog.debug(TAG, "Batch request " + i + " timed out.");
+            if (remaining.decrementAndGet() == 0)
+            {
+              _sendBatchResults(callbackContext, results);
+            }
+          }
+        }
+      }
+    };
+    _BATCH_TIMEOUT_HANDLER.postDelayed(timeout, _BATCH_TIMEOUT_MILLIS);
+
+    for (int i = 0; i < count; i++)
+    {
+      final int index = i;
+      CallbackContext requestCallback = new CallbackContext(callbackContext.getCallbackId(), webView)
+      {
+        @Override
+        public void sendPluginResult(PluginResult pluginResult)
+        {
+          if (pluginResult.getKeepCallback())
+          {
+            OMLog.debug(TAG, "Ignoring intermediate result of batch request " + index);
+            return;
+          }
+          if (!results.compareAndSet(index, null, pluginResult))
+          {
+            OMLog.debug(TAG, "Ignoring repeated result of batch request " + index);
+            return;
+          }
+          if (remaining.decrementAndGet() == 0)
+          {
+            _BATCH_TIMEOUT_HANDLER.removeCallbacks(timeout);
+            _sendBatchResults(callbackContext, results);
+          }
+        }
+      };
+
+      JSONObject request = requests.optJSONObject(i);
+      String action = request == null ? null : request.optString(_BATCH_ACTION);
+      JSONArray requestArgs = request == null ? null : request.optJSONArray(_BATCH_ARGS);
+      OMLog.debug(TAG, "Batch request " + i + ": " + action);
+      try
+      {
+        if ("isAuthenticated".equals(action))
+        {
+          _handleIsAuthenticated(requestArgs, requestCallback);
+        }
+        else if ("getHeaders".equals(action))
+        {
+          _handleGetHeaders(requestArgs, requestCallback);
+        }
+        else if ("resetIdleTimeout".equals(action))
+        {
+          _handleResetIdleTimeout(requestArgs, requestCallback);
+        }
+        else if ("touch".equals(action))
+        {
+          _handleTouch(requestArgs, requestCallback);
+        }
+        else
+        {
+          IdmAuthenticationPlugin.invokeCallbackError(requestCallback, _INVALID_BATCH_REQUEST);
+        }
+      }
+      catch (RuntimeException e)
+      {
+        OMLog.error(TAG, "Batch request " + i + " failed.", e);
+        IdmAuthenticationPlugin.invokeCallbackError(requestCallback, _REQUEST_FAILED);
+      }
+    }
+  }
+
+  /**
+   * Sends the outcome of all the requests of a batch in one result.
+   * @param callbackContext of the batch call.
+   * @param results of the requests.
+   */
+  private void _sendBatchResults(CallbackContext callbackContext, AtomicReferenceArray<PluginResult> results)
+  {
+    JSONArray response = new JSONArray();
+    try
+    {
+      for (int i = 0; i < results.length(); i++)
+      {
+        PluginResult result = results.get(i);
+        JSONObject outcome = new JSONObject();
+        boolean ok = result.getStatus() == PluginResult.Status.OK.ordinal();
+        outcome.put(_BATCH_OK, ok);
+        outcome.put(ok ? _BATCH_RESULT : _BATCH_ERROR, new JSONTokener(result.getMessage()).nextValue());
+        response.put(outcome);
+      }
+    }
+    catch (JSONException jEx)
+    {
+      OMLog.error(TAG, "Exception while building batch response.", jEx);
+      IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _INVALID_BATCH_REQUEST);
+      return;
+    }
+    callbackContext.success(response);
   }
 
   /**
@@ -303,14 +688,14 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
       return null;
     }
 
-    if (!IdmAuthenticationFactory.isValidAuthFlowKey(authFlowKey))
+    IdmAuthentication auth = IdmAuthenticationFactory.get(authFlowKey);
+    if (auth == null)
     {
       IdmAuthenticationPlugin.invokeCallbackError(callbackContext, _INVALID_AUTH_FLOW_KEY);
       return null;
     }
 
-    _currentAuthFlow = IdmAuthenticationFactory.get(authFlowKey);
-    return _currentAuthFlow;
+    return auth;
   }
 
   /**
@@ -345,13 +730,26 @@ public class IdmAuthenticationPlugin extends CordovaPlugin
     return set;
   }
 
-  private IdmAuthentication _currentAuthFlow;
+  private ComponentCallbacks2 _memoryCallbacks;
+  private IdmAuthenticationExecutor _executor;
 
   private static final String _NULL_ARGS_FOR_INIT = "P1005";
   private static final String _NULL_ARGS_FOR_CHALLENGE = "P1006";
   private static final String _NULL_ARGS = "P1007";
   private static final String _NULL_AUTH_FLOW_KEY = "P1008";
   private static final String _INVALID_AUTH_FLOW_KEY = "P1009";
+  private static final String _INVALID_BATCH_REQUEST = "P1014";
+  private static final String _REQUEST_FAILED = "P1015";
+  private static final String _BATCH_REQUEST_TIMED_OUT = "P1017";
+  private static final long _BATCH_TIMEOUT_MILLIS = 60000;
+  private static final Handler _BATCH_TIMEOUT_HANDLER = new Handler(Looper.getMainLooper());
+
+  // These should sync with the batch requests built in the Javascript API.
+  private static final String _BATCH_ACTION = "action";
+  private static final String _BATCH_ARGS = "args";
+  private static final String _BATCH_OK = "ok";
+  private static final String _BATCH_RESULT = "result";
+  private static final String _BATCH_ERROR = "error";
 
   // This should sync with idmAuthFlowPlugin.AuthFlowKey value in the Javascript API.
   private static final String AUTH_FLOW_KEY = "AuthFlowKey";
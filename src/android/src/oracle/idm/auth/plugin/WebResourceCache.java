@@ -0,0 +1,614 @@
+/**
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+package oracle.idm.auth.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import javax.net.ssl.HttpsURLConnection;
+import oracle.idm.mobile.connection.OMConnectionHandler;
+import oracle.idm.mobile.logging.OMLog;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Disk cache of the static resources, e.g. CSS, scripts and images, of the login pages shown in the WebViewActivity,
+ * so that they are not downloaded again on every embedded login. Only GET requests for URLs under one of the
+ * allowlisted prefixes of the flow are served, and only responses which can be kept by a shared cache are stored:
+ * HTML, responses setting cookies, marked private or no-store are never stored. Requests carrying credentials, i.e. an
+ * Authorization header or WebView cookies for the URL, are left to the WebView, so the cache, which is shared by all
+ * the flows, never holds a response obtained with a user's credentials. Cookies set by the responses which are passed
+ * on without being stored are copied to the WebView's cookie store, as the WebView ignores them on intercepted
+ * responses. Freshness follows Cache-Control max-age or Expires; stale entries are revalidated using ETag or
+ * Last-Modified. The cache is capped at _MAX_SIZE_BYTES, least recently used entries are removed first.
+ * Resources are fetched with the SSL setup of the flow's SDK instance, i.e. the certificates it trusts and its client
+ * certificate handling. If the fetch fails, e.g. on a certificate the WebView has to prompt for, the request is left to
+ * the WebView.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class WebResourceCache
+{
+  /**
+   * Returns the cache shared by the authentication flows.
+   * @param context
+   * @return
+   */
+  static synchronized WebResourceCache getInstance(Context context)
+  {
+    if (_instance == null)
+    {
+      _instance = new WebResourceCache(new File(context.getApplicationContext().getCacheDir(), _DIRECTORY));
+    }
+    return _instance;
+  }
+
+  private WebResourceCache(File directory)
+  {
+    _directory = directory;
+  }
+
+  /**
+   * Serves the request from the cache, fetching and storing the resource if needed. Called by the WebView on a
+   * background thread, so this may block on the network.
+   * @param request
+   * @param allowlist URL prefixes of the resources which may be cached.
+   * @param connectionHandler of the flow, whose SSL setup is used to fetch the resource.
+   * @return the response, null if the request is not for a cacheable resource and should be loaded by the WebView.
+   */
+  WebResourceResponse get(WebResourceRequest request, List<String> allowlist, OMConnectionHandler connectionHandler)
+  {
+    if (!_isCacheable(request, allowlist))
+    {
+      return null;
+    }
+
+    String url = request.getUrl().toString();
+    String key = _key(url);
+    if (key == null)
+    {
+      return null;
+    }
+
+    JSONObject entry = _readEntry(key);
+    if (entry != null && System.currentTimeMillis() < entry.optLong(_EXPIRES))
+    {
+      OMLog.trace(TAG, "Serving from cache: " + url);
+      return _response(key, entry);
+    }
+
+    try
+    {
+      return _fetch(url, key, entry, request.getRequestHeaders(), connectionHandler);
+    }
+    catch (IOException e)
+    {
+      OMLog.debug(TAG, "Unable to fetch " + url + ", leaving it to the WebView: " + e.getMessage());
+      return null;
+    }
+    catch (GeneralSecurityException e)
+    {
+      OMLog.debug(TAG, "Unable to set up SSL for " + url + ", leaving it to the WebView: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Checks if the request is a GET for a resource under the allowlist, and not for a page or with credentials, i.e. an
+   * Authorization header or cookies.
+   */
+  private static boolean _isCacheable(WebResourceRequest request, List<String> allowlist)
+  {
+    if (!_GET.equals(request.getMethod()) || request.isForMainFrame())
+    {
+      return false;
+    }
+
+    Map<String, String> headers = request.getRequestHeaders();
+    for (Map.Entry<String, String> header : headers.entrySet())
+    {
+      if (_AUTHORIZATION.equalsIgnoreCase(header.getKey()))
+      {
+        return false;
+      }
+      if (_ACCEPT.equalsIgnoreCase(header.getKey()) && header.getValue() != null
+          && header.getValue().toLowerCase(Locale.US).startsWith(_TEXT_HTML))
+      {
+        return false;
+      }
+    }
+
+    Uri uri = request.getUrl();
+    if (!_HTTPS.equals(uri.getScheme()) || uri.getUserInfo() != null)
+    {
+      return false;
+    }
+    // The request headers the WebView exposes do not include its cookies, which it adds itself.
+    if (CookieManager.getInstance().getCookie(uri.toString()) != null)
+    {
+      return false;
+    }
+    for (String prefix : allowlist)
+    {
+      Uri allowed = Uri.parse(prefix);
+      if (_HTTPS.equals(allowed.getScheme())
+          && uri.getHost() != null && uri.getHost().equalsIgnoreCase(allowed.getHost())
+          && uri.getPort() == allowed.getPort()
+          && uri.getPath() != null
+          && uri.getPath().startsWith(allowed.getPath() == null ? "" : allowed.getPath()))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Fetches the resource, revalidating the stale entry if there is one, and stores it if the response allows it.
+   */
+  private WebResourceResponse _fetch(String url, String key, JSONObject staleEntry, Map<String, String> requestHeaders,
+                                     OMConnectionHandler connectionHandler)
+      throws IOException, GeneralSecurityException
+  {
+    // Only https URLs are cacheable.
+    HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+    connectionHandler.applySSLSocketFactory(connection);
+    connection.setInstanceFollowRedirects(false);
+    connection.setConnectTimeout(_TIMEOUT_MILLIS);
+    connection.setReadTimeout(_TIMEOUT_MILLIS);
+    for (Map.Entry<String, String> header : requestHeaders.entrySet())
+    {
+      if (_FORWARDED_REQUEST_HEADERS.contains(header.getKey().toLowerCase(Locale.US)))
+      {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+    if (staleEntry != null)
+    {
+      if (staleEntry.has(_ETAG))
+      {
+        connection.setRequestProperty(_IF_NONE_MATCH, staleEntry.optString(_ETAG));
+      }
+      if (staleEntry.has(_LAST_MODIFIED))
+      {
+        connection.setRequestProperty(_IF_MODIFIED_SINCE, staleEntry.optString(_LAST_MODIFIED));
+      }
+    }
+
+    int status = connection.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_MODIFIED && staleEntry != null)
+    {
+      long expires = _expires(connection);
+      connection.disconnect();
+      _put(staleEntry, _EXPIRES, expires);
+      _writeEntry(key, staleEntry);
+      OMLog.trace(TAG, "Revalidated: " + url);
+      return _response(key, staleEntry);
+    }
+    if (status != HttpURLConnection.HTTP_OK)
+    {
+      // Redirects and errors are left to the WebView.
+      connection.disconnect();
+      return null;
+    }
+
+    String contentType = connection.getContentType();
+    String mimeType = _mimeType(contentType);
+    if (!_isStorable(connection, mimeType))
+    {
+      // Already requested, so it is passed on to the WebView as is rather than loaded again.
+      Map<String, String> headers = new HashMap<String, String>();
+      for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet())
+      {
+        if (header.getKey() == null || header.getValue().isEmpty())
+        {
+          continue;
+        }
+        if (_SET_COOKIE.equalsIgnoreCase(header.getKey()))
+        {
+          // The WebView does not apply the cookies of intercepted responses.
+          for (String cookie : header.getValue())
+          {
+            CookieManager.getInstance().setCookie(url, cookie);
+          }
+          continue;
+        }
+        headers.put(header.getKey(), header.getValue().get(0));
+      }
+      return new WebResourceResponse(mimeType, _encoding(contentType), status, _OK, headers,
+                                     connection.getInputStream());
+    }
+
+    JSONObject entry = new JSONObject();
+    _put(entry, _URL, url);
+    _put(entry, _CONTENT_TYPE, contentType);
+    _put(entry, _EXPIRES, _expires(connection));
+    _put(entry, _ETAG, connection.getHeaderField(_ETAG));
+    _put(entry, _LAST_MODIFIED, connection.getHeaderField(_LAST_MODIFIED));
+    _put(entry, _ALLOW_ORIGIN, connection.getHeaderField(_ALLOW_ORIGIN));
+    if (!_writeBody(key, connection))
+    {
+      connection.disconnect();
+      return null;
+    }
+    connection.disconnect();
+    _writeEntry(key, entry);
+    _trim();
+    OMLog.trace(TAG, "Cached: " + url);
+    return _response(key, entry);
+  }
+
+  /**
+   * Checks if a shared cache may keep the response.
+   */
+  private static boolean _isStorable(HttpURLConnection connection, String mimeType)
+  {
+    if (mimeType == null || _HTML_TYPES.contains(mimeType))
+    {
+      return false;
+    }
+    if (connection.getHeaderField(_SET_COOKIE) != null || connection.getContentLength() > _MAX_ENTRY_BYTES)
+    {
+      return false;
+    }
+    String vary = connection.getHeaderField(_VARY);
+    if (vary != null && !_ACCEPT_ENCODING.equalsIgnoreCase(vary.trim()))
+    {
+      return false;
+    }
+    String cacheControl = _lowerCase(connection.getHeaderField(_CACHE_CONTROL));
+    if (cacheControl.contains(_PRIVATE) || cacheControl.contains(_NO_STORE))
+    {
+      return false;
+    }
+    return _expires(connection) > System.currentTimeMillis()
+        || connection.getHeaderField(_ETAG) != null
+        || connection.getHeaderField(_LAST_MODIFIED) != null;
+  }
+
+  /**
+   * Returns until when the response is fresh, from Cache-Control max-age or Expires.
+   */
+  private static long _expires(HttpURLConnection connection)
+  {
+    long now = System.currentTimeMillis();
+    String cacheControl = _lowerCase(connection.getHeaderField(_CACHE_CONTROL));
+    if (cacheControl.contains(_NO_CACHE))
+    {
+      return now;
+    }
+    for (String directive : cacheControl.split(","))
+    {
+      directive = directive.trim();
+      if (directive.startsWith(_MAX_AGE))
+      {
+        try
+        {
+          return now + TimeUnit.SECONDS.toMillis(Long.parseLong(directive.substring(_MAX_AGE.length()).trim()));
+        }
+        catch (NumberFormatException e)
+        {
+          return now;
+        }
+      }
+    }
+    long expiration = connection.getExpiration();
+    return expiration > 0 ? expiration : now;
+  }
+
+  private WebResourceResponse _response(String key, JSONObject entry)
+  {
+    try
+    {
+      String contentType = entry.optString(_CONTENT_TYPE, null);
+      WebResourceResponse response = new WebResourceResponse(_mimeType(contentType), _encoding(contentType),
+                                                             new FileInputStream(_bodyFile(key)));
+      String allowOrigin = entry.optString(_ALLOW_ORIGIN, null);
+      if (allowOrigin != null)
+      {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(_ALLOW_ORIGIN, allowOrigin);
+        response.setResponseHeaders(headers);
+      }
+      // Marks the entry as recently used.
+      _bodyFile(key).setLastModified(System.currentTimeMillis());
+      return response;
+    }
+    catch (FileNotFoundException e)
+    {
+      // Removed by _trim meanwhile.
+      return null;
+    }
+  }
+
+  private boolean _writeBody(String key, HttpURLConnection connection) throws IOException
+  {
+    if (!_directory.isDirectory() && !_directory.mkdirs())
+    {
+      return false;
+    }
+
+    // One temporary file per thread, the WebView may load the same resource twice concurrently.
+    File temp = new File(_directory, key + "." + Thread.currentThread().getId() + _TEMP_SUFFIX);
+    InputStream in = connection.getInputStream();
+    OutputStream out = new FileOutputStream(temp);
+    long size = 0;
+    try
+    {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1)
+      {
+        size += read;
+        if (size > _MAX_ENTRY_BYTES)
+        {
+          break;
+        }
+        out.write(buffer, 0, read);
+      }
+    }
+    finally
+    {
+      out.close();
+      in.close();
+    }
+    if (size > _MAX_ENTRY_BYTES || !temp.renameTo(_bodyFile(key)))
+    {
+      temp.delete();
+      return false;
+    }
+    return true;
+  }
+
+  private JSONObject _readEntry(String key)
+  {
+    File file = _entryFile(key);
+    if (!file.isFile() || !_bodyFile(key).isFile())
+    {
+      return null;
+    }
+
+    try
+    {
+      InputStream in = new FileInputStream(file);
+      try
+      {
+        byte[] bytes = new byte[(int) file.length()];
+        int offset = 0;
+        int read;
+        while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1)
+        {
+          offset += read;
+        }
+        return new JSONObject(new String(bytes, 0, offset, _UTF_8));
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+    catch (JSONException e)
+    {
+      file.delete();
+      return null;
+    }
+  }
+
+  private void _writeEntry(String key, JSONObject entry)
+  {
+    try
+    {
+      OutputStream out = new FileOutputStream(_entryFile(key));
+      try
+      {
+        out.write(entry.toString().getBytes(_UTF_8));
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    catch (IOException e)
+    {
+      OMLog.debug(TAG, "Unable to write cache entry: " + e.getMessage());
+      _bodyFile(key).delete();
+    }
+  }
+
+  /**
+   * Removes the least recently used entries until the cache is under _MAX_SIZE_BYTES.
+   */
+  private synchronized void _trim()
+  {
+    File[] files = _directory.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+
+    long size = 0;
+    for (File file : files)
+    {
+      size += file.length();
+    }
+    if (size <= _MAX_SIZE_BYTES)
+    {
+      return;
+    }
+
+    Arrays.sort(files, new Comparator<File>()
+    {
+      @Override
+      public int compare(File lhs, File rhs)
+      {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    for (File file : files)
+    {
+      if (size <= _MAX_SIZE_BYTES)
+      {
+        break;
+      }
+      if (file.getName().endsWith(_BODY_SUFFIX))
+      {
+        String key = file.getName().substring(0, file.getName().length() - _BODY_SUFFIX.length());
+        size -= file.length() + _entryFile(key).length();
+        file.delete();
+        _entryFile(key).delete();
+      }
+    }
+    OMLog.debug(TAG, "Trimmed resource cache to " + size + " bytes.");
+  }
+
+  private File _bodyFile(String key)
+  {
+    return new File(_directory, key + _BODY_SUFFIX);
+  }
+
+  private File _entryFile(String key)
+  {
+    return new File(_directory, key + _ENTRY_SUFFIX);
+  }
+
+  private static String _key(String url)
+  {
+    try
+    {
+      byte[] hash = MessageDigest.getInstance(_KEY_ALGORITHM).digest(url.getBytes(_UTF_8));
+      StringBuilder key = new StringBuilder(hash.length * 2);
+      for (byte b : hash)
+      {
+        key.append(String.format("%02x", b));
+      }
+      return key.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      return null;
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      return null;
+    }
+  }
+
+  private static String _mimeType(String contentType)
+  {
+    if (contentType == null)
+    {
+      return null;
+    }
+    int separator = contentType.indexOf(';');
+    return _lowerCase(separator < 0 ? contentType : contentType.substring(0, separator)).trim();
+  }
+
+  private static String _encoding(String contentType)
+  {
+    if (contentType == null)
+    {
+      return null;
+    }
+    for (String parameter : contentType.split(";"))
+    {
+      parameter = parameter.trim();
+      if (parameter.toLowerCase(Locale.US).startsWith(_CHARSET))
+      {
+        return parameter.substring(_CHARSET.length()).replace("\"", "");
+      }
+    }
+    return null;
+  }
+
+  private static String _lowerCase(String value)
+  {
+    return value == null ? "" : value.toLowerCase(Locale.US);
+  }
+
+  private static void _put(JSONObject entry, String name, Object value)
+  {
+    try
+    {
+      entry.putOpt(name, value);
+    }
+    catch (JSONException e)
+    {
+      OMLog.debug(TAG, "Unable to set " + name + " of cache entry.");
+    }
+  }
+
+  private final File _directory;
+
+  private static WebResourceCache _instance;
+
+  private static final String _DIRECTORY = "idm_web_resources";
+  private static final long _MAX_SIZE_BYTES = 10 * 1024 * 1024;
+  private static final long _MAX_ENTRY_BYTES = 1024 * 1024;
+  private static final int _TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(20);
+  private static final String _KEY_ALGORITHM = "SHA-256";
+  private static final String _UTF_8 = "UTF-8";
+  private static final String _BODY_SUFFIX = ".body";
+  private static final String _ENTRY_SUFFIX = ".entry";
+  private static final String _TEMP_SUFFIX = ".tmp";
+  private static final String _GET = "GET";
+  private static final String _OK = "OK";
+  private static final String _HTTPS = "https";
+  private static final String _TEXT_HTML = "text/html";
+  private static final String _CHARSET = "charset=";
+  private static final String _MAX_AGE = "max-age=";
+  private static final String _NO_CACHE = "no-cache";
+  private static final String _NO_STORE = "no-store";
+  private static final String _PRIVATE = "private";
+  private static final String _AUTHORIZATION = "Authorization";
+  private static final String _ACCEPT = "Accept";
+  private static final String _ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String _CACHE_CONTROL = "Cache-Control";
+  private static final String _SET_COOKIE = "Set-Cookie";
+  private static final String _VARY = "Vary";
+  private static final String _ETAG = "ETag";
+  private static final String _LAST_MODIFIED = "Last-Modified";
+  private static final String _IF_NONE_MATCH = "If-None-Match";
+  private static final String _IF_MODIFIED_SINCE = "If-Modified-Since";
+  private static final String _ALLOW_ORIGIN = "Access-Control-Allow-Origin";
+  private static final String _URL = "url";
+  private static final String _CONTENT_TYPE = "contentType";
+  private static final String _EXPIRES = "expires";
+  private static final List<String> _HTML_TYPES = Collections.unmodifiableList(
+      Arrays.asList("text/html", "application/xhtml+xml"));
+  private static final List<String> _FORWARDED_REQUEST_HEADERS = Collections.unmodifiableList(
+      Arrays.asList("accept", "accept-language", "user-agent", "referer"));
+  private static final String TAG = WebResourceCache.class.getSimpleName();
+}
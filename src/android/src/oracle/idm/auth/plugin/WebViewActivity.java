@@ -5,6 +5,7 @@
 package oracle.idm.auth.plugin;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import android.content.res.Resources;
@@ -12,12 +13,18 @@ import android.view.View;
 import android.widget.Button;
 import oracle.idm.mobile.OMMobileSecurityService;
 import oracle.idm.mobile.OMSecurityConstants;
+import oracle.idm.mobile.connection.OMConnectionHandler;
 import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Bundle;
+import android.view.ViewGroup;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import oracle.idm.mobile.logging.OMLog;
@@ -29,6 +36,7 @@ public class WebViewActivity extends Activity
 {
   public static final String FINISH_WEB_VIEW_INTENT = "finishWebView";
   public static final String CANCEL_WEB_VIEW_INTENT = "cancelFromWebView";
+  public static final String AUTH_FLOW_KEY_EXTRA = "authFlowKey";
 
   private String redirectEndPoint;
 
@@ -39,14 +47,23 @@ public class WebViewActivity extends Activity
     Resources resources = getApplication().getResources();
     String packageName = getApplication().getPackageName();
     redirectEndPoint = getIntent().getStringExtra(OMMobileSecurityService.OM_PROP_OAUTH_REDIRECT_ENDPOINT);
+    _authFlowKey = getIntent().getStringExtra(AUTH_FLOW_KEY_EXTRA);
     setContentView(resources.getIdentifier(_ACTIVITY_WEB_VIEW, _LAYOUT, packageName));
-    _webView = (WebView) findViewById(resources.getIdentifier(_IDM_WEB_VIEW, _ID, packageName));
-    _webView.getSettings().setJavaScriptEnabled(true);
-    _webView.getSettings().setDomStorageEnabled(true);
 
     getActionBar().hide();
 
-    IdmAuthentication.CompletionHandler completionHandler = IdmAuthentication.getCompletionHandler();
+    IdmAuthentication auth = IdmAuthenticationFactory.get(_authFlowKey);
+    IdmAuthentication.CompletionHandler completionHandler = auth == null ? null : auth.getCompletionHandler();
+    if (completionHandler == null)
+    {
+      OMLog.warn(TAG, "No challenge in progress for authentication flow " + _authFlowKey + ", finishing.");
+      finish();
+      return;
+    }
+    _prewarmWebView = auth.isPrewarmWebView();
+    _resourceCacheAllowlist = auth.getResourceCacheAllowlist();
+    _connectionHandler = auth.getConnectionHandler();
+    _addWebView((ViewGroup) findViewById(resources.getIdentifier(_IDM_WEB_VIEW_CONTAINER, _ID, packageName)));
     final IdmAuthentication.CompletionHandler.CHALLENGE_TYPE challengeType = completionHandler.getChallengeType();
 
     final Button backBtn = _getBackButton(resources, packageName);
@@ -66,10 +83,36 @@ public class WebViewActivity extends Activity
   protected void onDestroy()
   {
     super.onDestroy();
-    unregisterReceiver(_broadcastReceiver);
+    if (_broadcastReceiver != null)
+    {
+      unregisterReceiver(_broadcastReceiver);
+    }
+    if (_prewarmWebView && _webView != null)
+    {
+      // The WebView is not reused for the next challenge, which gets a fresh one.
+      ((ViewGroup) _webView.getParent()).removeView(_webView);
+      _webView.destroy();
+      WebViewPool.prewarm(this);
+    }
     OMLog.debug(TAG,"Destroyed webview activity.");
   }
 
+  /**
+   * Adds the WebView to the layout: the pre-warmed one if the flow asked for it and there is one, a new one otherwise.
+   * @param container
+   */
+  private void _addWebView(ViewGroup container)
+  {
+    _webView = _prewarmWebView ? WebViewPool.acquire(this) : null;
+    if (_webView == null)
+    {
+      _webView = new WebView(this);
+    }
+    WebViewPool.configure(_webView);
+    container.addView(_webView, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                                                           ViewGroup.LayoutParams.MATCH_PARENT));
+  }
+
   private void _proceed(IdmAuthentication.CompletionHandler completionHandler)
   {
     Map<String, Object> responseFields = new HashMap<String, Object>();
@@ -86,7 +129,7 @@ public class WebViewActivity extends Activity
         public void onReceive(Context context, Intent intent)
         {
           String action = intent.getAction();
-          if (FINISH_WEB_VIEW_INTENT.equals(action))
+          if (FINISH_WEB_VIEW_INTENT.equals(action) && _authFlowKey.equals(intent.getStringExtra(AUTH_FLOW_KEY_EXTRA)))
           {
             OMLog.debug(TAG, "Finishing the activity.");
             // TODO: Bug 26048182, Destroy the webview once we are done with it.
@@ -116,6 +159,26 @@ public class WebViewActivity extends Activity
         return super.shouldOverrideUrlLoading(view, url);
       }
 
+      /**
+       * The IDM SDK's WebViewClient passes this on to the app's client, so this serves the embedded login of every
+       * auth type.
+       */
+      @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+      @Override
+      public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request)
+      {
+        if (!_resourceCacheAllowlist.isEmpty() && _connectionHandler != null)
+        {
+          WebResourceResponse response = WebResourceCache.getInstance(WebViewActivity.this)
+                                                         .get(request, _resourceCacheAllowlist, _connectionHandler);
+          if (response != null)
+          {
+            return response;
+          }
+        }
+        return super.shouldInterceptRequest(view, request);
+      }
+
       @Override
       public void onPageFinished(WebView view, String url)
       {
@@ -151,7 +214,7 @@ public class WebViewActivity extends Activity
           @Override
           public void run()
           {
-            sendBroadcast(new Intent(CANCEL_WEB_VIEW_INTENT));
+            sendBroadcast(new Intent(CANCEL_WEB_VIEW_INTENT).putExtra(AUTH_FLOW_KEY_EXTRA, _authFlowKey));
           }
         });
       }
@@ -217,15 +280,19 @@ public class WebViewActivity extends Activity
     return backBtn;
   }
 
+  private String _authFlowKey;
   private WebView _webView;
   private WebViewClient _webViewClient;
   private BroadcastReceiver _broadcastReceiver;
+  private boolean _prewarmWebView;
+  private List<String> _resourceCacheAllowlist;
+  private OMConnectionHandler _connectionHandler;
 
   private static final String TAG = WebViewActivity.class.getSimpleName();
   private static final String _ACTIVITY_WEB_VIEW = "activity_web_view";
   private static final String _ID = "id";
   private static final String _LAYOUT = "layout";
-  private static final String _IDM_WEB_VIEW = "idmWebView";
+  private static final String _IDM_WEB_VIEW_CONTAINER = "idmWebViewContainer";
   private static final String _CANCEL_BTN_ID = "webViewCancelBtn";
   private static final String _RELOAD_BTN_ID = "webViewReloadBtn";
   private static final String _FORWARD_BTN_ID = "webViewFwdBtn";
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2017, Oracle and/or its affiliates.
+ * The Universal Permissive License (UPL), Version 1.0
+ */
+package oracle.idm.auth.plugin;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import oracle.idm.mobile.logging.OMLog;
+
+/**
+ * Holds a WebView created ahead of time for the WebViewActivity, for the flows which asked for it to be pre-warmed.
+ * The WebView is created when the main thread is idle, on a context which is switched to the activity when it is
+ * handed out. A WebView is used for one challenge only; the next one is created once the activity is done with it.
+ * Nothing is created on low memory devices, and the WebView is released when the system is low on memory.
+ * All the methods must be called on the main thread, except prewarm.
+ */
+class WebViewPool
+{
+  /**
+   * Creates a WebView once the main thread is idle, unless one is available already.
+   * @param context
+   */
+  static void prewarm(Context context)
+  {
+    final Context appContext = context.getApplicationContext();
+    _MAIN_HANDLER.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (_webView != null || _prewarmScheduled)
+        {
+          return;
+        }
+        _prewarmScheduled = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler()
+        {
+          @Override
+          public boolean queueIdle()
+          {
+            _prewarmScheduled = false;
+            if (_webView == null && !_isLowOnMemory(appContext))
+            {
+              long start = System.currentTimeMillis();
+              WebView webView = new WebView(new MutableContextWrapper(appContext));
+              configure(webView);
+              _webView = webView;
+              OMLog.debug(TAG, "Pre-warmed WebView in " + (System.currentTimeMillis() - start) + " ms.");
+            }
+            return false;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Hands out the pre-warmed WebView, if there is one.
+   * @param activity which shows the WebView.
+   * @return the WebView, null if none is available.
+   */
+  static WebView acquire(Activity activity)
+  {
+    WebView webView = _webView;
+    _webView = null;
+    if (webView != null)
+    {
+      ((MutableContextWrapper) webView.getContext()).setBaseContext(activity);
+      OMLog.debug(TAG, "Using pre-warmed WebView.");
+    }
+    return webView;
+  }
+
+  /**
+   * Applies the settings the WebViewActivity needs.
+   * @param webView
+   */
+  static void configure(WebView webView)
+  {
+    WebSettings settings = webView.getSettings();
+    settings.setJavaScriptEnabled(true);
+    settings.setDomStorageEnabled(true);
+  }
+
+  /**
+   * Releases the pre-warmed WebView when the system is low on memory.
+   * @param level memory trim level
+   */
+  static void onTrimMemory(int level)
+  {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+    {
+      clear();
+    }
+  }
+
+  /**
+   * Releases the pre-warmed WebView.
+   */
+  static void clear()
+  {
+    WebView webView = _webView;
+    _webView = null;
+    if (webView != null)
+    {
+      OMLog.debug(TAG, "Releasing pre-warmed WebView.");
+      webView.destroy();
+    }
+  }
+
+  private static boolean _isLowOnMemory(Context context)
+  {
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+    activityManager.getMemoryInfo(memoryInfo);
+    if (activityManager.isLowRamDevice() || memoryInfo.lowMemory)
+    {
+      OMLog.debug(TAG, "Low on memory, not pre-warming WebView.");
+      return true;
+    }
+    return false;
+  }
+
+  private static WebView _webView;
+  private static boolean _prewarmScheduled;
+
+  private static final Handler _MAIN_HANDLER = new Handler(Looper.getMainLooper());
+  private static final String TAG = WebViewPool.class.getSimpleName();
+}
@@ -86,6 +86,72 @@ exports.defineAutoTests = function() {
       expect(flow.isAuthenticated).toBeDefined();
       expect(flow.getHeaders).toBeDefined();
       expect(flow.resetIdleTimeout).toBeDefined();
+      expect(flow.touch).toBeDefined();
+      expect(flow.addEventCallback).toBeDefined();
+      expect(flow.destroy).toBeDefined();
+      done();
+    });
+  });
+  describe('idmAuthFlowPlugin.init', function () {
+    var flow, registeredFlow, events = [];
+    beforeEach(function(done) {
+      var authProps = idmAuthFlowPlugin.newHttpBasicAuthPropertiesBuilder('jasmineJsTests',
+          '{{basic.loginUrl}}',
+          '{{basic.logoutUrl}}')
+        .build();
+      idmAuthFlowPlugin.init(authProps).then(function (resp) {
+        flow = resp;
+        flow.addEventCallback(function (event) {
+          events.push(event);
+        }).then(function (resp) {
+          registeredFlow = resp;
+          done();
+        }, done);
+      }, done);
+    });
+
+    it('add event callback.', function(done) {
+      expect(registeredFlow).toBe(flow);
+      expect(events.length).toBe(0);
+      done();
+    });
+  });
+
+  // Destroy only releases the flow on android, it does nothing on other platforms.
+  if (cordova.platformId !== 'android')
+    return;
+
+  describe('idmAuthFlowPlugin.init', function () {
+    var destroyed, results = [];
+    beforeEach(function(done) {
+      var failureCallback = function (resp) {
+        results.push(resp);
+      };
+      var authProps = idmAuthFlowPlugin.newHttpBasicAuthPropertiesBuilder('jasmineJsTests',
+          '{{basic.loginUrl}}',
+          '{{basic.logoutUrl}}')
+        .build();
+      idmAuthFlowPlugin.init(authProps).then(function (flow) {
+        flow.destroy().then(function () {
+          destroyed = true;
+          Promise.all([
+            flow.isAuthenticated().catch(failureCallback),
+            flow.getHeaders().catch(failureCallback),
+            flow.addEventCallback(function () {}).catch(failureCallback)
+          ]).then(function () {
+            done();
+          });
+        }, done);
+      }, done);
+    });
+
+    it('destroy and use the destroyed flow.', function(done) {
+      expect(destroyed).toBe(true);
+      expect(results.length).toBe(3);
+      results.forEach(function (result) {
+        expect(result[idmAuthFlowPlugin.Error.ErrorCode]).toBe("P1009");
+        expect(result[idmAuthFlowPlugin.Error.ErrorSource]).toBe(idmAuthFlowPlugin.ErrorSources.Plugin);
+      });
       done();
     });
   });
@@ -148,4 +148,85 @@ exports.defineAutoTests = function() {
       done();
     });
   });
+  describe('idmAuthFlowPlugin.isAuthenticated', function () {
+    var loggedInFlow, isAuth, isAuthOtherFlow, headers, touchedFlow, actions;
+    beforeEach(function(done) {
+      var challengeCallback = function (fields, proceedHandler) {
+        fields[idmAuthFlowPlugin.AuthChallenge.UserName] = '{{basic.userName}}';
+        fields[idmAuthFlowPlugin.AuthChallenge.Password] = '{{basic.password}}';
+        proceedHandler(fields);
+      };
+      var authProps = idmAuthFlowPlugin.newHttpBasicAuthPropertiesBuilder('JasmineJsTests',
+          '{{basic.loginUrl}}',
+          '{{basic.logoutUrl}}')
+        .customAuthHeaders({a: 'b'})
+        .build();
+      var otherAuthProps = idmAuthFlowPlugin.newHttpBasicAuthPropertiesBuilder('JasmineJsTestsOther',
+          '{{basic.loginUrl}}',
+          '{{basic.logoutUrl}}')
+        .build();
+      // Records the actions sent to the native layer, to check that the calls below are sent as one batch call.
+      var stopRecording = function() {};
+      var startRecording = function() {
+        actions = [];
+        if (cordova.platformId !== 'android')
+          return;
+
+        var nativeApiProvider = cordova.require('cordova/android/nativeapiprovider');
+        var nativeApi = nativeApiProvider.get();
+        nativeApiProvider.set({
+          exec: function(bridgeSecret, service, action, callbackId, argsJson) {
+            if (service === 'IdmAuthFlows')
+              actions.push(action);
+            return nativeApi.exec(bridgeSecret, service, action, callbackId, argsJson);
+          },
+          setNativeToJsBridgeMode: function(bridgeSecret, value) {
+            return nativeApi.setNativeToJsBridgeMode(bridgeSecret, value);
+          },
+          retrieveJsMessages: function(bridgeSecret, fromOnlineEvent) {
+            return nativeApi.retrieveJsMessages(bridgeSecret, fromOnlineEvent);
+          }
+        });
+        stopRecording = function() {
+          nativeApiProvider.set(nativeApi);
+        };
+      };
+      idmAuthFlowPlugin.init(otherAuthProps).then(function (otherFlow) {
+        idmAuthFlowPlugin.init(authProps).then(function (flow) {
+          flow.login(challengeCallback).then(function (loginRespFlow) {
+            loggedInFlow = loginRespFlow;
+            startRecording();
+            Promise.all([
+              loginRespFlow.isAuthenticated(),
+              otherFlow.isAuthenticated(),
+              loginRespFlow.getHeaders(),
+              loginRespFlow.touch()
+            ]).then(function (resps) {
+              stopRecording();
+              isAuth = resps[0];
+              isAuthOtherFlow = resps[1];
+              headers = resps[2];
+              touchedFlow = resps[3];
+              loginRespFlow.logout().then(function () {
+                done();
+              }, done);
+            }, function (err) {
+              stopRecording();
+              done();
+            });
+          }, done);
+        }, done);
+      }, done);
+    });
+    it('calls made together on several flows are sent as one batch call and receive their own results.', function(done) {
+      if (cordova.platformId === 'android')
+        expect(actions).toEqual(['batch']);
+      expect(isAuth).toBe(true);
+      expect(isAuthOtherFlow).toBe(false);
+      expect(headers).toBeDefined();
+      expect(headers.a).toBe('b');
+      expect(touchedFlow).toBe(loggedInFlow);
+      done();
+    });
+  });
 };
\ No newline at end of file
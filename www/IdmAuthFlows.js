@@ -3,7 +3,8 @@
  * The Universal Permissive License (UPL), Version 1.0
  */
 /* jshint esversion: 6 */
-var exec = require('cordova/exec');
+var cordovaExec = require('cordova/exec');
+var platformId = require('cordova').platformId;
 
 /**
  * The plugin object used to interact with IDM headless auth API.
@@ -13,6 +14,80 @@ var IdmAuthFlows = function() {
   var TAG = 'IdmAuthFlows';
   var AuthFlowKey = 'AuthFlowKey';
   var IsAuthenticatedKey = 'isAuthenticated';
+  var EventTypeKey = 'EventType';
+  // Event sent by the native layer once the event callback is registered, not passed on to the app.
+  var RegisteredEventType = 'Registered';
+
+  /**
+   * Coalesces the isAuthenticated, getHeaders, resetIdleTimeout and touch calls made within the same microtask,
+   * for any number of authentication flows, into one 'batch' call to the native layer.
+   * Only the android plugin supports the batch call, on other platforms each call is sent on its own.
+   */
+  var Batcher = function()
+  {
+    var pending = [];
+
+    var sendBatch = function(requests)
+    {
+      cordovaExec(function(outcomes) {
+        for (var i = 0; i < requests.length; i++)
+        {
+          if (outcomes[i].ok)
+            requests[i].success(outcomes[i].result);
+          else
+            requests[i].error(outcomes[i].error);
+        }
+      }, function(err) {
+        for (var i = 0; i < requests.length; i++)
+          requests[i].error(err);
+      }, TAG, 'batch', [requests.map(function(request) {
+        return {action: request.action, args: request.args};
+      })]);
+    };
+
+    /**
+     * Sends the calls collected so far.
+     */
+    this.flush = function()
+    {
+      if (pending.length === 0)
+        return;
+
+      var requests = pending;
+      pending = [];
+      if (requests.length === 1)
+        cordovaExec(requests[0].success, requests[0].error, TAG, requests[0].action, requests[0].args);
+      else
+        sendBatch(requests);
+    };
+
+    /**
+     * Queues the call to be sent with the others made in the same microtask.
+     */
+    this.exec = function(success, error, action, args)
+    {
+      if (platformId !== 'android')
+      {
+        cordovaExec(success, error, TAG, action, args);
+        return;
+      }
+
+      pending.push({success: success, error: error, action: action, args: args});
+      if (pending.length === 1)
+        Promise.resolve().then(this.flush);
+    };
+  };
+  var batcher = new Batcher();
+
+  /**
+   * Sends a call to the native layer right away. The calls queued for batching are sent first, so that the native
+   * layer receives all calls in the order they were made.
+   */
+  var exec = function(success, error, service, action, args)
+  {
+    batcher.flush();
+    cordovaExec(success, error, service, action, args);
+  };
 
   /**
    * Keys to be used for passing authentication properties.
@@ -35,6 +110,20 @@ var IdmAuthFlows = function() {
     OfflineAuthAllowed:'OfflineAuthAllowed',
     // number - in seconds
     LogoutTimeOutValue:'LogoutTimeOutValue',
+    // number - in seconds, android only
+    FlowIdleEvictionTimeout:'FlowIdleEvictionTimeout',
+    // boolean, android only
+    SetupInBackground:'SetupInBackground',
+    // number - in seconds, android only
+    IdleTimeoutResetInterval:'IdleTimeoutResetInterval',
+    // boolean, android only
+    ReuseFlow:'ReuseFlow',
+    // boolean, android only
+    PrewarmWebView:'PrewarmWebView',
+    // boolean, android only
+    UseCustomTabs:'UseCustomTabs',
+    // array of URL prefixes, android only
+    ResourceCacheAllowlist:'ResourceCacheAllowlist',
 
     // HTTPBasicAuthentication specific.
     // app should not set this - defaulted to AES.
@@ -218,6 +307,42 @@ var IdmAuthFlows = function() {
       this.put(authPropertyKeys.LogoutTimeOutValue, timeout);
       return this;
     };
+    this.flowIdleEvictionTimeoutInSeconds = function(timeout)
+    {
+      assertNumber(timeout, authPropertyKeys.FlowIdleEvictionTimeout);
+      this.put(authPropertyKeys.FlowIdleEvictionTimeout, timeout);
+      return this;
+    };
+    this.idleTimeoutResetIntervalInSeconds = function(interval)
+    {
+      assertNumber(interval, authPropertyKeys.IdleTimeoutResetInterval);
+      this.put(authPropertyKeys.IdleTimeoutResetInterval, interval);
+      return this;
+    };
+    this.setupInBackground = function(bool)
+    {
+      assertBoolean(bool, authPropertyKeys.SetupInBackground);
+      this.put(authPropertyKeys.SetupInBackground, bool);
+      return this;
+    };
+    this.reuseFlow = function(bool)
+    {
+      assertBoolean(bool, authPropertyKeys.ReuseFlow);
+      this.put(authPropertyKeys.ReuseFlow, bool);
+      return this;
+    };
+    this.prewarmWebView = function(bool)
+    {
+      assertBoolean(bool, authPropertyKeys.PrewarmWebView);
+      this.put(authPropertyKeys.PrewarmWebView, bool);
+      return this;
+    };
+    this.resourceCacheAllowlist = function(urlPrefixes)
+    {
+      assertObject(urlPrefixes, authPropertyKeys.ResourceCacheAllowlist);
+      this.put(authPropertyKeys.ResourceCacheAllowlist, urlPrefixes);
+      return this;
+    };
     this.customAuthHeaders = function(headers)
     {
       assertObject(headers, authPropertyKeys.CustomAuthHeaders);
@@ -435,6 +560,12 @@ var IdmAuthFlows = function() {
       this.put(authPropertyKeys.BrowserMode, mode);
       return this;
     };
+    this.useCustomTabs = function(bool)
+    {
+      assertBoolean(bool, authPropertyKeys.UseCustomTabs);
+      this.put(authPropertyKeys.UseCustomTabs, bool);
+      return this;
+    };
     return this;
   };
 
@@ -535,9 +666,9 @@ var IdmAuthFlows = function() {
      */
     this.isAuthenticated = function(authProps) {
       return new Promise(function (resolve, reject) {
-        exec(function(resp) {
+        batcher.exec(function(resp) {
           resolve(resp[IsAuthenticatedKey]);
-        }, reject, TAG, 'isAuthenticated', [authFlowKey, authProps]);
+        }, reject, 'isAuthenticated', [authFlowKey, authProps]);
       });
     };
     /**
@@ -553,7 +684,7 @@ var IdmAuthFlows = function() {
      */
     this.getHeaders = function(fedAuthSecuredUrl, oauthScopes) {
       return new Promise(function (resolve, reject) {
-        exec(resolve, reject, TAG, 'getHeaders', [authFlowKey, fedAuthSecuredUrl, oauthScopes]);
+        batcher.exec(resolve, reject, 'getHeaders', [authFlowKey, fedAuthSecuredUrl, oauthScopes]);
       });
     };
     /**
@@ -575,9 +706,67 @@ var IdmAuthFlows = function() {
      */
     this.resetIdleTimeout = function() {
       return new Promise(function (resolve, reject) {
-        exec(function(resp) {
+        batcher.exec(function(resp) {
+          resolve(self);
+        }, reject, 'resetIdleTimeout', [authFlowKey]);
+      });
+    };
+    /**
+     * This method can be used on every user interaction to keep the user from idling out. Unlike resetIdleTimeout,
+     * the idle timeout is reset at most once per IdmAuthFlows.AuthPropertyKeys.IdleTimeoutResetInterval.
+     * On platforms other than android, this resets the idle timeout every time.
+     * @return {Promise} <ul><li>onFulfilled - will receive this AuthenticationFlow object itself.
+     *                   <li>onRejected - will receive the error object describing the error with keys in IdmAuthFlows.Error.</ul>
+     */
+    this.touch = function() {
+      return new Promise(function (resolve, reject) {
+        batcher.exec(function(resp) {
+          resolve(self);
+        }, reject, platformId === 'android' ? 'touch' : 'resetIdleTimeout', [authFlowKey]);
+      });
+    };
+    /**
+     * This method registers a callback receiving the events of this authentication flow: timeouts, token refreshes,
+     * logout and session state changes. The event object has the keys in IdmAuthFlows.EventResponse. Android only.
+     * @param {eventCallback} Callback invoked for every event, with the event object.
+     * @return {Promise} <ul><li>onFulfilled - will receive this AuthenticationFlow object itself, once the callback is
+     *                   registered.
+     *                   <li>onRejected - will receive the error object describing the error with keys in IdmAuthFlows.Error.</ul>
+     */
+    this.addEventCallback = function(eventCallback) {
+      return new Promise(function (resolve, reject) {
+        if (platformId !== 'android')
+        {
           resolve(self);
-        }, reject, TAG, 'resetIdleTimeout', [authFlowKey]);
+          return;
+        }
+        exec(function(event) {
+          if (event[EventTypeKey] === RegisteredEventType)
+          {
+            resolve(self);
+            return;
+          }
+          eventCallback(event);
+        }, reject, TAG, 'addEventCallback', [authFlowKey]);
+      });
+    };
+    /**
+     * This method releases the native resources held for this authentication flow. The flow cannot be used afterwards.
+     * It does not logout the user, call logout before if needed. If the flow is shared with other init calls because of
+     * IdmAuthFlows.AuthPropertyKeys.ReuseFlow, it is released once all of them destroyed it.
+     * @return {Promise} <ul><li>onFulfilled - will be invoked once the flow is released.
+     *                   <li>onRejected - will receive the error object describing the error with keys in IdmAuthFlows.Error.</ul>
+     */
+    this.destroy = function() {
+      return new Promise(function (resolve, reject) {
+        if (platformId !== 'android')
+        {
+          resolve();
+          return;
+        }
+        exec(function(resp) {
+          resolve();
+        }, reject, TAG, 'destroy', [authFlowKey]);
       });
     };
   };
@@ -633,6 +822,30 @@ var IdmAuthFlows = function() {
      SessionTimeout:'SESSION_TIMEOUT',
      IdleTimeout:'IDLE_TIMEOUT'
     },
+    /**
+     * Keys present in the event object received by the callback passed to AuthenticationFlow#addEventCallback.
+     * Timeout events also carry the keys in IdmAuthFlows.TimeoutResponse.
+     */
+    EventResponse: {
+      EventType:'EventType',
+      SessionState:'SessionState'
+    },
+    /**
+     * Possible values for EventResponse.EventType
+     */
+    EventType: {
+      Timeout:'Timeout',
+      TokenRefresh:'TokenRefresh',
+      Logout:'Logout',
+      SessionState:'SessionState'
+    },
+    /**
+     * Possible values for EventResponse.SessionState
+     */
+    SessionState: {
+      Authenticated:'Authenticated',
+      Expired:'Expired'
+    },
     /**
      * Enum values for OAuthPropertiesBuilder#browserMode
      */